@@ -0,0 +1,160 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.util.LinkedList;
+
+import to.doc.android.ipv6config.LinuxIPCommandHelper.InterfaceDetail;
+
+/** This class benchmarks the throughput of parsing "ip addr" output with
+ * IfaceOutputParser in all supported formats. The output resembles a
+ * container host with one uplink, a bridge, and one veth interface per
+ * container, each with a link-local and a global IPv6 address, so that it
+ * runs on any plain Linux machine.
+ *
+ * @author Rene Mayrhofer
+ */
+public class IfaceOutputBenchmark {
+	private final static String[] FORMAT_NAMES = { "block", "one-line", "JSON" };
+	/** Lifetime of permanent addresses as printed in JSON. */
+	private final static long FOREVER = LinuxIPCommandHelper.InetAddressWithNetmask.LIFETIME_FOREVER;
+
+	/** Generates "ip addr" output with the given number of veth interfaces in
+	 * one of the IfaceOutputParser.FORMAT_ constants.
+	 */
+	static String generateOutput(int numVeths, int format) {
+		StringBuffer out = new StringBuffer(600 * (numVeths + 3));
+		if (format == IfaceOutputParser.FORMAT_JSON)
+			out.append('[');
+		appendInterface(out, format, 1, "lo", null, "LOOPBACK,UP,LOWER_UP", 65536, "loopback", "00:00:00:00:00:00");
+		appendAddress(out, format, 1, "lo", "inet", "127.0.0.1", 8, "host", "", "lo", FOREVER, FOREVER);
+		appendAddress(out, format, 1, "lo", "inet6", "::1", 128, "host", "", null, FOREVER, FOREVER);
+		endInterface(out, format);
+		appendInterface(out, format, 2, "eth0", null, "BROADCAST,MULTICAST,UP,LOWER_UP", 1500, "ether", "02:11:22:33:44:55");
+		appendAddress(out, format, 2, "eth0", "inet", "192.0.2.23", 24, "global", "dynamic", "eth0", 85782, 85782);
+		appendAddress(out, format, 2, "eth0", "inet6", "2001:db8:200:1:a0b1:c2d3:e4f5:1234", 64, "global", "temporary dynamic", null, 604778, 86378);
+		appendAddress(out, format, 2, "eth0", "inet6", "2001:db8:200:1:11:22ff:fe33:4455", 64, "global", "dynamic mngtmpaddr noprefixroute", null, 2591978, 604778);
+		appendAddress(out, format, 2, "eth0", "inet6", "fe80::11:22ff:fe33:4455", 64, "link", "", null, FOREVER, FOREVER);
+		endInterface(out, format);
+		appendInterface(out, format, 3, "docker0", null, "BROADCAST,MULTICAST,UP,LOWER_UP", 1500, "ether", "02:42:ac:11:00:01");
+		appendAddress(out, format, 3, "docker0", "inet", "172.17.0.1", 16, "global", "", "docker0", FOREVER, FOREVER);
+		appendAddress(out, format, 3, "docker0", "inet6", "2001:db8:300::1", 64, "global", "", null, FOREVER, FOREVER);
+		appendAddress(out, format, 3, "docker0", "inet6", "fe80::42:acff:fe11:1", 64, "link", "", null, FOREVER, FOREVER);
+		endInterface(out, format);
+		for (int i=0; i<numVeths; i++) {
+			String hi = Integer.toHexString((i >> 8) & 0xff), lo = Integer.toHexString(i & 0xff);
+			String name = "veth" + Integer.toHexString(0x1000000 + i * 7919).substring(1);
+			appendInterface(out, format, i + 4, name, "if" + (2 * i + 5), "BROADCAST,MULTICAST,UP,LOWER_UP", 1500,
+					"ether", "5a:1c:" + hi + ":" + lo + ":9e:0f");
+			appendAddress(out, format, i + 4, name, "inet6", "2001:db8:300::" + hi + ":" + lo, 128, "global",
+					(i & 7) == 0 ? "tentative" : "dynamic", null, 3600 + i, 1800 + i);
+			appendAddress(out, format, i + 4, name, "inet6", "fe80::581c:" + hi + "ff:fe" + lo + ":9e0f", 64, "link",
+					"", null, FOREVER, FOREVER);
+			endInterface(out, format);
+		}
+		if (format == IfaceOutputParser.FORMAT_JSON)
+			out.append(']');
+		else if (format == IfaceOutputParser.FORMAT_ONELINE)
+			out.setLength(out.length() - 1);
+		return out.toString();
+	}
+
+	private static void appendInterface(StringBuffer out, int format, int index, String name, String link,
+			String flags, int mtu, String linkType, String mac) {
+		if (format == IfaceOutputParser.FORMAT_JSON) {
+			if (out.length() > 1)
+				out.append(',');
+			out.append("{\"ifindex\":").append(index).append(",\"ifname\":\"").append(name).append('"');
+			if (link != null)
+				out.append(",\"link\":\"").append(link).append('"');
+			out.append(",\"flags\":[\"").append(flags.replace(",", "\",\"")).append("\"],\"mtu\":").append(mtu)
+				.append(",\"qdisc\":\"noqueue\",\"operstate\":\"UP\",\"group\":\"default\",\"link_type\":\"")
+				.append(linkType).append("\",\"address\":\"").append(mac).append("\",\"broadcast\":\"ff:ff:ff:ff:ff:ff\",\"addr_info\":[");
+			return;
+		}
+		out.append(index).append(": ").append(name);
+		if (link != null)
+			out.append('@').append(link);
+		out.append(": <").append(flags).append("> mtu ").append(mtu).append(" qdisc noqueue state UP group default ")
+			.append(format == IfaceOutputParser.FORMAT_ONELINE ? "\\" : "\n")
+			.append("    link/").append(linkType).append(' ').append(mac).append(" brd ff:ff:ff:ff:ff:ff\n");
+	}
+
+	private static void appendAddress(StringBuffer out, int format, int index, String name, String family, String address,
+			int prefixLength, String scope, String modifiers, String label, long valid, long preferred) {
+		if (format == IfaceOutputParser.FORMAT_JSON) {
+			if (out.charAt(out.length() - 1) != '[')
+				out.append(',');
+			out.append("{\"family\":\"").append(family).append("\",\"local\":\"").append(address)
+				.append("\",\"prefixlen\":").append(prefixLength).append(",\"scope\":\"").append(scope).append('"');
+			for (String modifier : modifiers.split(" "))
+				if (modifier.length() > 0)
+					out.append(",\"").append(modifier).append("\":true");
+			if (label != null)
+				out.append(",\"label\":\"").append(label).append('"');
+			out.append(",\"valid_life_time\":").append(valid).append(",\"preferred_life_time\":").append(preferred).append('}');
+			return;
+		}
+		boolean oneLine = format == IfaceOutputParser.FORMAT_ONELINE;
+		if (oneLine)
+			out.append(index).append(": ").append(name);
+		out.append("    ").append(family).append(' ').append(address).append('/').append(prefixLength)
+			.append(" scope ").append(scope).append(' ').append(modifiers);
+		if (label != null)
+			out.append(' ').append(label);
+		out.append(oneLine ? "\\" : "\n").append("       valid_lft ").append(lifetime(valid))
+			.append(" preferred_lft ").append(lifetime(preferred)).append('\n');
+	}
+
+	private static String lifetime(long value) {
+		return value == FOREVER ? "forever" : value + "sec";
+	}
+
+	private static void endInterface(StringBuffer out, int format) {
+		if (format == IfaceOutputParser.FORMAT_JSON)
+			out.append("]}");
+	}
+
+	/** Runs the benchmark. Optional arguments: number of veth interfaces, number of iterations. */
+	public static void main(String[] args) {
+		int numVeths = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		for (int format=0; format<FORMAT_NAMES.length; format++) {
+			String output = generateOutput(numVeths, format);
+			LinkedList<InterfaceDetail> ifaces = IfaceOutputParser.parse(output, format);
+			int numAddresses = 0;
+			for (InterfaceDetail iface : ifaces)
+				numAddresses += iface.addresses.size();
+			System.out.println("Parsing " + output.length() / 1024 + "kB of " + FORMAT_NAMES[format] + " output with " +
+					ifaces.size() + " interfaces and " + numAddresses + " addresses");
+
+			// warm up, then measure
+			for (int i=0; i<iterations/10; i++)
+				IfaceOutputParser.parse(output, format);
+
+			long start = System.nanoTime();
+			long worst = 0;
+			for (int i=0; i<iterations; i++) {
+				long iterStart = System.nanoTime();
+				IfaceOutputParser.parse(output, format);
+				worst = Math.max(worst, System.nanoTime() - iterStart);
+			}
+			long total = System.nanoTime() - start;
+
+			System.out.println(iterations + " parses in " + total/1000000 + "ms: " +
+					(total / iterations) / 1000 + "us average, " + worst / 1000 + "us worst, " +
+					((long) iterations * ifaces.size() * 1000000000L / total) + " interfaces/s, " +
+					((long) iterations * output.length() * 1000L / total) + "MB/s");
+		}
+	}
+}
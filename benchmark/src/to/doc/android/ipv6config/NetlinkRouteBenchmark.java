@@ -0,0 +1,124 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.util.LinkedList;
+
+import to.doc.android.ipv6config.LinuxIPCommandHelper.RouteDetail;
+
+/** This class cross-checks the conversion of netlink route records by
+ * NetlinkHelper.getRouteOutput against the route lines "ip route" prints
+ * for them, including IPv4-mapped IPv6 destinations and gateways (as for
+ * the ::ffff:0:0/96 route of the 6to4 tunnel), and measures the time of a
+ * conversion. The records are filled in by hand, so that it runs without
+ * the native library on any plain Linux machine.
+ *
+ * @author Rene Mayrhofer
+ */
+public class NetlinkRouteBenchmark {
+	/** Family, destination, prefix length, gateway (null for none), output
+	 * interface, metric, and the expected route line.
+	 */
+	private final static Object[][] ROUTES = {
+		{ NetlinkHelper.AF_INET6, "::ffff:0:0", 96, null, "sit6to4", 1,
+			"::ffff:0.0.0.0/96 dev sit6to4 metric 1" },
+		{ NetlinkHelper.AF_INET6, "::ffff:0:0", 96, "::ffff:192.168.1.1", "eth0", 1024,
+			"::ffff:0.0.0.0/96 via ::ffff:192.168.1.1 dev eth0 metric 1024" },
+		{ NetlinkHelper.AF_INET6, "::ffff:31.193.162.123", 128, null, "eth0", 0,
+			"::ffff:31.193.162.123 dev eth0" },
+		{ NetlinkHelper.AF_INET6, "2000::", 3, "::192.88.99.1", "sit6to4", 1,
+			"2000::/3 via ::192.88.99.1 dev sit6to4 metric 1" },
+		{ NetlinkHelper.AF_INET6, "::", 0, "fe80::1", "eth0", 1024,
+			"default via fe80::1 dev eth0 metric 1024" },
+		{ NetlinkHelper.AF_INET, "192.168.1.0", 24, null, "eth0", 0,
+			"192.168.1.0/24 dev eth0" },
+		{ NetlinkHelper.AF_INET, "0.0.0.0", 0, "192.168.1.1", "eth0", 0,
+			"default via 192.168.1.1 dev eth0" },
+	};
+	private final static String[] LINKS = { "eth0", "sit6to4" };
+
+	/** Runs the check and the benchmark. Optional argument: number of conversions. */
+	public static void main(String[] args) throws Exception {
+		int numConversions = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+		NetlinkHelper.Dump dump = createDump();
+		check(dump, true);
+		check(dump, false);
+		System.out.println("All " + ROUTES.length + " route records converted as expected");
+
+		for (int i=0; i<numConversions/10; i++)
+			NetlinkHelper.getRouteOutput(dump, (i & 1) == 0);
+		long start = System.nanoTime();
+		for (int i=0; i<numConversions; i++)
+			NetlinkHelper.getRouteOutput(dump, (i & 1) == 0);
+		long time = System.nanoTime() - start;
+		System.out.println(numConversions + " conversions in " + time / 1000000 + "ms: " +
+				time / numConversions + "ns per conversion");
+	}
+
+	/** Fills a dump with the links and routes as the native library would. */
+	private static NetlinkHelper.Dump createDump() {
+		NetlinkHelper.Dump dump = new NetlinkHelper.Dump(LINKS.length, 0, ROUTES.length);
+		for (int i=0; i<LINKS.length; i++) {
+			dump.linkInts[i * NetlinkHelper.LINK_INTS + NetlinkHelper.LINK_INDEX] = i + 1;
+			for (int j=0; j<LINKS[i].length(); j++)
+				dump.linkBytes[i * NetlinkHelper.LINK_BYTES + NetlinkHelper.LINK_NAME_OFFSET + j] = (byte) LINKS[i].charAt(j);
+		}
+		dump.numLinks = LINKS.length;
+		for (int i=0; i<ROUTES.length; i++) {
+			Object[] r = ROUTES[i];
+			int base = i * NetlinkHelper.ROUTE_INTS;
+			dump.routeInts[base + NetlinkHelper.ROUTE_FAMILY] = (Integer) r[0];
+			dump.routeInts[base + NetlinkHelper.ROUTE_PREFIX_LENGTH] = (Integer) r[2];
+			dump.routeInts[base + NetlinkHelper.ROUTE_TABLE] = NetlinkHelper.RT_TABLE_MAIN;
+			dump.routeInts[base + NetlinkHelper.ROUTE_TYPE] = NetlinkHelper.RTN_UNICAST;
+			dump.routeInts[base + NetlinkHelper.ROUTE_METRIC] = (Integer) r[5];
+			for (int j=0; j<LINKS.length; j++)
+				if (LINKS[j].equals(r[4]))
+					dump.routeInts[base + NetlinkHelper.ROUTE_OUTPUT_INDEX] = j + 1;
+			toBytes((String) r[1], dump.routeBytes, i * NetlinkHelper.ROUTE_BYTES + NetlinkHelper.ROUTE_DESTINATION_OFFSET);
+			if (r[3] != null) {
+				dump.routeInts[base + NetlinkHelper.ROUTE_HAS_GATEWAY] = 1;
+				toBytes((String) r[3], dump.routeBytes, i * NetlinkHelper.ROUTE_BYTES + NetlinkHelper.ROUTE_GATEWAY_OFFSET);
+			}
+		}
+		dump.numRoutes = ROUTES.length;
+		return dump;
+	}
+
+	/** Copies the raw bytes of an address, keeping IPv4-mapped ones at 16 bytes. */
+	private static void toBytes(String address, byte[] target, int offset) {
+		byte[] addr = PackedAddress.parse(address).toBytes();
+		if (address.indexOf(':') >= 0 && addr.length == 4) {
+			target[offset + 10] = (byte) 0xff;
+			target[offset + 11] = (byte) 0xff;
+			offset += 12;
+		}
+		System.arraycopy(addr, 0, target, offset, addr.length);
+	}
+
+	private static void check(NetlinkHelper.Dump dump, boolean queryIPv6) throws Exception {
+		LinkedList<RouteDetail> routes = NetlinkHelper.getRouteOutput(dump, queryIPv6);
+		int next = 0;
+		for (Object[] r : ROUTES) {
+			if (((Integer) r[0] == NetlinkHelper.AF_INET6) != queryIPv6)
+				continue;
+			if (next >= routes.size())
+				throw new IllegalStateException("Missing route " + r[6]);
+			String line = routes.get(next++).fullRouteLine;
+			if (!line.equals(r[6]))
+				throw new IllegalStateException("Converted route to '" + line + "' instead of '" + r[6] + "'");
+		}
+		if (next != routes.size())
+			throw new IllegalStateException("Got " + routes.size() + " instead of " + next + " routes");
+	}
+}
@@ -0,0 +1,128 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.util.LinkedList;
+
+/** This class benchmarks the path NetOpsService takes on each connectivity
+ * change (enable address privacy with reload, then re-create the 6to4
+ * tunnel) against a RecordedCommandExecutor, so that it runs on any plain
+ * Linux machine without root access or an "ip" binary. The recorded output
+ * resembles a phone with WLAN and mobile data, and the simulated latencies
+ * resemble process and su startup on a mid-range device.
+ *
+ * Note that enableIPv6AddressPrivacy only considers interfaces that exist
+ * in /proc/sys/net/ipv6/conf on the machine running the benchmark.
+ *
+ * @author Rene Mayrhofer
+ */
+public class ReconcileBenchmark {
+	/** The location of the "ip" binary as used in the recordings. */
+	private final static String IP = "/system/bin/ip";
+
+	private final static String IP_ADDR_OUTPUT =
+		"1: lo: <LOOPBACK,UP,LOWER_UP> mtu 16436 qdisc noqueue state UNKNOWN\n" +
+		"    link/loopback 00:00:00:00:00:00 brd 00:00:00:00:00:00\n" +
+		"    inet 127.0.0.1/8 scope host lo\n" +
+		"    inet6 ::1/128 scope host\n" +
+		"       valid_lft forever preferred_lft forever\n" +
+		"2: rmnet0: <POINTOPOINT,MULTICAST,NOARP,UP,LOWER_UP> mtu 1500 qdisc pfifo_fast state UNKNOWN qlen 1000\n" +
+		"    link/[530]\n" +
+		"    inet 10.173.18.42/30 scope global rmnet0\n" +
+		"    inet6 2001:db8:100:1:a0b1:c2d3:e4f5:1234/64 scope global temporary dynamic\n" +
+		"       valid_lft 604778sec preferred_lft 86378sec\n" +
+		"    inet6 2001:db8:100:1:a8bb:ccff:fedd:eeff/64 scope global dynamic\n" +
+		"       valid_lft 2591978sec preferred_lft 604778sec\n" +
+		"    inet6 fe80::a8bb:ccff:fedd:eeff/64 scope link\n" +
+		"       valid_lft forever preferred_lft forever\n" +
+		"3: eth0: <BROADCAST,MULTICAST,UP,LOWER_UP> mtu 1500 qdisc pfifo_fast state UP qlen 1000\n" +
+		"    link/ether 02:11:22:33:44:55 brd ff:ff:ff:ff:ff:ff\n" +
+		"    inet 192.168.1.23/24 brd 192.168.1.255 scope global eth0\n" +
+		"    inet6 2001:db8:200:1:11:22ff:fe33:4455/64 scope global dynamic\n" +
+		"       valid_lft 86398sec preferred_lft 14398sec\n" +
+		"    inet6 fe80::11:22ff:fe33:4455/64 scope link\n" +
+		"       valid_lft forever preferred_lft forever\n";
+
+	private final static String IP_ROUTE_OUTPUT =
+		"default via 192.168.1.1 dev eth0\n" +
+		"10.173.18.40/30 dev rmnet0  proto kernel  scope link  src 10.173.18.42\n" +
+		"192.168.1.0/24 dev eth0  proto kernel  scope link  src 192.168.1.23\n";
+
+	private final static String IP6_ROUTE_OUTPUT_WITHOUT_DEFAULT =
+		"2001:db8:200:1::/64 dev eth0  proto kernel  metric 256  expires 86398sec\n" +
+		"fe80::/64 dev rmnet0  proto kernel  metric 256\n" +
+		"fe80::/64 dev eth0  proto kernel  metric 256\n";
+
+	/** Runs the benchmark. Optional arguments: number of iterations, process
+	 * spawn latency, su session latency, command run latency (all in ms).
+	 */
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		long spawnLatency = args.length > 1 ? Long.parseLong(args[1]) : 5;
+		long sessionLatency = args.length > 2 ? Long.parseLong(args[2]) : 150;
+		long runLatency = args.length > 3 ? Long.parseLong(args[3]) : 3;
+
+		RecordedCommandExecutor executor = new RecordedCommandExecutor(spawnLatency, sessionLatency);
+		executor.record(IP + " addr", IP_ADDR_OUTPUT, runLatency);
+		executor.record(IP + " addr show dev eth0", IP_ADDR_OUTPUT.substring(IP_ADDR_OUTPUT.indexOf("3: eth0")), runLatency);
+		executor.record(IP + " route", IP_ROUTE_OUTPUT, runLatency);
+		executor.record(IP + " -6 route", IP6_ROUTE_OUTPUT_WITHOUT_DEFAULT, runLatency);
+		executor.setDefaultRecording(new RecordedCommandExecutor.Recording("", "", 0, runLatency));
+		Command.setExecutor(executor);
+		LinuxIPCommandHelper.setIPCommandLocation(IP);
+		// use the recorded routes instead of the ones of the machine running the benchmark
+		LinuxIPCommandHelper.setReadRoutesFromProcfs(false);
+
+		// warm up once, then measure
+		reconcile();
+		Command.getMetrics(true);
+		executor.clearExecutedCommands();
+
+		long start = System.nanoTime();
+		long worst = 0;
+		for (int i=0; i<iterations; i++) {
+			long iterStart = System.nanoTime();
+			reconcile();
+			worst = Math.max(worst, System.nanoTime() - iterStart);
+		}
+		long total = System.nanoTime() - start;
+
+		System.out.println(iterations + " reconcile runs in " + total/1000000 + "ms: " +
+				(total / iterations) / 1000 + "us average, " + worst / 1000 + "us worst, " +
+				(iterations * 1000000000L / total) + " runs/s");
+		System.out.println(executor.getExecutedCommands().size() / iterations + " commands per run");
+		System.out.println(Command.getMetrics(false));
+		Command.setExecutor(new RuntimeCommandExecutor());
+	}
+
+	/** The same sequence of calls NetOpsService makes with privacy, reload and 6to4 enabled. */
+	private static void reconcile() {
+		NetworkSnapshot snapshot = null;
+		try {
+			snapshot = NetworkSnapshot.capture();
+		} catch (IOException e) {
+			// query the state in each step instead, as NetOpsService does
+		}
+		LinuxIPCommandHelper.enableIPv6AddressPrivacy(true, true, snapshot);
+		LinuxIPCommandHelper.deleteTunnelInterface(IPv6AddressesHelper.IPv6_6to4_TUNNEL_INTERFACE_NAME);
+		LinkedList<String> ifacesWithIPv6Route = LinuxIPCommandHelper.getIfacesWithIPv6DefaultRoute(snapshot);
+		ifacesWithIPv6Route.remove(IPv6AddressesHelper.IPv6_6to4_TUNNEL_INTERFACE_NAME);
+		if (ifacesWithIPv6Route.isEmpty()) {
+			Inet4Address outboundIPv4Addr = LinuxIPCommandHelper.getOutboundIPv4Address(snapshot);
+			if (outboundIPv4Addr != null)
+				LinuxIPCommandHelper.create6to4TunnelInterface(IPv6AddressesHelper.IPv6_6to4_TUNNEL_INTERFACE_NAME,
+						outboundIPv4Addr, IPv6AddressesHelper.compute6to4Prefix(outboundIPv4Addr), 0);
+		}
+	}
+}
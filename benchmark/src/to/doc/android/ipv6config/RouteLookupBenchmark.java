@@ -0,0 +1,148 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import to.doc.android.ipv6config.LinuxIPCommandHelper.RouteDetail;
+
+/** This class benchmarks RouteLookupTable with a large synthetic routing
+ * table (half IPv4, half IPv6, random prefixes and metrics, as on a router
+ * with a full table), compared to scanning the route list for the longest
+ * matching prefix. Lookups of both are cross-checked, with destinations of
+ * both families, first with only an IPv6 default route and then with
+ * default routes for both families.
+ *
+ * @author Rene Mayrhofer
+ */
+public class RouteLookupBenchmark {
+	/** Runs the benchmark. Optional arguments: number of routes, number of lookups. */
+	public static void main(String[] args) {
+		int numRoutes = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int numLookups = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		Random random = new Random(4711);
+
+		ArrayList<RouteDetail> ipv4Routes = new ArrayList<RouteDetail>(), ipv6Routes = new ArrayList<RouteDetail>();
+		for (int i=0; i<numRoutes; i++) {
+			boolean ipv6 = (i & 1) != 0;
+			RouteDetail route = new RouteDetail();
+			PackedAddress target = randomAddress(random, ipv6);
+			// leave 128.0.0.0/1 to the default route
+			if (!ipv6)
+				target = new PackedAddress(target.high, target.low & ~0x80000000L, 128);
+			target = target.withPrefixLength(ipv6 ? 16 + random.nextInt(49) :
+				PackedAddress.IPV4_MAPPED_PREFIX_LENGTH + 8 + random.nextInt(17));
+			route.target = target.toString();
+			route.iface = "eth" + random.nextInt(4);
+			route.metric = random.nextInt(4) * 100;
+			(ipv6 ? ipv6Routes : ipv4Routes).add(route);
+		}
+		RouteDetail ipv6Default = new RouteDetail();
+		ipv6Default.target = "::/0";
+		ipv6Default.iface = "rmnet0";
+		ipv6Routes.add(ipv6Default);
+		PackedAddress[] destinations = new PackedAddress[4096];
+		for (int i=0; i<destinations.length; i++) {
+			destinations[i] = randomAddress(random, (i & 1) != 0);
+			// some destinations of both families only matched by default routes
+			if ((i & 7) == 7)
+				destinations[i] = new PackedAddress(destinations[i].high ^ 0x8000000000000000L, destinations[i].low, 128);
+			else if ((i & 7) == 6)
+				destinations[i] = new PackedAddress(0, destinations[i].low | 0x80000000L, 128);
+		}
+
+		long start = System.nanoTime();
+		RouteLookupTable table = new RouteLookupTable(ipv4Routes, ipv6Routes);
+		long buildTime = System.nanoTime() - start;
+		System.out.println("Built table with " + table.size() + " routes in " + buildTime / 1000000 + "ms");
+
+		// check against a linear scan and measure it at the same time
+		int scans = Math.min(200, destinations.length);
+		start = System.nanoTime();
+		int matches = crossCheck(table, ipv4Routes, ipv6Routes, destinations, scans);
+		long scanTime = System.nanoTime() - start;
+		System.out.println(scans + " linear scans (" + matches + " matched) in " + scanTime / 1000000 + "ms: " +
+				scanTime / scans / 1000 + "us per lookup");
+
+		// IPv4 destinations that did not match before must now match the IPv4 default route
+		RouteDetail ipv4Default = new RouteDetail();
+		ipv4Default.target = "0.0.0.0/0";
+		ipv4Default.iface = "wlan0";
+		ipv4Routes.add(ipv4Default);
+		table.add(ipv4Default, false);
+		matches = crossCheck(table, ipv4Routes, ipv6Routes, destinations, scans);
+		System.out.println(scans + " linear scans with IPv4 default route (" + matches + " matched)");
+
+		// warm up, then measure
+		for (int i=0; i<numLookups/10; i++)
+			table.lookup(destinations[i & (destinations.length-1)]);
+		start = System.nanoTime();
+		for (int i=0; i<numLookups; i++)
+			table.lookup(destinations[i & (destinations.length-1)]);
+		long lookupTime = System.nanoTime() - start;
+		System.out.println(numLookups + " table lookups in " + lookupTime / 1000000 + "ms: " +
+				lookupTime / numLookups + "ns per lookup, " + (numLookups * 1000000000L / lookupTime) + " lookups/s");
+
+		// incremental updates: remove and re-add a tenth of the routes
+		int numUpdates = ipv4Routes.size() / 10;
+		start = System.nanoTime();
+		for (int i=0; i<numUpdates; i++)
+			table.remove(ipv4Routes.get(i), false);
+		for (int i=0; i<numUpdates; i++)
+			table.add(ipv4Routes.get(i), false);
+		long updateTime = System.nanoTime() - start;
+		System.out.println(2 * numUpdates + " incremental updates in " + updateTime / 1000000 + "ms: " +
+				updateTime / (2 * numUpdates) + "ns per update");
+	}
+
+	private static PackedAddress randomAddress(Random random, boolean ipv6) {
+		if (ipv6)
+			// within 2000::/3
+			return new PackedAddress((random.nextLong() >>> 3) | 0x2000000000000000L, random.nextLong(), 128);
+		return new PackedAddress(0, (0xffffL << 32) | (random.nextInt() & 0xffffffffL), 128);
+	}
+
+	/** Compares the first count lookups of the table to linear scans over
+	 * the routes of each destination's family.
+	 *
+	 * @return the number of destinations with a matching route.
+	 */
+	private static int crossCheck(RouteLookupTable table, ArrayList<RouteDetail> ipv4Routes,
+			ArrayList<RouteDetail> ipv6Routes, PackedAddress[] destinations, int count) {
+		int matches = 0;
+		for (int i=0; i<count; i++) {
+			boolean ipv6 = !destinations[i].isIPv4();
+			RouteDetail expected = scan(ipv6 ? ipv6Routes : ipv4Routes, destinations[i], ipv6);
+			if (expected != table.lookup(destinations[i]))
+				throw new IllegalStateException("Lookup of " + destinations[i] + " differs from linear scan");
+			if (expected != null)
+				matches++;
+		}
+		return matches;
+	}
+
+	/** The straightforward longest-prefix match over a route list. */
+	private static RouteDetail scan(ArrayList<RouteDetail> routes, PackedAddress destination, boolean ipv6) {
+		RouteDetail best = null;
+		int bestLength = -1;
+		for (RouteDetail route : routes) {
+			PackedAddress prefix = RouteLookupTable.getTargetPrefix(route, ipv6);
+			if (prefix.contains(destination) && (prefix.prefixLength > bestLength ||
+					(prefix.prefixLength == bestLength && (route.metric & 0xffffffffL) < (best.metric & 0xffffffffL)))) {
+				best = route;
+				bestLength = prefix.prefixLength;
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,133 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import to.doc.android.ipv6config.LinuxIPCommandHelper.InetAddressWithNetmask;
+
+/** This class cross-checks SourceAddressSelector against the source
+ * addresses the kernel picks for a recorded phone with WLAN (with public,
+ * temporary, and deprecated temporary addresses) and a 6to4 tunnel, and
+ * measures the time of a selection. The recordings are replayed with a
+ * RecordedCommandExecutor, so that it runs on any plain Linux machine.
+ *
+ * @author Rene Mayrhofer
+ */
+public class SourceAddressBenchmark {
+	/** The location of the "ip" binary as used in the recordings. */
+	private final static String IP = "/system/bin/ip";
+
+	private final static String IP_ADDR_OUTPUT =
+		"1: lo: <LOOPBACK,UP,LOWER_UP> mtu 16436 qdisc noqueue state UNKNOWN\n" +
+		"    link/loopback 00:00:00:00:00:00 brd 00:00:00:00:00:00\n" +
+		"    inet 127.0.0.1/8 scope host lo\n" +
+		"    inet6 ::1/128 scope host\n" +
+		"2: eth0: <BROADCAST,MULTICAST,UP,LOWER_UP> mtu 1500 qdisc pfifo_fast state UP qlen 1000\n" +
+		"    link/ether 02:11:22:33:44:55 brd ff:ff:ff:ff:ff:ff\n" +
+		"    inet 192.168.1.23/24 brd 192.168.1.255 scope global eth0\n" +
+		"    inet 192.168.1.99/24 brd 192.168.1.255 scope global secondary eth0\n" +
+		"    inet6 2001:db8:200:1:11:22ff:fe33:4455/64 scope global dynamic\n" +
+		"       valid_lft 86398sec preferred_lft 14398sec\n" +
+		"    inet6 2001:db8:200:1:a0b1:c2d3:e4f5:1234/64 scope global temporary dynamic\n" +
+		"       valid_lft 86398sec preferred_lft 14398sec\n" +
+		"    inet6 2001:db8:200:1:a0b1:c2d3:e4f5:9999/64 scope global temporary deprecated dynamic\n" +
+		"       valid_lft 86398sec preferred_lft 0sec\n" +
+		"    inet6 fe80::11:22ff:fe33:4455/64 scope link\n" +
+		"3: tun6to4: <NOARP,UP,LOWER_UP> mtu 1480 qdisc noqueue state UNKNOWN\n" +
+		"    link/none\n" +
+		"    inet6 2002:c0a8:117::1/16 scope global\n";
+
+	private final static String IP_ROUTE_OUTPUT =
+		"default via 192.168.1.1 dev eth0\n" +
+		"192.168.1.0/24 dev eth0  proto kernel  scope link  src 192.168.1.23\n";
+
+	private final static String IP6_ROUTE_OUTPUT =
+		"2001:db8:200:1::/64 dev eth0  proto kernel  metric 256\n" +
+		"2002::/16 dev tun6to4  proto kernel  metric 256\n" +
+		"fe80::/64 dev eth0  proto kernel  metric 256\n" +
+		"default via fe80::1 dev eth0  proto ra  metric 1024\n";
+
+	/** Destination, expected source with temporary addresses preferred,
+	 * expected source with public addresses preferred (null for none). */
+	private final static String[][] CASES = {
+		// rule 7 decides between the public and the temporary address, rule 3 rules out the deprecated one
+		{ "2001:db8:200:1::5", "2001:db8:200:1:a0b1:c2d3:e4f5:1234", "2001:db8:200:1:11:22ff:fe33:4455" },
+		{ "2a00:1450:4001:80b::200e", "2001:db8:200:1:a0b1:c2d3:e4f5:1234", "2001:db8:200:1:11:22ff:fe33:4455" },
+		// rule 1: the destination itself, even if deprecated
+		{ "2001:db8:200:1:a0b1:c2d3:e4f5:9999", "2001:db8:200:1:a0b1:c2d3:e4f5:9999", "2001:db8:200:1:a0b1:c2d3:e4f5:9999" },
+		// rule 2: link-local scope
+		{ "fe80::1", "fe80::11:22ff:fe33:4455", "fe80::11:22ff:fe33:4455" },
+		// rule 6: matching 6to4 label
+		{ "2002:1fc1:a27a:1::1", "2002:c0a8:117::1", "2002:c0a8:117::1" },
+		// IPv4
+		{ "31.193.162.123", "192.168.1.23", "192.168.1.23" },
+	};
+
+	/** Destinations that must not get a source address without any IPv4 route. */
+	private final static String[][] CASES_WITHOUT_IPV4_ROUTES = {
+		{ "31.193.162.123", null, null },
+		{ "192.168.1.5", null, null },
+		{ "2001:db8:200:1::5", "2001:db8:200:1:a0b1:c2d3:e4f5:1234", "2001:db8:200:1:11:22ff:fe33:4455" },
+	};
+
+	/** Runs the checks and the benchmark. Optional argument: number of selections. */
+	public static void main(String[] args) throws Exception {
+		int numSelections = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		NetworkSnapshot snapshot = capture(IP_ROUTE_OUTPUT);
+		check(snapshot, CASES);
+		check(capture(""), CASES_WITHOUT_IPV4_ROUTES);
+		System.out.println("All " + (CASES.length + CASES_WITHOUT_IPV4_ROUTES.length) + " destinations got the expected source addresses");
+
+		SourceAddressSelector selector = new SourceAddressSelector(snapshot, Boolean.TRUE);
+		PackedAddress[] destinations = new PackedAddress[CASES.length];
+		for (int i=0; i<destinations.length; i++)
+			destinations[i] = PackedAddress.parse(CASES[i][0]);
+		for (int i=0; i<numSelections/10; i++)
+			selector.selectSourceAddress(destinations[i % destinations.length]);
+		long start = System.nanoTime();
+		for (int i=0; i<numSelections; i++)
+			selector.selectSourceAddress(destinations[i % destinations.length]);
+		long time = System.nanoTime() - start;
+		System.out.println(numSelections + " selections in " + time / 1000000 + "ms: " +
+				time / numSelections + "ns per selection");
+		Command.setExecutor(new RuntimeCommandExecutor());
+	}
+
+	/** Captures a snapshot from the recordings with the given IPv4 routes. */
+	private static NetworkSnapshot capture(String ipv4Routes) throws Exception {
+		RecordedCommandExecutor executor = new RecordedCommandExecutor(0, 0);
+		executor.record(IP + " addr", IP_ADDR_OUTPUT, 0);
+		executor.record(IP + " route", ipv4Routes, 0);
+		executor.record(IP + " -6 route", IP6_ROUTE_OUTPUT, 0);
+		executor.setDefaultRecording(new RecordedCommandExecutor.Recording("", "", 0, 0));
+		Command.setExecutor(executor);
+		Command.invalidateCache();
+		LinuxIPCommandHelper.setIPCommandLocation(IP);
+		// use the recorded routes instead of the ones of the machine running the benchmark
+		LinuxIPCommandHelper.setReadRoutesFromProcfs(false);
+		return NetworkSnapshot.capture();
+	}
+
+	private static void check(NetworkSnapshot snapshot, String[][] cases) {
+		for (int preference=1; preference<=2; preference++) {
+			SourceAddressSelector selector = new SourceAddressSelector(snapshot, Boolean.valueOf(preference == 1));
+			for (String[] c : cases) {
+				InetAddressWithNetmask source = selector.selectSourceAddress(PackedAddress.parse(c[0]));
+				String selected = source != null ? PackedAddress.fromInetAddress(source.address,
+						source.address.getAddress().length * 8).toString() : null;
+				if (selected == null ? c[preference] != null : !selected.equals(c[preference]))
+					throw new IllegalStateException("Selected " + selected + " instead of " + c[preference] +
+							" for " + c[0] + (preference == 1 ? " preferring temporary addresses" : ""));
+			}
+		}
+	}
+}
@@ -0,0 +1,21 @@
+# Build with "ndk-build" in the project directory, the resulting libraries
+# end up in libs/<abi>/ and are packaged by the standard ant build.
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+LOCAL_MODULE := ipv6config-netlink
+LOCAL_SRC_FILES := netlink.c
+LOCAL_CFLAGS := -Wall
+include $(BUILD_SHARED_LIBRARY)
+
+# The privileged helper for NetlinkBatch is an executable, but named like a
+# library so that the package installer extracts it to the native library
+# directory, from where it can be run in the root shell. Android 5 and later
+# only execute position independent executables (supported since Android 4.1).
+include $(CLEAR_VARS)
+LOCAL_MODULE := ipv6config-nlhelper
+LOCAL_MODULE_FILENAME := libipv6config-nlhelper.so
+LOCAL_SRC_FILES := nlhelper.c
+LOCAL_CFLAGS := -Wall -fPIE
+LOCAL_LDFLAGS := -fPIE -pie
+include $(BUILD_EXECUTABLE)
@@ -0,0 +1,390 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+/* Minimal rtnetlink client for NetlinkHelper: dumps links, addresses and
+ * routes directly into primitive Java arrays, without the kernel formatting
+ * them as text (procfs, "ip") and us parsing them back.
+ *
+ * The record layouts must match the constants in NetlinkHelper.java.
+ */
+
+#include <jni.h>
+#include <errno.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/socket.h>
+#include <linux/netlink.h>
+#include <linux/rtnetlink.h>
+#include <linux/if.h>
+#include <linux/if_addr.h>
+
+#ifndef SOCK_CLOEXEC
+#define SOCK_CLOEXEC 0
+#endif
+/* these are enum values in the kernel headers and missing in older NDKs */
+#define NL_IFLA_CARRIER 33
+#define NL_IFA_FLAGS 8
+#define NL_IFNAMSIZ 16
+
+/* link records */
+#define LINK_INDEX 0
+#define LINK_FLAGS 1
+#define LINK_MTU 2
+#define LINK_TYPE 3
+#define LINK_OPERSTATE 4
+#define LINK_CARRIER 5
+#define LINK_HWADDR_LENGTH 6
+#define LINK_INTS 7
+#define LINK_NAME_OFFSET 0
+#define LINK_HWADDR_OFFSET NL_IFNAMSIZ
+#define LINK_HWADDR_MAX 16
+#define LINK_BYTES (NL_IFNAMSIZ + LINK_HWADDR_MAX)
+
+/* address records */
+#define ADDR_INDEX 0
+#define ADDR_FAMILY 1
+#define ADDR_PREFIX_LENGTH 2
+#define ADDR_FLAGS 3
+#define ADDR_SCOPE 4
+#define ADDR_PREFERRED_LIFETIME 5
+#define ADDR_VALID_LIFETIME 6
+#define ADDR_INTS 7
+#define ADDR_BYTES 16
+
+/* route records */
+#define ROUTE_FAMILY 0
+#define ROUTE_PREFIX_LENGTH 1
+#define ROUTE_TABLE 2
+#define ROUTE_PROTOCOL 3
+#define ROUTE_SCOPE 4
+#define ROUTE_TYPE 5
+#define ROUTE_FLAGS 6
+#define ROUTE_OUTPUT_INDEX 7
+#define ROUTE_METRIC 8
+#define ROUTE_HAS_GATEWAY 9
+#define ROUTE_INTS 10
+#define ROUTE_DESTINATION_OFFSET 0
+#define ROUTE_GATEWAY_OFFSET 16
+#define ROUTE_BYTES 32
+
+#define COUNT_LINKS 0
+#define COUNT_ADDRESSES 1
+#define COUNT_ROUTES 2
+
+/* returned when at least one of the arrays was too small, counts then
+ * hold the required number of records */
+#define RESULT_OVERFLOW 1
+
+#define RECEIVE_BUFFER_SIZE 32768
+
+struct arrays {
+	jint *linkInts, *addrInts, *routeInts;
+	jbyte *linkBytes, *addrBytes, *routeBytes;
+	jsize maxLinks, maxAddrs, maxRoutes;
+	jint counts[3];
+};
+
+static void parse_link(struct arrays *a, struct nlmsghdr *h) {
+	struct ifinfomsg *ifi = NLMSG_DATA(h);
+	int len = IFLA_PAYLOAD(h);
+	struct rtattr *rta;
+	jint *ints;
+	jbyte *bytes;
+	int n = a->counts[COUNT_LINKS]++;
+
+	if (n >= a->maxLinks)
+		return;
+	ints = a->linkInts + n * LINK_INTS;
+	bytes = a->linkBytes + n * LINK_BYTES;
+	memset(bytes, 0, LINK_BYTES);
+	ints[LINK_INDEX] = ifi->ifi_index;
+	ints[LINK_FLAGS] = ifi->ifi_flags;
+	ints[LINK_TYPE] = ifi->ifi_type;
+	ints[LINK_MTU] = 0;
+	ints[LINK_OPERSTATE] = -1;
+	ints[LINK_CARRIER] = -1;
+	ints[LINK_HWADDR_LENGTH] = 0;
+
+	for (rta = IFLA_RTA(ifi); RTA_OK(rta, len); rta = RTA_NEXT(rta, len)) {
+		int alen = RTA_PAYLOAD(rta);
+		switch (rta->rta_type) {
+		case IFLA_IFNAME:
+			memcpy(bytes + LINK_NAME_OFFSET, RTA_DATA(rta), alen < NL_IFNAMSIZ ? alen : NL_IFNAMSIZ - 1);
+			break;
+		case IFLA_ADDRESS:
+			if (alen > LINK_HWADDR_MAX)
+				alen = LINK_HWADDR_MAX;
+			memcpy(bytes + LINK_HWADDR_OFFSET, RTA_DATA(rta), alen);
+			ints[LINK_HWADDR_LENGTH] = alen;
+			break;
+		case IFLA_MTU:
+			ints[LINK_MTU] = *(unsigned int *) RTA_DATA(rta);
+			break;
+		case IFLA_OPERSTATE:
+			ints[LINK_OPERSTATE] = *(unsigned char *) RTA_DATA(rta);
+			break;
+		case NL_IFLA_CARRIER:
+			ints[LINK_CARRIER] = *(unsigned char *) RTA_DATA(rta);
+			break;
+		}
+	}
+}
+
+static void parse_addr(struct arrays *a, struct nlmsghdr *h) {
+	struct ifaddrmsg *ifa = NLMSG_DATA(h);
+	int len = IFA_PAYLOAD(h);
+	struct rtattr *rta;
+	void *address = NULL, *local = NULL;
+	int addressLen = 0, localLen = 0;
+	jint *ints;
+	jbyte *bytes;
+	int n = a->counts[COUNT_ADDRESSES]++;
+
+	if (n >= a->maxAddrs)
+		return;
+	ints = a->addrInts + n * ADDR_INTS;
+	bytes = a->addrBytes + n * ADDR_BYTES;
+	memset(bytes, 0, ADDR_BYTES);
+	ints[ADDR_INDEX] = ifa->ifa_index;
+	ints[ADDR_FAMILY] = ifa->ifa_family;
+	ints[ADDR_PREFIX_LENGTH] = ifa->ifa_prefixlen;
+	ints[ADDR_FLAGS] = ifa->ifa_flags;
+	ints[ADDR_SCOPE] = ifa->ifa_scope;
+	ints[ADDR_PREFERRED_LIFETIME] = -1;
+	ints[ADDR_VALID_LIFETIME] = -1;
+
+	for (rta = IFA_RTA(ifa); RTA_OK(rta, len); rta = RTA_NEXT(rta, len)) {
+		switch (rta->rta_type) {
+		case IFA_ADDRESS:
+			address = RTA_DATA(rta);
+			addressLen = RTA_PAYLOAD(rta);
+			break;
+		case IFA_LOCAL:
+			local = RTA_DATA(rta);
+			localLen = RTA_PAYLOAD(rta);
+			break;
+		case IFA_CACHEINFO: {
+			struct ifa_cacheinfo *ci = RTA_DATA(rta);
+			ints[ADDR_PREFERRED_LIFETIME] = ci->ifa_prefered;
+			ints[ADDR_VALID_LIFETIME] = ci->ifa_valid;
+			break;
+		}
+		case NL_IFA_FLAGS:
+			/* the complete 32 bit flags, if the kernel is new enough */
+			ints[ADDR_FLAGS] = *(unsigned int *) RTA_DATA(rta);
+			break;
+		}
+	}
+	/* as with "ip addr", the local address takes precedence (it differs from
+	 * IFA_ADDRESS for the peer address of point-to-point links) */
+	if (local != NULL) {
+		address = local;
+		addressLen = localLen;
+	}
+	if (address != NULL)
+		memcpy(bytes, address, addressLen < ADDR_BYTES ? addressLen : ADDR_BYTES);
+}
+
+static void parse_route(struct arrays *a, struct nlmsghdr *h) {
+	struct rtmsg *rtm = NLMSG_DATA(h);
+	int len = RTM_PAYLOAD(h);
+	struct rtattr *rta;
+	jint *ints;
+	jbyte *bytes;
+	int n = a->counts[COUNT_ROUTES]++;
+
+	if (n >= a->maxRoutes)
+		return;
+	ints = a->routeInts + n * ROUTE_INTS;
+	bytes = a->routeBytes + n * ROUTE_BYTES;
+	memset(bytes, 0, ROUTE_BYTES);
+	ints[ROUTE_FAMILY] = rtm->rtm_family;
+	ints[ROUTE_PREFIX_LENGTH] = rtm->rtm_dst_len;
+	ints[ROUTE_TABLE] = rtm->rtm_table;
+	ints[ROUTE_PROTOCOL] = rtm->rtm_protocol;
+	ints[ROUTE_SCOPE] = rtm->rtm_scope;
+	ints[ROUTE_TYPE] = rtm->rtm_type;
+	ints[ROUTE_FLAGS] = rtm->rtm_flags;
+	ints[ROUTE_OUTPUT_INDEX] = 0;
+	ints[ROUTE_METRIC] = 0;
+	ints[ROUTE_HAS_GATEWAY] = 0;
+
+	for (rta = RTM_RTA(rtm); RTA_OK(rta, len); rta = RTA_NEXT(rta, len)) {
+		int alen = RTA_PAYLOAD(rta) < 16 ? RTA_PAYLOAD(rta) : 16;
+		switch (rta->rta_type) {
+		case RTA_DST:
+			memcpy(bytes + ROUTE_DESTINATION_OFFSET, RTA_DATA(rta), alen);
+			break;
+		case RTA_GATEWAY:
+			memcpy(bytes + ROUTE_GATEWAY_OFFSET, RTA_DATA(rta), alen);
+			ints[ROUTE_HAS_GATEWAY] = 1;
+			break;
+		case RTA_OIF:
+			ints[ROUTE_OUTPUT_INDEX] = *(int *) RTA_DATA(rta);
+			break;
+		case RTA_PRIORITY:
+			ints[ROUTE_METRIC] = *(unsigned int *) RTA_DATA(rta);
+			break;
+		case RTA_TABLE:
+			/* tables above 255 only fit here */
+			ints[ROUTE_TABLE] = *(unsigned int *) RTA_DATA(rta);
+			break;
+		}
+	}
+}
+
+/* Sends a single dump request and parses all answers. Returns 0 on success
+ * or a negative errno value. */
+static int dump(int fd, int type, int seq, char *buf, struct arrays *a) {
+	struct {
+		struct nlmsghdr nlh;
+		union {
+			struct ifinfomsg ifi;
+			struct ifaddrmsg ifa;
+			struct rtmsg rtm;
+		} body;
+	} req;
+	struct sockaddr_nl kernel;
+
+	memset(&req, 0, sizeof(req));
+	req.nlh.nlmsg_type = type;
+	req.nlh.nlmsg_flags = NLM_F_REQUEST | NLM_F_DUMP;
+	req.nlh.nlmsg_seq = seq;
+	/* all message bodies start with the address family, AF_UNSPEC selects all */
+	if (type == RTM_GETLINK)
+		req.nlh.nlmsg_len = NLMSG_LENGTH(sizeof(struct ifinfomsg));
+	else if (type == RTM_GETADDR)
+		req.nlh.nlmsg_len = NLMSG_LENGTH(sizeof(struct ifaddrmsg));
+	else
+		req.nlh.nlmsg_len = NLMSG_LENGTH(sizeof(struct rtmsg));
+
+	memset(&kernel, 0, sizeof(kernel));
+	kernel.nl_family = AF_NETLINK;
+	if (sendto(fd, &req, req.nlh.nlmsg_len, 0, (struct sockaddr *) &kernel, sizeof(kernel)) < 0)
+		return -errno;
+
+	for (;;) {
+		struct nlmsghdr *h;
+		int len = recv(fd, buf, RECEIVE_BUFFER_SIZE, 0);
+		if (len < 0) {
+			if (errno == EINTR)
+				continue;
+			return -errno;
+		}
+		if (len == 0)
+			return -EIO;
+
+		for (h = (struct nlmsghdr *) buf; NLMSG_OK(h, len); h = NLMSG_NEXT(h, len)) {
+			if (h->nlmsg_seq != (unsigned int) seq)
+				continue;
+			switch (h->nlmsg_type) {
+			case NLMSG_DONE:
+				return 0;
+			case NLMSG_ERROR: {
+				struct nlmsgerr *err = NLMSG_DATA(h);
+				return err->error < 0 ? err->error : -EIO;
+			}
+			case RTM_NEWLINK:
+				parse_link(a, h);
+				break;
+			case RTM_NEWADDR:
+				parse_addr(a, h);
+				break;
+			case RTM_NEWROUTE:
+				parse_route(a, h);
+				break;
+			}
+		}
+	}
+}
+
+/* private static native int nativeDump(int[] linkInts, byte[] linkBytes,
+ *     int[] addrInts, byte[] addrBytes, int[] routeInts, byte[] routeBytes,
+ *     int[] counts); */
+JNIEXPORT jint JNICALL Java_to_doc_android_ipv6config_NetlinkHelper_nativeDump(JNIEnv *env, jclass clazz,
+		jintArray linkInts, jbyteArray linkBytes, jintArray addrInts, jbyteArray addrBytes,
+		jintArray routeInts, jbyteArray routeBytes, jintArray counts) {
+	struct arrays a;
+	struct sockaddr_nl local;
+	char *buf;
+	int fd, ret;
+
+	(void) clazz;
+	memset(&a, 0, sizeof(a));
+	a.maxLinks = (*env)->GetArrayLength(env, linkInts) / LINK_INTS;
+	if ((*env)->GetArrayLength(env, linkBytes) / LINK_BYTES < a.maxLinks)
+		a.maxLinks = (*env)->GetArrayLength(env, linkBytes) / LINK_BYTES;
+	a.maxAddrs = (*env)->GetArrayLength(env, addrInts) / ADDR_INTS;
+	if ((*env)->GetArrayLength(env, addrBytes) / ADDR_BYTES < a.maxAddrs)
+		a.maxAddrs = (*env)->GetArrayLength(env, addrBytes) / ADDR_BYTES;
+	a.maxRoutes = (*env)->GetArrayLength(env, routeInts) / ROUTE_INTS;
+	if ((*env)->GetArrayLength(env, routeBytes) / ROUTE_BYTES < a.maxRoutes)
+		a.maxRoutes = (*env)->GetArrayLength(env, routeBytes) / ROUTE_BYTES;
+	if ((*env)->GetArrayLength(env, counts) < 3)
+		return -EINVAL;
+
+	fd = socket(AF_NETLINK, SOCK_DGRAM | SOCK_CLOEXEC, NETLINK_ROUTE);
+	if (fd < 0)
+		return -errno;
+	memset(&local, 0, sizeof(local));
+	local.nl_family = AF_NETLINK;
+	if (bind(fd, (struct sockaddr *) &local, sizeof(local)) < 0) {
+		ret = -errno;
+		close(fd);
+		return ret;
+	}
+	buf = malloc(RECEIVE_BUFFER_SIZE);
+	if (buf == NULL) {
+		close(fd);
+		return -ENOMEM;
+	}
+
+	a.linkInts = (*env)->GetIntArrayElements(env, linkInts, NULL);
+	a.linkBytes = (*env)->GetByteArrayElements(env, linkBytes, NULL);
+	a.addrInts = (*env)->GetIntArrayElements(env, addrInts, NULL);
+	a.addrBytes = (*env)->GetByteArrayElements(env, addrBytes, NULL);
+	a.routeInts = (*env)->GetIntArrayElements(env, routeInts, NULL);
+	a.routeBytes = (*env)->GetByteArrayElements(env, routeBytes, NULL);
+	if (a.linkInts == NULL || a.linkBytes == NULL || a.addrInts == NULL ||
+		a.addrBytes == NULL || a.routeInts == NULL || a.routeBytes == NULL) {
+		ret = -ENOMEM;
+	} else {
+		/* the kernel only allows one dump at a time per socket, so these
+		 * run one after another over the same socket */
+		ret = dump(fd, RTM_GETLINK, 1, buf, &a);
+		if (ret == 0)
+			ret = dump(fd, RTM_GETADDR, 2, buf, &a);
+		if (ret == 0)
+			ret = dump(fd, RTM_GETROUTE, 3, buf, &a);
+		if (ret == 0 && (a.counts[COUNT_LINKS] > a.maxLinks ||
+				a.counts[COUNT_ADDRESSES] > a.maxAddrs || a.counts[COUNT_ROUTES] > a.maxRoutes))
+			ret = RESULT_OVERFLOW;
+	}
+
+	if (a.linkInts != NULL)
+		(*env)->ReleaseIntArrayElements(env, linkInts, a.linkInts, 0);
+	if (a.linkBytes != NULL)
+		(*env)->ReleaseByteArrayElements(env, linkBytes, a.linkBytes, 0);
+	if (a.addrInts != NULL)
+		(*env)->ReleaseIntArrayElements(env, addrInts, a.addrInts, 0);
+	if (a.addrBytes != NULL)
+		(*env)->ReleaseByteArrayElements(env, addrBytes, a.addrBytes, 0);
+	if (a.routeInts != NULL)
+		(*env)->ReleaseIntArrayElements(env, routeInts, a.routeInts, 0);
+	if (a.routeBytes != NULL)
+		(*env)->ReleaseByteArrayElements(env, routeBytes, a.routeBytes, 0);
+	(*env)->SetIntArrayRegion(env, counts, 0, 3, a.counts);
+
+	free(buf);
+	close(fd);
+	return ret;
+}
@@ -0,0 +1,366 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+/* Privileged helper for NetlinkBatch: applies a list of link, address and
+ * route changes via rtnetlink. It is started (once per batch) in the root
+ * shell, because modifications need CAP_NET_ADMIN which the app process
+ * doesn't have.
+ *
+ * Usage: nlhelper [-s] OPERATION ARGS... [OPERATION ARGS...]...
+ *   tunnel-add NAME LOCAL_IPV4 TTL   create a SIT tunnel with remote "any"
+ *   tunnel-del NAME                  delete a (tunnel) interface
+ *   link-up NAME MTU                 set interface up, MTU 0 keeps the current
+ *   link-down NAME                   set interface down
+ *   addr-add NAME ADDRESS/PREFIXLEN
+ *   addr-del NAME ADDRESS/PREFIXLEN
+ *   route-add NAME|- DEST/PREFIXLEN GATEWAY|- METRIC
+ *   route-del NAME|- DEST/PREFIXLEN GATEWAY|- METRIC
+ *
+ * All operations are sent with as few send() calls as possible, each
+ * message requesting an acknowledgement: only operations that need the
+ * index of an interface created earlier in the same invocation start a new
+ * batch. For each operation, one line "INDEX ERRNO" is printed (0 for
+ * success, -1 if not executed). With -s, no further batch is sent after a
+ * failure. The exit code is 0 if all operations succeeded, 1 otherwise,
+ * 2 for invalid arguments, and 3 (without any result lines) if the
+ * netlink socket can not be opened, so that the caller can fall back to
+ * other means.
+ */
+
+#include <errno.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <arpa/inet.h>
+#include <net/if.h>
+#include <sys/socket.h>
+#include <linux/netlink.h>
+#include <linux/rtnetlink.h>
+
+/* these are enum values in the kernel headers and missing in older NDKs */
+#define NL_IFLA_LINKINFO 18
+#define NL_IFLA_INFO_KIND 1
+#define NL_IFLA_INFO_DATA 2
+#define NL_IFLA_IPTUN_LOCAL 2
+#define NL_IFLA_IPTUN_REMOTE 3
+#define NL_IFLA_IPTUN_TTL 4
+
+#define MAX_OPERATIONS 64
+#define BATCH_BUFFER_SIZE 16384
+#define RECEIVE_BUFFER_SIZE 8192
+#define NOT_EXECUTED -1
+#define EXIT_INVALID_ARGUMENTS 2
+#define EXIT_NO_NETLINK 3
+
+enum op_type { TUNNEL_ADD, TUNNEL_DEL, LINK_UP, LINK_DOWN, ADDR_ADD, ADDR_DEL, ROUTE_ADD, ROUTE_DEL };
+
+static const struct {
+	const char *name;
+	enum op_type type;
+	int numArgs;
+} op_types[] = {
+	{ "tunnel-add", TUNNEL_ADD, 3 },
+	{ "tunnel-del", TUNNEL_DEL, 1 },
+	{ "link-up", LINK_UP, 2 },
+	{ "link-down", LINK_DOWN, 1 },
+	{ "addr-add", ADDR_ADD, 2 },
+	{ "addr-del", ADDR_DEL, 2 },
+	{ "route-add", ROUTE_ADD, 4 },
+	{ "route-del", ROUTE_DEL, 4 },
+};
+
+struct op {
+	enum op_type type;
+	char **args;
+	int result;
+};
+
+struct batch {
+	char buf[BATCH_BUFFER_SIZE] __attribute__((aligned(NLMSG_ALIGNTO)));
+	int len;
+	int first, count;	/* range of operations in this batch */
+};
+
+struct prefix {
+	int family;
+	int len;
+	unsigned char addr[16];
+};
+
+static int parse_address(const char *str, struct prefix *p) {
+	p->family = strchr(str, ':') != NULL ? AF_INET6 : AF_INET;
+	p->len = p->family == AF_INET6 ? 16 : 4;
+	memset(p->addr, 0, sizeof(p->addr));
+	return inet_pton(p->family, str, p->addr) == 1 ? 0 : -EINVAL;
+}
+
+/* parses "address/prefixlen" into p and returns the prefix length */
+static int parse_prefix(const char *str, struct prefix *p) {
+	char tmp[64];
+	char *slash;
+	int plen;
+
+	strncpy(tmp, str, sizeof(tmp) - 1);
+	tmp[sizeof(tmp) - 1] = 0;
+	slash = strchr(tmp, '/');
+	if (slash != NULL)
+		*slash = 0;
+	if (parse_address(tmp, p) < 0)
+		return -EINVAL;
+	plen = slash != NULL ? atoi(slash + 1) : 8 * p->len;
+	if (plen < 0 || plen > 8 * p->len)
+		return -EINVAL;
+	return plen;
+}
+
+static struct rtattr *add_attr(struct nlmsghdr *h, int type, const void *data, int len) {
+	struct rtattr *rta = (struct rtattr *) (((char *) h) + NLMSG_ALIGN(h->nlmsg_len));
+	rta->rta_type = type;
+	rta->rta_len = RTA_LENGTH(len);
+	if (len > 0)
+		memcpy(RTA_DATA(rta), data, len);
+	h->nlmsg_len = NLMSG_ALIGN(h->nlmsg_len) + RTA_ALIGN(rta->rta_len);
+	return rta;
+}
+
+static void end_nested(struct nlmsghdr *h, struct rtattr *nest) {
+	nest->rta_len = ((char *) h) + h->nlmsg_len - (char *) nest;
+}
+
+/* Appends the message for operation op (with sequence number seq) to the
+ * batch. Returns 0, -ENODEV if an interface does not exist (yet), or
+ * another negative errno value for invalid arguments. */
+static int append(struct batch *b, struct op *op, int seq) {
+	struct nlmsghdr *h = (struct nlmsghdr *) (b->buf + b->len);
+	const char *name = op->args[0];
+	int index = 0;
+
+	/* messages are small, but make sure that even the largest one fits */
+	if (b->len + 512 > BATCH_BUFFER_SIZE)
+		return -ENOBUFS;
+	if (strcmp(name, "-") != 0 && op->type != TUNNEL_ADD && op->type != TUNNEL_DEL &&
+			op->type != LINK_UP && op->type != LINK_DOWN) {
+		index = if_nametoindex(name);
+		if (index == 0)
+			return -ENODEV;
+	}
+
+	memset(h, 0, 512);
+	h->nlmsg_seq = seq;
+	h->nlmsg_flags = NLM_F_REQUEST | NLM_F_ACK;
+
+	switch (op->type) {
+	case TUNNEL_ADD:
+	case TUNNEL_DEL:
+	case LINK_UP:
+	case LINK_DOWN: {
+		struct ifinfomsg *ifi = NLMSG_DATA(h);
+		h->nlmsg_len = NLMSG_LENGTH(sizeof(*ifi));
+		ifi->ifi_family = AF_UNSPEC;
+		/* the kernel looks up existing interfaces by name when no index is given */
+		add_attr(h, IFLA_IFNAME, name, strlen(name) + 1);
+		if (op->type == TUNNEL_ADD) {
+			struct prefix local;
+			struct rtattr *linkinfo, *data;
+			unsigned int remote = 0;
+			unsigned char ttl = atoi(op->args[2]);
+			if (parse_address(op->args[1], &local) < 0 || local.family != AF_INET)
+				return -EINVAL;
+			h->nlmsg_type = RTM_NEWLINK;
+			h->nlmsg_flags |= NLM_F_CREATE | NLM_F_EXCL;
+			linkinfo = add_attr(h, NL_IFLA_LINKINFO, NULL, 0);
+			add_attr(h, NL_IFLA_INFO_KIND, "sit", 3);
+			data = add_attr(h, NL_IFLA_INFO_DATA, NULL, 0);
+			add_attr(h, NL_IFLA_IPTUN_LOCAL, local.addr, 4);
+			add_attr(h, NL_IFLA_IPTUN_REMOTE, &remote, 4);
+			add_attr(h, NL_IFLA_IPTUN_TTL, &ttl, 1);
+			end_nested(h, data);
+			end_nested(h, linkinfo);
+		} else if (op->type == TUNNEL_DEL) {
+			h->nlmsg_type = RTM_DELLINK;
+		} else {
+			h->nlmsg_type = RTM_NEWLINK;
+			ifi->ifi_change = IFF_UP;
+			ifi->ifi_flags = op->type == LINK_UP ? IFF_UP : 0;
+			if (op->type == LINK_UP) {
+				unsigned int mtu = atoi(op->args[1]);
+				if (mtu > 0)
+					add_attr(h, IFLA_MTU, &mtu, 4);
+			}
+		}
+		break;
+	}
+	case ADDR_ADD:
+	case ADDR_DEL: {
+		struct ifaddrmsg *ifa = NLMSG_DATA(h);
+		struct prefix p;
+		int plen = parse_prefix(op->args[1], &p);
+		if (plen < 0 || index == 0)
+			return -EINVAL;
+		h->nlmsg_len = NLMSG_LENGTH(sizeof(*ifa));
+		h->nlmsg_type = op->type == ADDR_ADD ? RTM_NEWADDR : RTM_DELADDR;
+		if (op->type == ADDR_ADD)
+			h->nlmsg_flags |= NLM_F_CREATE | NLM_F_EXCL;
+		ifa->ifa_family = p.family;
+		ifa->ifa_prefixlen = plen;
+		ifa->ifa_index = index;
+		add_attr(h, IFA_LOCAL, p.addr, p.len);
+		add_attr(h, IFA_ADDRESS, p.addr, p.len);
+		break;
+	}
+	case ROUTE_ADD:
+	case ROUTE_DEL: {
+		struct rtmsg *rtm = NLMSG_DATA(h);
+		struct prefix dest, gateway;
+		unsigned int metric = atoi(op->args[3]);
+		int hasGateway = strcmp(op->args[2], "-") != 0;
+		int plen = parse_prefix(op->args[1], &dest);
+		if (plen < 0 || (hasGateway && (parse_address(op->args[2], &gateway) < 0 || gateway.family != dest.family)))
+			return -EINVAL;
+		h->nlmsg_len = NLMSG_LENGTH(sizeof(*rtm));
+		h->nlmsg_type = op->type == ROUTE_ADD ? RTM_NEWROUTE : RTM_DELROUTE;
+		rtm->rtm_family = dest.family;
+		rtm->rtm_dst_len = plen;
+		rtm->rtm_table = RT_TABLE_MAIN;
+		rtm->rtm_type = RTN_UNICAST;
+		if (op->type == ROUTE_ADD) {
+			/* the same defaults as "ip route add" */
+			h->nlmsg_flags |= NLM_F_CREATE | NLM_F_EXCL;
+			rtm->rtm_protocol = RTPROT_BOOT;
+			rtm->rtm_scope = hasGateway ? RT_SCOPE_UNIVERSE : RT_SCOPE_LINK;
+		} else {
+			rtm->rtm_scope = RT_SCOPE_NOWHERE;
+		}
+		if (plen > 0)
+			add_attr(h, RTA_DST, dest.addr, dest.len);
+		if (hasGateway)
+			add_attr(h, RTA_GATEWAY, gateway.addr, gateway.len);
+		if (index > 0)
+			add_attr(h, RTA_OIF, &index, 4);
+		if (metric > 0)
+			add_attr(h, RTA_PRIORITY, &metric, 4);
+		break;
+	}
+	}
+
+	b->len += NLMSG_ALIGN(h->nlmsg_len);
+	b->count++;
+	return 0;
+}
+
+/* Sends all messages of the batch with a single send() and waits for the
+ * acknowledgements of all of them. Returns 0 if all succeeded. */
+static int flush(int fd, struct batch *b, struct op *ops) {
+	static char buf[RECEIVE_BUFFER_SIZE] __attribute__((aligned(NLMSG_ALIGNTO)));
+	int pending = b->count, failed = 0;
+
+	if (b->count == 0)
+		return 0;
+	if (send(fd, b->buf, b->len, 0) < 0) {
+		int i;
+		for (i = b->first; i < b->first + b->count; i++)
+			ops[i].result = errno;
+		failed = 1;
+		pending = 0;
+	}
+
+	while (pending > 0) {
+		struct nlmsghdr *h;
+		int len = recv(fd, buf, sizeof(buf), 0);
+		if (len < 0) {
+			if (errno == EINTR)
+				continue;
+			failed = 1;
+			break;
+		}
+		for (h = (struct nlmsghdr *) buf; NLMSG_OK(h, len); h = NLMSG_NEXT(h, len)) {
+			/* sequence numbers are the operation index + 1 */
+			int i = h->nlmsg_seq - 1;
+			if (h->nlmsg_type != NLMSG_ERROR || i < b->first || i >= b->first + b->count)
+				continue;
+			ops[i].result = -((struct nlmsgerr *) NLMSG_DATA(h))->error;
+			if (ops[i].result != 0)
+				failed = 1;
+			pending--;
+		}
+	}
+
+	b->first += b->count;
+	b->count = 0;
+	b->len = 0;
+	return failed;
+}
+
+int main(int argc, char **argv) {
+	static struct batch b;
+	struct op ops[MAX_OPERATIONS];
+	struct sockaddr_nl local;
+	int numOps = 0, stopOnFailure = 0, failed = 0;
+	int arg = 1, i, fd;
+
+	if (arg < argc && strcmp(argv[arg], "-s") == 0) {
+		stopOnFailure = 1;
+		arg++;
+	}
+	while (arg < argc) {
+		unsigned int t;
+		for (t = 0; t < sizeof(op_types) / sizeof(op_types[0]); t++)
+			if (strcmp(argv[arg], op_types[t].name) == 0)
+				break;
+		if (t == sizeof(op_types) / sizeof(op_types[0]) || arg + op_types[t].numArgs >= argc ||
+				numOps == MAX_OPERATIONS) {
+			fprintf(stderr, "Invalid or too many operations at '%s'\n", argv[arg]);
+			return EXIT_INVALID_ARGUMENTS;
+		}
+		ops[numOps].type = op_types[t].type;
+		ops[numOps].args = argv + arg + 1;
+		ops[numOps].result = NOT_EXECUTED;
+		numOps++;
+		arg += 1 + op_types[t].numArgs;
+	}
+
+	fd = socket(AF_NETLINK, SOCK_DGRAM, NETLINK_ROUTE);
+	memset(&local, 0, sizeof(local));
+	local.nl_family = AF_NETLINK;
+	if (fd < 0 || bind(fd, (struct sockaddr *) &local, sizeof(local)) < 0) {
+		perror("Unable to open netlink socket");
+		return EXIT_NO_NETLINK;
+	}
+
+	for (i = 0; i < numOps && !(failed && stopOnFailure); i++) {
+		int ret = append(&b, &ops[i], i + 1);
+		if (ret == -ENODEV || ret == -ENOBUFS) {
+			/* the interface may be created by a previous operation, or the
+			 * buffer is full: send what we have and try again */
+			failed |= flush(fd, &b, ops);
+			if (failed && stopOnFailure)
+				break;
+			ret = append(&b, &ops[i], i + 1);
+		}
+		if (ret < 0) {
+			ops[i].result = -ret;
+			failed = 1;
+			/* send the operations before this one, so that batches stay contiguous */
+			flush(fd, &b, ops);
+			b.first = i + 1;
+		}
+	}
+	failed |= flush(fd, &b, ops);
+	close(fd);
+
+	for (i = 0; i < numOps; i++) {
+		printf("%d %d\n", i, ops[i].result);
+		if (ops[i].result != 0)
+			failed = 1;
+	}
+	return failed ? 1 : 0;
+}
@@ -18,7 +18,11 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.util.HashMap;
-import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,90 +42,146 @@ public class Command {
 	/** Buffer size used for BufferReader and BufferWriter. */
 	private final static int IOBufferSize = 4192;
 
-	/** The following states of background processes are possible:
-	 * - key is not in map: command is not running and is not scheduled to run
-	 * - key maps to integer value 0: command is not running, but is waiting to be started
-	 * - key maps to integer value 1: command is currently running and no further runs are scheduled
-	 * - key maps to integer value 2: command is currently running and another run is scheduled
-	 * - key maps to integer value 3: command is continuously running in background and should not stop 
+	/** The following states of background processes are possible. If a
+	 * command is not in sysCommandList at all, it is not running and is not 
+	 * scheduled to run.
 	 */
-	private static HashMap<String, Integer> sysCommandList = new HashMap<String, Integer>();
+	private enum BackgroundState {
+		/** The command is not running, but is waiting to be started. */
+		SCHEDULED,
+		/** The command is currently running and no further runs are scheduled. */
+		RUNNING,
+		/** The command is currently running and another run is scheduled. */
+		RUNNING_RESCHEDULED,
+		/** The command is continuously running in background and should not stop. */
+		CONTINUOUS
+	}
+
+	/** Holds the state of all background and continuous commands. All state
+	 * transitions are done with atomic operations on the map instead of a
+	 * global lock.
+	 */
+	private static ConcurrentHashMap<String, BackgroundState> sysCommandList = 
+		new ConcurrentHashMap<String, BackgroundState>();
 	
-	/** For continuous commands, that is those with value=3 in sysCommandList,
-	 * this map holds the associated process object.
+	/** For continuous commands, that is those with state CONTINUOUS in 
+	 * sysCommandList, this map holds the associated process object. Starting
+	 * and stopping continuous commands is synchronized on this map.
 	 */
 	private static HashMap<String, Process> continuousCommands = new HashMap<String, Process>();
 
-	/** This is a helper method to execute processes in the background. It 
-	 * checks if that specific process is already running and waits for it to
-	 * terminate before starting another instance. When multiple requests for
-	 * background execution of the same command are made, they are queued and
-	 * executed only once.
+	/** For continuous commands started with a listener, this map holds the 
+	 * reader that pushes their output to the listeners. Also synchronized on
+	 * continuousCommands.
+	 */
+	private static HashMap<String, ContinuousCommandReader> continuousReaders = 
+		new HashMap<String, ContinuousCommandReader>();
+
+	/** Default delay before a command passed to executeExtraProcessCommand 
+	 * is actually executed (in milliseconds). All further requests for the 
+	 * same command within this time are coalesced into a single execution.
+	 */
+	public final static long DEFAULT_COALESCING_DELAY = 5 * 1000;
+
+	/** Number of threads used for executing background commands. */
+	private final static int BACKGROUND_THREADS = 2;
+
+	/** The shared executor for background commands, created on first use. */
+	private static ScheduledExecutorService backgroundExecutor = null;
+
+	/** The backend actually starting processes, see setExecutor. */
+	private static volatile CommandExecutor executor = new RuntimeCommandExecutor();
+
+	/** Default time for which the output of read-only commands is cached (in milliseconds). */
+	public final static long DEFAULT_CACHE_TTL = 2 * 1000;
+
+	/** Caches the output of read-only commands, see executeCommand. */
+	private static CommandResultCache resultCache = new CommandResultCache(DEFAULT_CACHE_TTL);
+
+	/** This class holds the result of a command executed in the root shell
+	 * session: its standard output, standard error output, and exit code.
+	 */
+	public static class CommandResult {
+		public String command;
+		/* Set to false if the command was skipped because a previous one in the same batch failed. */
+		public boolean executed = true;
+		/* The exit code of the command, or -1 if it has not been executed. */
+		public int exitCode;
+		public String stdout;
+		public String stderr;
+	}
+
+	/** This is a helper to execute processes in the background. It is 
+	 * scheduled on the shared background executor after the coalescing delay
+	 * and executes the command until no further run has been requested while
+	 * it was running. When multiple requests for background execution of the
+	 * same command are made, they are queued and executed only once.
 	 */
-	private static class AsyncRunHelper extends Thread {
+	private static class BackgroundRun implements Runnable {
 		String command;
 		boolean editsSystem;
 		boolean requiresSU;
+		long coalescingDelay;
 
-		public AsyncRunHelper(String command, boolean editsSystem, boolean requiresSU) {
-			super();
+		public BackgroundRun(String command, boolean editsSystem, boolean requiresSU, long coalescingDelay) {
 			this.command = command;
 			this.editsSystem = editsSystem;
 			this.requiresSU = requiresSU;
+			this.coalescingDelay = coalescingDelay;
 		}
 		
-		public void run()  {		
+		public void run() {
+			// starting the command right now; nobody else changes the state while SCHEDULED or RUNNING_RESCHEDULED
+			sysCommandList.put(command, BackgroundState.RUNNING);
 			try {
-				logger.finer("Sleeping for 5 seconds before executing " + command);
-				sleep(5 * 1000);
-				do { // do while value = 2 (rescheduling)
-					synchronized (sysCommandList) {
-						logger.finest("AsyncRunHelper.run Put in List " + command);
-						// starting the command right now, so set state to 1
-						sysCommandList.put(command, Integer.valueOf(1));
-					}				
-					// execute the command
-					logger.finer("Immediately BEFORE running Command " + command);
-					executeCommand(command, editsSystem, requiresSU, null);
-					logger.finer("Immediately AFTER running Command " + command);
-					synchronized (sysCommandList) {
-						logger.finest("AsyncRunHelper.run remove command now: " + command);
-						// if the state is still 1 and hasn't been changed to 2, then remove from the list
-						if (getSysCommandState(command) == 1)
-							sysCommandList.remove(command);
-					}				
-				} while (getSysCommandState(command) == 2);
+				logger.finer("Immediately BEFORE running Command " + command);
+				executeCommand(command, editsSystem, requiresSU, null);
+				logger.finer("Immediately AFTER running Command " + command);
 			} catch (Exception e) {
-				logger.log(Level.SEVERE, "Error at CommandThread.Run with command " + command, e);
+				logger.log(Level.SEVERE, "Error at BackgroundRun.run with command " + command, e);
+			}
+			
+			// if the state is still RUNNING and hasn't been changed to RUNNING_RESCHEDULED, then we are done
+			if (sysCommandList.remove(command, BackgroundState.RUNNING)) {
+				logger.finer("BackgroundRun finished with: " + command);
+			}
+			else if (sysCommandList.replace(command, BackgroundState.RUNNING_RESCHEDULED, BackgroundState.SCHEDULED)) {
+				logger.finer("BackgroundRun rescheduling: " + command);
+				getBackgroundExecutor().schedule(this, coalescingDelay, TimeUnit.MILLISECONDS);
+			}
+			else {
+				logger.warning("Command " + command + " in unexpected state " + sysCommandList.get(command) + 
+						" after background execution. This should not happen!");
 			}
-			logger.finer("AnsyncRunHelper_Finished with: " + command);
 		}
 	}
 	
-	private static int getSysCommandState(String command) {
-		synchronized (sysCommandList) {
-			if (sysCommandList.containsKey(command))
-				return sysCommandList.get(command).intValue();
-			else
-				return -1;
-		}
+	/** Returns the shared executor for background commands, creating it if necessary. */
+	private static synchronized ScheduledExecutorService getBackgroundExecutor() {
+		if (backgroundExecutor == null)
+			backgroundExecutor = Executors.newScheduledThreadPool(BACKGROUND_THREADS, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "IPv6Config-Background");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return backgroundExecutor;
 	}
 	
 	private static Process getContinuousProcess(String command) {
-		synchronized (sysCommandList) {
-			if (getSysCommandState(command) != 3) {
+		synchronized (continuousCommands) {
+			if (sysCommandList.get(command) != BackgroundState.CONTINUOUS) {
 				return null;
 			}
 			else {
-				synchronized (continuousCommands) {
-					if (! continuousCommands.containsKey(command)) {
-						logger.log(Level.WARNING, "Command " + command + " is in state 3 but has not stored process object, can not return reference. This should not happen!");
-						throw new InternalError("Command " + command + " is in state 3 but has not stored process object, can not return reference."); 
-					}
-					
-					logger.finer("Command " + command + " has already been started continuously, returning old handle");
-					return continuousCommands.get(command);
+				if (! continuousCommands.containsKey(command)) {
+					logger.log(Level.WARNING, "Command " + command + " is in state CONTINUOUS but has not stored process object, can not return reference. This should not happen!");
+					throw new InternalError("Command " + command + " is in state CONTINUOUS but has not stored process object, can not return reference."); 
 				}
+				
+				logger.finer("Command " + command + " has already been started continuously, returning old handle");
+				return continuousCommands.get(command);
 			}
 		}
 	}
@@ -129,32 +189,47 @@ public class Command {
 	/** Executed a command in the background. That is, this method returns 
 	 * immediately instead of waiting for the command execution to finish. The
 	 * command will be queued and not be executed in parallel to another one 
-	 * with the same command string.
+	 * with the same command string. It is executed after DEFAULT_COALESCING_DELAY.
 	 */
     public static void executeExtraProcessCommand(String systemCommand, boolean editsSystem, boolean requiresSU) 
     		throws ExitCodeException, IOException {
-		synchronized (sysCommandList) {
+    	executeExtraProcessCommand(systemCommand, editsSystem, requiresSU, DEFAULT_COALESCING_DELAY);
+    }
+	
+	/** Executed a command in the background. That is, this method returns 
+	 * immediately instead of waiting for the command execution to finish. The
+	 * command will be queued and not be executed in parallel to another one 
+	 * with the same command string.
+	 * 
+	 * @param coalescingDelay The time to wait before executing the command 
+	 *                        (in milliseconds). All requests for the same 
+	 *                        command within this time are coalesced into a
+	 *                        single execution, and requests made while it is
+	 *                        running are coalesced into a single re-run.
+	 */
+    public static void executeExtraProcessCommand(String systemCommand, boolean editsSystem, boolean requiresSU,
+    		long coalescingDelay) throws ExitCodeException, IOException {
+    	while (true) {
 			// only add if not already running or scheduled to run
-			if (!sysCommandList.containsKey(systemCommand)) {
-				logger.info("ADDING new syscommand " + systemCommand + " and starting thread");
-				sysCommandList.put(systemCommand, Integer.valueOf(0));
-				// new to the list, starting thread for this system command
-		    	AsyncRunHelper t = new AsyncRunHelper(systemCommand, editsSystem, requiresSU);
-				t.start();
-/*				ErrorLog.log("Content of systemCommandList at t.start of " + systemCommand);
-				Iterator it = sysCommandList.values().iterator();
-				while (it.hasNext()) {
-					ErrorLog.log("Content: " + it.next().toString());
-				}*/
-			} else {
-				logger.info("SKIPPING to add syscommand " + systemCommand + ", as it is already in the list");
-				int curState = getSysCommandState(systemCommand);
-				if (curState == 1) {
-					logger.info("COMMAND is already executing, scheduling for re-execution");
-					sysCommandList.put(systemCommand, Integer.valueOf(2));
-				}
-			}
-		}
+    		BackgroundState curState = sysCommandList.putIfAbsent(systemCommand, BackgroundState.SCHEDULED);
+    		if (curState == null) {
+				logger.info("ADDING new syscommand " + systemCommand + ", executing in " + coalescingDelay + "ms");
+				getBackgroundExecutor().schedule(new BackgroundRun(systemCommand, editsSystem, requiresSU, coalescingDelay), 
+						coalescingDelay, TimeUnit.MILLISECONDS);
+				return;
+    		}
+    		else if (curState == BackgroundState.RUNNING) {
+    			if (sysCommandList.replace(systemCommand, BackgroundState.RUNNING, BackgroundState.RUNNING_RESCHEDULED)) {
+    				logger.info("COMMAND " + systemCommand + " is already executing, scheduling for re-execution");
+    				return;
+    			}
+    			// otherwise the state has changed in the meantime, so try again
+    		}
+    		else {
+				logger.info("SKIPPING to add syscommand " + systemCommand + ", as it is already in state " + curState);
+				return;
+    		}
+    	}
     }
     
     /** Executes a (reading) command that should not terminate but continuously 
@@ -164,16 +239,18 @@ public class Command {
      */
 	public static InputStream executeContinuousCommand(String combinedCommand, boolean requiresSU) throws IOException {
 		Process proc;
-		synchronized (sysCommandList) {
+		synchronized (continuousCommands) {
 			// only start it if it is not already running or scheduled to run
-			if (!sysCommandList.containsKey(combinedCommand)) {
+			if (sysCommandList.putIfAbsent(combinedCommand, BackgroundState.CONTINUOUS) == null) {
 				logger.info("ADDING new continuous syscommand " + combinedCommand + " and starting process");
-				sysCommandList.put(combinedCommand, Integer.valueOf(3));
-				proc = checkAndExecute(combinedCommand, null, false, requiresSU, null);
-				// started process, so now remember the Process object
-				synchronized (continuousCommands) {
-					continuousCommands.put(combinedCommand, proc);
+				try {
+					proc = checkAndExecute(combinedCommand, null, false, requiresSU, null);
+				} catch (IOException e) {
+					sysCommandList.remove(combinedCommand, BackgroundState.CONTINUOUS);
+					throw e;
 				}
+				// started process, so now remember the Process object
+				continuousCommands.put(combinedCommand, proc);
 				return proc.getInputStream();
 			}
 			else if ((proc = getContinuousProcess(combinedCommand)) != null) {
@@ -182,12 +259,62 @@ public class Command {
 			else {
 				logger.log(Level.WARNING, "Can not execute command " + combinedCommand + 
 						" continuously in the background, as it has state " +
-						getSysCommandState(combinedCommand));
+						sysCommandList.get(combinedCommand));
 				return null;
 			}
 		}
 	}
 	
+	/** Executes a (reading) command that should not terminate but continuously
+	 * produce output, and pushes this output line by line or record by record
+	 * to the given listener. All output is read by a single reader thread. If
+	 * the command is already running with a listener, the new listener is 
+	 * simply added to the existing reader and the split mode and queue 
+	 * options are ignored. When the command ends on its own, it is forgotten
+	 * (before the listeners are notified with onClosed), so that it can be 
+	 * started again.
+	 * 
+	 * @param splitMode Defines if the output is delivered in lines or records.
+	 * @param queueCapacity The maximum number of records queued for slow listeners.
+	 * @param overflowPolicy Defines which records to drop when the queue is full.
+	 * @return The reader delivering the output, or null if the command is 
+	 *         already running without a reader (i.e. its stream has been 
+	 *         handed out by executeContinuousCommand(String, boolean)).
+	 */
+	public static ContinuousCommandReader executeContinuousCommand(final String combinedCommand, boolean requiresSU,
+			ContinuousCommandReader.RecordListener listener, ContinuousCommandReader.SplitMode splitMode,
+			int queueCapacity, ContinuousCommandReader.OverflowPolicy overflowPolicy) throws IOException {
+		synchronized (continuousCommands) {
+			ContinuousCommandReader reader = continuousReaders.get(combinedCommand);
+			if (reader == null) {
+				if (sysCommandList.containsKey(combinedCommand)) {
+					logger.log(Level.WARNING, "Can not attach listener to command " + combinedCommand + 
+							", as it is already running in state " + sysCommandList.get(combinedCommand));
+					return null;
+				}
+				InputStream in = executeContinuousCommand(combinedCommand, requiresSU);
+				if (in == null)
+					return null;
+				reader = new ContinuousCommandReader(combinedCommand, in, splitMode, queueCapacity, overflowPolicy);
+				final ContinuousCommandReader newReader = reader;
+				// registered first, so that listeners restarting the command in onClosed get a new process
+				reader.addListener(new ContinuousCommandReader.RecordListener() {
+					public void onRecord(CharSequence record) {}
+
+					public void onClosed() {
+						forgetContinuousCommand(combinedCommand, newReader);
+					}
+				});
+				reader.addListener(listener);
+				continuousReaders.put(combinedCommand, reader);
+				reader.start();
+			}
+			else
+				reader.addListener(listener);
+			return reader;
+		}
+	}
+	
 	/** Destroys a process that has previously been started with executeContinuousCommand.
 	 * @param combinedCommand The same string that has previously been passed to executeContinuousCommand.
 	 * @return true if the process was still running, false if this command was not known.
@@ -195,10 +322,20 @@ public class Command {
 	 * @throws IOException 
 	 */
 	public static boolean stopContinuousCommand(String combinedCommand) throws IOException {
-		Process proc = getContinuousProcess(combinedCommand);
-		if (proc == null) {
-			logger.finer("Can not stop command " + combinedCommand + ", not in list");
-			return false;
+		Process proc;
+		synchronized (continuousCommands) {
+			proc = getContinuousProcess(combinedCommand);
+			if (proc == null) {
+				logger.finer("Can not stop command " + combinedCommand + ", not in list");
+				return false;
+			}
+			// forget about it so that it may be started again
+			continuousCommands.remove(combinedCommand);
+			sysCommandList.remove(combinedCommand, BackgroundState.CONTINUOUS);
+			// and tell a potential reader that the end of its stream is expected
+			ContinuousCommandReader reader = continuousReaders.remove(combinedCommand);
+			if (reader != null)
+				reader.stop();
 		}
 		
 		logger.info("Terminating background continuous command " + combinedCommand);
@@ -207,19 +344,35 @@ public class Command {
 		return true;
 	}
 	
+	/** Forgets about a continuous command whose output has ended, unless it
+	 * has been stopped (and possibly started again) in the meantime.
+	 */
+	private static void forgetContinuousCommand(String combinedCommand, ContinuousCommandReader reader) {
+		Process proc;
+		synchronized (continuousCommands) {
+			if (continuousReaders.get(combinedCommand) != reader)
+				return;
+			continuousReaders.remove(combinedCommand);
+			proc = continuousCommands.remove(combinedCommand);
+			sysCommandList.remove(combinedCommand, BackgroundState.CONTINUOUS);
+		}
+		logger.info("Background continuous command " + combinedCommand + " ended on its own");
+		if (proc != null)
+			proc.destroy();
+	}
+	
 	/** This helper checks if the command has correct permissions to be 
 	 * executed, starts the command, and sends standard input if defined. It
 	 * can be called either with combinedCommand or splitCommand.
 	 */
 	private static Process checkAndExecute(String combinedCommand, String[] splitCommand, 
     		boolean editsSystem, boolean requiresSU, String sendToStdin) throws IOException {
-       	Runtime r = Runtime.getRuntime();
        	Process proc;
 
        	if (combinedCommand != null) {
        		if (requiresSU)
        			combinedCommand = "su " + combinedCommand;
-       		proc = r.exec(combinedCommand);
+       		proc = executor.exec(combinedCommand);
        	}
        	else {
        		if (requiresSU) {
@@ -229,7 +382,7 @@ public class Command {
        			splitCommand[0] = "su";
        		}
        		
-       		proc = r.exec(splitCommand);
+       		proc = executor.exec(splitCommand);
        	}
 
 		// if outputString is not null -> write!
@@ -245,44 +398,114 @@ public class Command {
 
 
 	
-    /** This helper 
+    /** This helper decides if the output of a command may be taken from
+     * (and stored in) the result cache. Commands that may modify the system
+     * are never cached, but invalidate all cached results instead.
      */
-    private static String executeCommand(String combinedCommand, String[] splitCommand, 
-    		boolean editsSystem, boolean requiresSU, String sendToStdin) 
-			throws ExitCodeException, IOException {
-    	Process proc = checkAndExecute(combinedCommand, splitCommand, editsSystem, requiresSU, sendToStdin);
+    private static String executeCommand(final String combinedCommand, final String[] splitCommand, 
+    		boolean editsSystem, boolean requiresSU, final String sendToStdin, final long timeout) 
+			throws ExitCodeException, CommandTimeoutException, IOException {
+    	if (editsSystem || requiresSU) {
+    		resultCache.invalidate();
+    		try {
+    			return runCommand(combinedCommand, splitCommand, editsSystem, requiresSU, sendToStdin, timeout);
+    		} finally {
+    			// also drop results of reads that were running concurrently
+    			resultCache.invalidate();
+    		}
+    	}
+    	else if (sendToStdin != null) {
+    		// the output depends on the input as well, so don't cache
+    		return runCommand(combinedCommand, splitCommand, false, false, sendToStdin, timeout);
+    	}
+    	
+    	return resultCache.get(combinedCommand != null ? combinedCommand : joinCommand(splitCommand), timeout, new CommandResultCache.Producer() {
+			public String produce() throws ExitCodeException, CommandTimeoutException, IOException {
+				return runCommand(combinedCommand, splitCommand, false, false, null, timeout);
+			}
+		});
+    }
 
-		// start reading the command output
-		BufferedReader in = new BufferedReader(new InputStreamReader(proc.getInputStream()), IOBufferSize);
-		StringBuffer output = new StringBuffer();
-		String temp;
-		while ((temp = in.readLine()) != null) {
-			output.append(temp);
-			output.append("\n");
+    /** Joins a split command into a single command line (delimited by blanks). */
+    private static String joinCommand(String[] splitCommand) {
+		StringBuffer ret = new StringBuffer();
+		for (String s : splitCommand) {
+			if (ret.length() > 0)
+				ret.append(' ');
+			ret.append(s);
 		}
+		return ret.toString();
+    }
 
-		int result;
-       	try {
-        	result = proc.waitFor();
-		} catch (InterruptedException ex) {
-			result = 0;				
-		}
-			
-		if (combinedCommand != null)
-			logger.finer("Command.executeCommand: (STATE2) " + combinedCommand + " Exit Value: " + result);
-		else
-			logger.finer("Command.executeCommand: (STATE2) " + splitCommand[0] + " Exit Value: " + result);
-			
-		// finish reading command output, there might be something left
-		while ((temp = in.readLine()) != null) {
-			output.append(temp);
-			output.append("\n");
-			}
-		in.close();
+    /** This helper executes a command, reads its output, and enforces the
+     * deadline (if timeout > 0).
+     */
+    private static String runCommand(String combinedCommand, String[] splitCommand, 
+    		boolean editsSystem, boolean requiresSU, String sendToStdin, long timeout) 
+			throws ExitCodeException, CommandTimeoutException, IOException {
+    	String cmdName = combinedCommand != null ? combinedCommand : splitCommand[0];
+    	CommandMetrics.Sample sample = CommandMetrics.start(
+    			combinedCommand != null ? combinedCommand : joinCommand(splitCommand), requiresSU);
+    	Process proc;
+    	try {
+    		proc = checkAndExecute(combinedCommand, splitCommand, editsSystem, requiresSU, sendToStdin);
+    	} catch (IOException e) {
+    		sample.finishFailure();
+    		throw e;
+    	}
+    	sample.markSpawned();
+    	ProcessWatchdog watchdog = ProcessWatchdog.start(cmdName, proc, timeout, requiresSU, 
+    			proc.getInputStream(), proc.getErrorStream());
 
+		StringBuffer output = new StringBuffer();
+		int result = 0;
+		try {
+			// drain (and discard) stderr concurrently so that the command can not block on a full pipe
+			new StreamPump(proc.getErrorStream(), null, false, 0, null, true).startInBackground();
+	
+			// start reading the command output
+			BufferedReader in = new BufferedReader(new InputStreamReader(proc.getInputStream()), IOBufferSize);
+			String temp;
+			while ((temp = in.readLine()) != null) {
+				sample.markFirstByte();
+				sample.addBytes(temp.length() + 1);
+				output.append(temp);
+				output.append("\n");
+			}
+	
+	       	try {
+	        	result = proc.waitFor();
+			} catch (InterruptedException ex) {
+				result = 0;				
+			}
+				
+			logger.finer("Command.executeCommand: (STATE2) " + cmdName + " Exit Value: " + result);
+				
+			// finish reading command output, there might be something left
+			while ((temp = in.readLine()) != null) {
+				sample.markFirstByte();
+				sample.addBytes(temp.length() + 1);
+				output.append(temp);
+				output.append("\n");
+				}
+			in.close();
+		} catch (IOException e) {
+			// reading fails when the watchdog closes the streams, which is reported below
+			if (!watchdog.hasFired()) {
+				sample.finishFailure();
+				throw e;
+			}
+		} finally {
+			watchdog.cancel();
+		}
+		
+		if (watchdog.hasFired()) {
+			sample.finishTimeout();
+			throw new CommandTimeoutException(cmdName, timeout);
+		}
+		sample.finish(result);
        	if (result!=0) {
-       		throw new ExitCodeException(convertToHTML(output.toString()), 
-       				combinedCommand != null ? combinedCommand : splitCommand[0], result);
+       		throw new ExitCodeException(cmdName, result, output);
        	} else {
         	return output.toString();
 		}
@@ -302,7 +525,31 @@ public class Command {
      */
     public static String executeCommand(String systemCommand, boolean editsSystem, boolean requiresSU, String sendToStdin) 
     		throws ExitCodeException, IOException {
-    	return executeCommand(systemCommand, null, editsSystem, requiresSU, sendToStdin);
+    	try {
+    		return executeCommand(systemCommand, null, editsSystem, requiresSU, sendToStdin, 0);
+    	} catch (CommandTimeoutException e) {
+    		// can not happen without a timeout
+    		throw new IOException(e.toString());
+    	}
+    }
+
+    /** Executes a system command and returns its output, but terminates it
+     * if it does not finish within the given time.
+     *
+     * @param systemCommand The command to execute with parameters delimited with blanks.
+     * @param editsSystem If true, then this command modifies the running system and therefore needs WRITE permissions to execute.
+     * @param sendToStdin If set (not null), then this string will be sent to 
+     *                    the system command as standard input.
+     * @param timeout The time budget for the command in milliseconds. When 
+     *                exceeded, the command and all its child processes are
+     *                terminated. If <= 0, no deadline is enforced.
+     * 
+     * @return The (standard) output of the command after terminating.
+     * @throws CommandTimeoutException If the command did not finish in time.
+     */
+    public static String executeCommand(String systemCommand, boolean editsSystem, boolean requiresSU, String sendToStdin,
+    		long timeout) throws ExitCodeException, CommandTimeoutException, IOException {
+    	return executeCommand(systemCommand, null, editsSystem, requiresSU, sendToStdin, timeout);
     }
 
     /** Executes a system command and returns its output. Optionally, some
@@ -323,26 +570,199 @@ public class Command {
      */
 	public static String executeCommand(String[] systemCommand, boolean editsSystem, boolean requiresSU, String sendToStdin) 
 			throws ExitCodeException, IOException {
-		return executeCommand(null, systemCommand, editsSystem, requiresSU, sendToStdin);
+		try {
+			return executeCommand(null, systemCommand, editsSystem, requiresSU, sendToStdin, 0);
+    	} catch (CommandTimeoutException e) {
+    		// can not happen without a timeout
+    		throw new IOException(e.toString());
+    	}
+	}
+
+    /** Executes a system command and returns its output, but terminates it
+     * if it does not finish within the given time.
+     *
+     * @param systemCommand The command to execute; the first array element is
+     *                      the command itself, while all further elements are
+     *                      taken es command parameters.
+     * @param timeout The time budget for the command in milliseconds. When 
+     *                exceeded, the command and all its child processes are
+     *                terminated. If <= 0, no deadline is enforced.
+     *
+     * @return The (standard) output of the command after terminating.
+     * @throws CommandTimeoutException If the command did not finish in time.
+     */
+	public static String executeCommand(String[] systemCommand, boolean editsSystem, boolean requiresSU, String sendToStdin,
+			long timeout) throws ExitCodeException, CommandTimeoutException, IOException {
+		return executeCommand(null, systemCommand, editsSystem, requiresSU, sendToStdin, timeout);
 	}
 	
-	/** Converts a string to HTML (cuts the \n and replaces with <br>). */
-	private static String convertToHTML(String line)  {
-		if (StringHelper.isBlank(line)) {
-			return "";
+	/** Replaces the backend that actually starts processes and executes 
+	 * commands in the root shell session. By default, this is a 
+	 * RuntimeCommandExecutor. The previous backend is closed and all cached
+	 * command output is dropped. 
+	 */
+	public static synchronized void setExecutor(CommandExecutor newExecutor) {
+		CommandExecutor old = executor;
+		executor = newExecutor;
+		old.close();
+		resultCache.invalidate();
+	}
+
+	/** Returns the backend currently used for executing commands. */
+	public static CommandExecutor getExecutor() {
+		return executor;
+	}
+
+	/** Executes a command with superuser privileges in the shared root shell
+	 * session. In contrast to executeCommand(SH_COMMAND, true, ...), this does
+	 * not spawn a new su process for each call, but re-uses a long-lived one
+	 * that is (re-)started on demand.
+	 *
+	 * @param command The command line to execute, interpreted by the shell.
+	 * @return The standard output, standard error output, and exit code of the command.
+	 * @throws IOException If the root shell could not be started or died 
+	 *                     while executing the command.
+	 */
+	public static CommandResult executeRootCommand(String command) throws IOException {
+		return executeRootCommands(new String[] { command }, false)[0];
+	}
+
+	/** Executes a command with superuser privileges in the shared root shell
+	 * session, but terminates the session if the command does not finish 
+	 * within the given time. The session is restarted with the next command.
+	 *
+	 * @param command The command line to execute, interpreted by the shell.
+	 * @param timeout The time budget in milliseconds, no deadline if <= 0.
+	 * @return The standard output, standard error output, and exit code of the command.
+	 * @throws IOException If the root shell could not be started or died 
+	 *                     while executing the command.
+	 * @throws CommandTimeoutException If the command did not finish in time.
+	 */
+	public static CommandResult executeRootCommand(String command, long timeout) 
+			throws IOException, CommandTimeoutException {
+		return executeRootCommands(new String[] { command }, false, timeout)[0];
+	}
+
+	/** Executes a batch of commands with superuser privileges in the shared
+	 * root shell session. All commands are sent at once, so the su/shell 
+	 * overhead is only paid once for the whole batch.
+	 *
+	 * @param commands The command lines to execute in this order, interpreted by the shell.
+	 * @param stopOnFirstFailure If true, then all commands following the 
+	 *                           first one with an exit code != 0 are skipped
+	 *                           (and marked as not executed in their results).
+	 * @return The standard output, standard error output, and exit code of
+	 *         each command, in the same order as the commands were passed.
+	 * @throws IOException If the root shell could not be started or died 
+	 *                     while executing the commands.
+	 */
+	public static CommandResult[] executeRootCommands(String[] commands, boolean stopOnFirstFailure) throws IOException {
+		try {
+			return executeRootCommands(commands, stopOnFirstFailure, 0);
+		} catch (CommandTimeoutException e) {
+			// can not happen without a timeout
+			throw new IOException(e.toString());
 		}
-		StringTokenizer tok = new StringTokenizer(line,"\n");
-		String str = "";
-		while (tok.hasMoreTokens()) {
-			str += tok.nextToken() + "<br>";
+	}
+
+	/** Executes a batch of commands with superuser privileges in the shared
+	 * root shell session with a deadline for the whole batch. 
+	 *
+	 * @param timeout The time budget in milliseconds, no deadline if <= 0.
+	 * @see #executeRootCommands(String[], boolean)
+	 * @throws CommandTimeoutException If the batch did not finish in time.
+	 */
+	public static CommandResult[] executeRootCommands(String[] commands, boolean stopOnFirstFailure, long timeout) 
+			throws IOException, CommandTimeoutException {
+		// root commands are assumed to modify the system
+		resultCache.invalidate();
+		try {
+			return executor.executeRootCommands(commands, stopOnFirstFailure, timeout);
+		} finally {
+			resultCache.invalidate();
 		}
-		return str;
 	}
+
+	/** Sets the time for which the output of read-only commands (i.e. those
+	 * executed with editsSystem=false, without superuser privileges, and 
+	 * without standard input) is cached. Identical requests within this time
+	 * return the same output, and concurrent identical requests always share
+	 * a single execution. 
+	 * 
+	 * @param ttl The time in milliseconds. If <= 0, finished executions are 
+	 *            not re-used, but concurrent requests are still shared.
+	 */
+	public static void setCacheTTL(long ttl) {
+		resultCache.setTTL(ttl);
+	}
+
+	/** Drops all cached command output. This happens automatically for all
+	 * commands executed by this class that may modify the system, but needs
+	 * to be called when the system is modified by other means.
+	 */
+	public static void invalidateCache() {
+		resultCache.invalidate();
+	}
+
+	/** Returns the timing and output statistics of all commands executed 
+	 * so far (or since the last reset), grouped by command template. 
+	 * 
+	 * @param reset If true, all counters are set to zero.
+	 * @see CommandMetrics
+	 */
+	public static CommandMetrics.Snapshot getMetrics(boolean reset) {
+		return CommandMetrics.snapshot(reset);
+	}
+
+	/** Terminates the shared root shell session, if it has been started. */
+	public static void closeRootShell() {
+		executor.close();
+	}
+
 	
 	/** Simply execute a command and return exit code */
 	public static int executeCommandEC(String systemCommand) throws IOException, InterruptedException {
-		Process p = checkAndExecute(systemCommand, null, false, false, null);
-		p.waitFor();
+		try {
+			return executeCommandEC(systemCommand, 0);
+		} catch (CommandTimeoutException e) {
+			// can not happen without a timeout
+			throw new IOException(e.toString());
+		}
+	}
+
+	/** Simply execute a command and return exit code, but terminate it if it
+	 * does not finish within the given time (in milliseconds, no deadline if 
+	 * <= 0). The output of the command is discarded.
+	 */
+	public static int executeCommandEC(String systemCommand, long timeout) 
+			throws IOException, InterruptedException, CommandTimeoutException {
+		CommandMetrics.Sample sample = CommandMetrics.start(systemCommand, false);
+		Process p;
+		try {
+			p = checkAndExecute(systemCommand, null, false, false, null);
+		} catch (IOException e) {
+			sample.finishFailure();
+			throw e;
+		}
+		sample.markSpawned();
+		ProcessWatchdog watchdog = ProcessWatchdog.start(systemCommand, p, timeout, false, 
+				p.getInputStream(), p.getErrorStream());
+		try {
+			// drain both streams so that the command can not block on a full pipe
+			new StreamPump(p.getInputStream(), null, false, 0, null, false).setMetrics(sample).startInBackground();
+			new StreamPump(p.getErrorStream(), null, false, 0, null, true).startInBackground();
+			p.waitFor();
+		} catch (InterruptedException e) {
+			if (!watchdog.hasFired())
+				throw e;
+		} finally {
+			watchdog.cancel();
+		}
+		if (watchdog.hasFired()) {
+			sample.finishTimeout();
+			throw new CommandTimeoutException(systemCommand, timeout);
+		}
+		sample.finish(p.exitValue());
 		return p.exitValue();
 	}
 
@@ -372,6 +792,22 @@ public class Command {
 		return executeCommand(parts, requiresSU, stdin, stdout, stderr);
 	}
 
+	/**
+	 * Helper for executing a command and reading stdout as well as stderr
+	 * with a deadline. This method splits your command by spaces.
+	 *
+	 * @param timeout The time budget for the command in milliseconds. When 
+	 *                exceeded, the command and all its child processes are
+	 *                terminated. If <= 0, no deadline is enforced.
+	 * @see #executeCommand(String, boolean, String, StringBuffer, StringBuffer)
+	 * @throws CommandTimeoutException If the command did not finish in time.
+	 */
+	public static int executeCommand(String cmd, boolean requiresSU, String stdin, StringBuffer stdout, StringBuffer stderr,
+			long timeout) throws IOException, InterruptedException, CommandTimeoutException {
+		String[] parts = cmd.split(" ");
+		return executeCommand(parts, requiresSU, stdin, stdout, stderr, null, timeout);
+	}
+
 
 	/**
 	 * Helper for executing a command and reading stdout as well as stderr. Code
@@ -390,60 +826,113 @@ public class Command {
 	 */	
 	 public static int executeCommand(String[] cmd, boolean requiresSU, String stdin, StringBuffer stdout, StringBuffer stderr)
  			throws IOException, InterruptedException {
-		 Process proc = checkAndExecute(null, cmd, false, requiresSU, stdin);
+		 return executeCommand(cmd, requiresSU, stdin, stdout, stderr, null);
+	 }
 
-		 BufferedReader stdoutReader = null;
-		 BufferedReader stderrReader = null;
+	/**
+	 * Helper for executing a command and reading stdout as well as stderr. 
+	 * Both streams are drained concurrently (stdout in the calling thread, 
+	 * stderr on a shared background pump), so that a command writing a lot
+	 * to one of them can not block while we are waiting for the other. Even
+	 * if stdout or stderr are null, the respective stream is still read (and
+	 * its content discarded). Captured output is limited to
+	 * StreamPump.DEFAULT_MAX_CHARS per stream.
+	 *
+	 * @param cmd The full command to execute, as String[].
+	 * @param stdin Data which should be sent to stdin. May be null.
+	 * @param stdout Buffer for writing the stdout output to. May be null.
+	 * @param stderr Buffer for writing the stderr otupt to. May be null.
+	 * @param listener If not null, it will be called for each line of 
+	 *                 output on stdout and stderr as soon as it is read.
+	 * 
+	 * @return Exit code of the called command.
+	 *
+	 * @throws IOException 
+	 * @throws InterruptedException 
+	 */	
+	 public static int executeCommand(String[] cmd, boolean requiresSU, String stdin, StringBuffer stdout, StringBuffer stderr,
+			 StreamPump.LineListener listener) throws IOException, InterruptedException {
+		 try {
+			 return executeCommand(cmd, requiresSU, stdin, stdout, stderr, listener, 0);
+		 } catch (CommandTimeoutException e) {
+			 // can not happen without a timeout
+			 throw new IOException(e.toString());
+		 }
+	 }
 
-		// read stdout if required
-		if (stdout != null) {
-			stdoutReader = new BufferedReader(new InputStreamReader(proc.getInputStream()), IOBufferSize);
-			
-			String out;
-			while ((out = stdoutReader.readLine()) != null) {
-				stdout.append(out);
-			}
-		}
-		
-		// read stderr if required
-		if (stderr != null) {
-			stderrReader = new BufferedReader(new InputStreamReader(proc.getErrorStream()), IOBufferSize);
-			
-			String err;
-			while ((err = stderrReader.readLine()) != null) {
-				stderr.append(err);
-			}
-		}
-		
-		// wait for a clean exit, throws InterruptedException
-		int ret;
-		ret = proc.waitFor();
-		
+	/**
+	 * Helper for executing a command and reading stdout as well as stderr
+	 * concurrently with a deadline.
+	 *
+	 * @param timeout The time budget for the command in milliseconds. When 
+	 *                exceeded, the command and all its child processes are
+	 *                terminated. If <= 0, no deadline is enforced.
+	 * @see #executeCommand(String[], boolean, String, StringBuffer, StringBuffer, StreamPump.LineListener)
+	 * @throws CommandTimeoutException If the command did not finish in time.
+	 */	
+	 public static int executeCommand(String[] cmd, boolean requiresSU, String stdin, StringBuffer stdout, StringBuffer stderr,
+			 StreamPump.LineListener listener, long timeout) 
+			 throws IOException, InterruptedException, CommandTimeoutException {
 		//debug output
 		StringBuffer cmdString = new StringBuffer();
 		for(String s: cmd){
 			cmdString.append(s + " ");
 		}
-		logger.log(Level.WARNING, "'" + cmdString + "' returned " + ret);
-		
-		// read possible stdout leftovers
-		if (stdout != null) {
-			String out;
-			while ((out = stdoutReader.readLine()) != null) {
-				stdout.append(out);
-			}
-			stdoutReader.close();
+
+		// commands with superuser privileges are assumed to modify the system
+		if (requiresSU)
+			resultCache.invalidate();
+		CommandMetrics.Sample sample = CommandMetrics.start(cmdString.toString(), requiresSU);
+		Process proc;
+		try {
+			proc = checkAndExecute(null, cmd, false, requiresSU, stdin);
+		} catch (IOException e) {
+			sample.finishFailure();
+			throw e;
 		}
-		
-		// same for stderr
-		if (stderr != null) {
-			String err;
-			while ((err = stderrReader.readLine()) != null) {
-				stderr.append(err);
+		sample.markSpawned();
+		ProcessWatchdog watchdog = ProcessWatchdog.start(cmdString.toString(), proc, timeout, requiresSU,
+				proc.getInputStream(), proc.getErrorStream());
+
+		int ret = -1;
+		try {
+			// read stderr in the background and stdout in this thread
+			StreamPump stderrPump = new StreamPump(proc.getErrorStream(), stderr, false, 
+					StreamPump.DEFAULT_MAX_CHARS, listener, true).setMetrics(sample).startInBackground();
+			StreamPump stdoutPump = new StreamPump(proc.getInputStream(), stdout, false,
+					StreamPump.DEFAULT_MAX_CHARS, listener, false).setMetrics(sample);
+			stdoutPump.run();
+			
+			// wait for a clean exit, throws InterruptedException
+			ret = proc.waitFor();
+			logger.log(Level.WARNING, "'" + cmdString + "' returned " + ret);
+			
+			// make sure that stderr has been read completely as well
+			stdoutPump.waitFor();
+			stderrPump.waitFor();
+		} catch (InterruptedException e) {
+			// the watchdog interrupts us when the deadline expires
+			if (!watchdog.hasFired()) {
+				sample.finishFailure();
+				throw e;
 			}
-			stderrReader.close();
+		} catch (IOException e) {
+			// reading fails when the watchdog closes the streams
+			if (!watchdog.hasFired()) {
+				sample.finishFailure();
+				throw e;
+			}
+		} finally {
+			watchdog.cancel();
+			if (requiresSU)
+				resultCache.invalidate();
 		}
 		
+		if (watchdog.hasFired()) {
+			sample.finishTimeout();
+			throw new CommandTimeoutException(cmdString.toString(), timeout);
+		}
+		sample.finish(ret);
 		return ret;
 	}
 }
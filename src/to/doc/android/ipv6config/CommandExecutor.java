@@ -0,0 +1,46 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.io.IOException;
+
+import to.doc.android.ipv6config.Command.CommandResult;
+
+/** This interface is the backend actually starting processes for Command.
+ * The default implementation (RuntimeCommandExecutor) uses Runtime.exec and
+ * a shared su shell, while others may e.g. serve recorded output without
+ * starting any process (RecordedCommandExecutor). All permission checks,
+ * caching, deadlines and metrics stay in Command and apply to all backends.
+ *
+ * @see Command#setExecutor(CommandExecutor)
+ * @author Rene Mayrhofer
+ */
+public interface CommandExecutor {
+	/** Starts a command given as a single string with parameters delimited by blanks. */
+	public Process exec(String combinedCommand) throws IOException;
+
+	/** Starts a command given with its parameters as separate array elements. */
+	public Process exec(String[] splitCommand) throws IOException;
+
+	/** Executes a batch of commands with superuser privileges, ideally in a
+	 * long-lived session.
+	 *
+	 * @see Command#executeRootCommands(String[], boolean, long)
+	 */
+	public CommandResult[] executeRootCommands(String[] commands, boolean stopOnFirstFailure, long timeout)
+			throws IOException, CommandTimeoutException;
+
+	/** Releases all resources, e.g. terminates the superuser session. The
+	 * executor may still be used afterwards and re-creates them on demand.
+	 */
+	public void close();
+}
@@ -0,0 +1,340 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** This class collects timing and output statistics of executed commands,
+ * grouped by command template (e.g. "ip addr" or "su: ip link", see
+ * getTemplate). For each template, it records
+ * <ul>
+ * <li>the spawn latency (fork/exec, including su startup),</li>
+ * <li>the time to the first byte of output,</li>
+ * <li>the total wall time,</li>
+ * <li>the number of bytes read, and</li>
+ * <li>the distribution of exit codes, timeouts and I/O failures.</li>
+ * </ul>
+ * Latencies are kept in histograms with fixed buckets, so that recording
+ * only needs a few atomic increments and never takes a lock. A consistent
+ * view of all counters can be taken with snapshot().
+ *
+ * @author Rene Mayrhofer
+ */
+public class CommandMetrics {
+	/** Upper bounds (inclusive, in microseconds) of the histogram buckets.
+	 * An additional last bucket counts all larger values.
+	 */
+	public final static long[] BUCKET_BOUNDS_MICROS = {
+		100, 250, 500,
+		1000, 2500, 5000,
+		10*1000, 25*1000, 50*1000,
+		100*1000, 250*1000, 500*1000,
+		1000*1000, 2500*1000, 5000*1000,
+		10*1000*1000 };
+
+	/** Pseudo exit code recorded for commands that exceeded their deadline. */
+	public final static int EXIT_CODE_TIMEOUT = 256;
+	/** Pseudo exit code recorded for commands that could not be started or read. */
+	public final static int EXIT_CODE_FAILURE = 257;
+	/** Exit codes are 0-255 on Linux, plus the two pseudo exit codes above. */
+	private final static int EXIT_CODE_SLOTS = 258;
+
+	/** Maximum number of different templates, all others are counted as OTHER_TEMPLATE. */
+	private final static int MAX_TEMPLATES = 64;
+	/** The template used when MAX_TEMPLATES has been reached. */
+	public final static String OTHER_TEMPLATE = "(other)";
+	/** Prefix of the templates of commands executed with superuser privileges. */
+	public final static String ROOT_PREFIX = "su: ";
+
+	/** A latency histogram that can be updated concurrently without locking. */
+	private static class Histogram {
+		private AtomicLongArray counts = new AtomicLongArray(BUCKET_BOUNDS_MICROS.length + 1);
+		private AtomicLong sum = new AtomicLong();
+		private AtomicLong max = new AtomicLong();
+
+		void record(long micros) {
+			int bucket = Arrays.binarySearch(BUCKET_BOUNDS_MICROS, micros);
+			if (bucket < 0)
+				bucket = -bucket - 1;
+			counts.incrementAndGet(bucket);
+			sum.addAndGet(micros);
+			long curMax;
+			while (micros > (curMax = max.get()))
+				if (max.compareAndSet(curMax, micros))
+					break;
+		}
+
+		HistogramSnapshot snapshot(boolean reset) {
+			HistogramSnapshot s = new HistogramSnapshot();
+			s.counts = new long[counts.length()];
+			for (int i=0; i<s.counts.length; i++) {
+				s.counts[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+				s.count += s.counts[i];
+			}
+			s.sumMicros = reset ? sum.getAndSet(0) : sum.get();
+			s.maxMicros = reset ? max.getAndSet(0) : max.get();
+			return s;
+		}
+	}
+
+	/** All counters of a single template. */
+	private static class TemplateMetrics {
+		AtomicLong invocations = new AtomicLong();
+		Histogram spawnLatency = new Histogram();
+		Histogram firstByteLatency = new Histogram();
+		Histogram wallTime = new Histogram();
+		AtomicLong bytesRead = new AtomicLong();
+		AtomicLongArray exitCodes = new AtomicLongArray(EXIT_CODE_SLOTS);
+	}
+
+	/** This class holds the counts of one histogram at the time of a snapshot. */
+	public static class HistogramSnapshot {
+		/** counts[i] is the number of values <= BUCKET_BOUNDS_MICROS[i] (and
+		 * larger than the previous bound), the last one counts all larger values. */
+		public long[] counts;
+		public long count = 0;
+		public long sumMicros;
+		public long maxMicros;
+
+		/** Returns the average of all recorded values in microseconds, or 0 if there are none. */
+		public long getAverageMicros() {
+			return count > 0 ? sumMicros / count : 0;
+		}
+
+		/** Returns an upper bound for the given percentile (0-100) in
+		 * microseconds, i.e. the bound of the bucket it falls into. For the
+		 * last, unbounded bucket, the maximum value is returned.
+		 */
+		public long getPercentileMicros(double percentile) {
+			long rank = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int i=0; i<counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && seen > 0)
+					return i < BUCKET_BOUNDS_MICROS.length ? Math.min(BUCKET_BOUNDS_MICROS[i], maxMicros) : maxMicros;
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return "n=" + count + " avg=" + getAverageMicros()/1000.0 + "ms p50<=" +
+				getPercentileMicros(50)/1000.0 + "ms p90<=" + getPercentileMicros(90)/1000.0 +
+				"ms max=" + maxMicros/1000.0 + "ms";
+		}
+	}
+
+	/** This class holds all counters of a single template at the time of a snapshot. */
+	public static class TemplateSnapshot {
+		public String template;
+		public long invocations;
+		public HistogramSnapshot spawnLatency;
+		public HistogramSnapshot firstByteLatency;
+		public HistogramSnapshot wallTime;
+		public long bytesRead;
+		/** Maps each exit code that occurred (including EXIT_CODE_TIMEOUT and
+		 * EXIT_CODE_FAILURE) to the number of its occurrences. */
+		public HashMap<Integer, Long> exitCodes = new HashMap<Integer, Long>();
+
+		@Override
+		public String toString() {
+			return template + ": invocations=" + invocations + " bytes=" + bytesRead +
+				" exit codes=" + exitCodes + "\n  spawn: " + spawnLatency +
+				"\n  first byte: " + firstByteLatency + "\n  wall time: " + wallTime;
+		}
+	}
+
+	/** This class holds the counters of all templates at the time of a snapshot. */
+	public static class Snapshot {
+		/** The time (as in System.currentTimeMillis) of the last reset or class initialization. */
+		public long since;
+		/** The time (as in System.currentTimeMillis) this snapshot was taken. */
+		public long takenAt;
+		public TemplateSnapshot[] templates;
+
+		@Override
+		public String toString() {
+			StringBuffer ret = new StringBuffer("Command metrics for " + (takenAt - since) + "ms:\n");
+			for (TemplateSnapshot t : templates) {
+				ret.append(t);
+				ret.append("\n");
+			}
+			return ret.toString();
+		}
+	}
+
+	/** This class tracks a single command execution. It is created by
+	 * start() and recorded when finished with one of the finish methods
+	 * (at most once). The mark methods may be called from different threads.
+	 */
+	public static class Sample {
+		private TemplateMetrics metrics;
+		private long startNanos;
+		private volatile long spawnedNanos = -1;
+		private volatile long firstByteNanos = -1;
+		private AtomicLong bytes = new AtomicLong();
+
+		private Sample(TemplateMetrics metrics) {
+			this.metrics = metrics;
+			this.startNanos = System.nanoTime();
+		}
+
+		/** Marks the point when the process has been started. */
+		public void markSpawned() {
+			spawnedNanos = System.nanoTime();
+		}
+
+		/** Marks the arrival of output, only the first call is recorded. */
+		public void markFirstByte() {
+			if (firstByteNanos < 0)
+				firstByteNanos = System.nanoTime();
+		}
+
+		/** Adds to the number of bytes read from the process. */
+		public void addBytes(long count) {
+			bytes.addAndGet(count);
+		}
+
+		/** Records the execution with the given exit code. */
+		public void finish(int exitCode) {
+			long now = System.nanoTime();
+			metrics.invocations.incrementAndGet();
+			metrics.wallTime.record((now - startNanos) / 1000);
+			if (spawnedNanos >= 0)
+				metrics.spawnLatency.record((spawnedNanos - startNanos) / 1000);
+			if (firstByteNanos >= 0)
+				metrics.firstByteLatency.record((firstByteNanos - startNanos) / 1000);
+			metrics.bytesRead.addAndGet(bytes.get());
+			metrics.exitCodes.incrementAndGet(exitCode >= 0 && exitCode < EXIT_CODE_SLOTS ? exitCode : EXIT_CODE_FAILURE);
+		}
+
+		/** Records the execution as terminated because of its deadline. */
+		public void finishTimeout() {
+			finish(EXIT_CODE_TIMEOUT);
+		}
+
+		/** Records the execution as failed because of an I/O error. */
+		public void finishFailure() {
+			finish(EXIT_CODE_FAILURE);
+		}
+	}
+
+	private static ConcurrentHashMap<String, TemplateMetrics> templates =
+		new ConcurrentHashMap<String, TemplateMetrics>();
+	private static volatile long since = System.currentTimeMillis();
+
+	/** Derives the template of a command line: the name of the binary
+	 * (without its path) followed by its first argument that is not an
+	 * option, e.g. "ip addr" for "/system/bin/ip -6 addr show dev eth0".
+	 *
+	 * @param asRoot If true, the template is prefixed with ROOT_PREFIX.
+	 */
+	public static String getTemplate(String command, boolean asRoot) {
+		StringTokenizer tokens = new StringTokenizer(command, " \t\n");
+		StringBuffer template = new StringBuffer(asRoot ? ROOT_PREFIX : "");
+		if (tokens.hasMoreTokens()) {
+			String binary = tokens.nextToken();
+			template.append(binary.substring(binary.lastIndexOf('/') + 1));
+		}
+		while (tokens.hasMoreTokens()) {
+			String arg = tokens.nextToken();
+			if (!arg.startsWith("-")) {
+				template.append(' ');
+				template.append(arg);
+				break;
+			}
+		}
+		return template.toString();
+	}
+
+	/** Starts tracking a command execution.
+	 *
+	 * @param command The full command line, which is reduced to its template.
+	 * @param asRoot True if the command is executed with superuser privileges.
+	 */
+	public static Sample start(String command, boolean asRoot) {
+		return new Sample(getMetrics(getTemplate(command, asRoot)));
+	}
+
+	/** Records the duration of an operation that is not a single command,
+	 * such as waiting for a state to be reached, under the given name. It
+	 * is reported like a command template, with the duration as wall time
+	 * and an exit code of 0 or EXIT_CODE_TIMEOUT.
+	 *
+	 * @param completed False if the operation did not finish in time.
+	 */
+	public static void record(String name, long micros, boolean completed) {
+		TemplateMetrics metrics = getMetrics(name);
+		metrics.invocations.incrementAndGet();
+		metrics.wallTime.record(micros);
+		metrics.exitCodes.incrementAndGet(completed ? 0 : EXIT_CODE_TIMEOUT);
+	}
+
+	private static TemplateMetrics getMetrics(String template) {
+		TemplateMetrics metrics = templates.get(template);
+		if (metrics == null) {
+			if (templates.size() >= MAX_TEMPLATES)
+				template = OTHER_TEMPLATE;
+			metrics = new TemplateMetrics();
+			TemplateMetrics existing = templates.putIfAbsent(template, metrics);
+			if (existing != null)
+				metrics = existing;
+		}
+		return metrics;
+	}
+
+	/** Returns the current values of all counters.
+	 *
+	 * @param reset If true, all counters are set to zero. Executions
+	 *              recorded concurrently end up either in this snapshot or
+	 *              in the next one, but counters of a single execution may
+	 *              be split between both.
+	 */
+	public static Snapshot snapshot(boolean reset) {
+		Snapshot s = new Snapshot();
+		s.takenAt = System.currentTimeMillis();
+		s.since = since;
+		if (reset)
+			since = s.takenAt;
+
+		HashMap<String, TemplateSnapshot> result = new HashMap<String, TemplateSnapshot>();
+		for (Map.Entry<String, TemplateMetrics> e : templates.entrySet()) {
+			TemplateMetrics m = e.getValue();
+			TemplateSnapshot t = new TemplateSnapshot();
+			t.template = e.getKey();
+			t.invocations = reset ? m.invocations.getAndSet(0) : m.invocations.get();
+			t.spawnLatency = m.spawnLatency.snapshot(reset);
+			t.firstByteLatency = m.firstByteLatency.snapshot(reset);
+			t.wallTime = m.wallTime.snapshot(reset);
+			t.bytesRead = reset ? m.bytesRead.getAndSet(0) : m.bytesRead.get();
+			for (int i=0; i<EXIT_CODE_SLOTS; i++) {
+				long count = reset ? m.exitCodes.getAndSet(i, 0) : m.exitCodes.get(i);
+				if (count > 0)
+					t.exitCodes.put(i, count);
+			}
+			result.put(t.template, t);
+		}
+
+		String[] names = result.keySet().toArray(new String[result.size()]);
+		Arrays.sort(names);
+		s.templates = new TemplateSnapshot[names.length];
+		for (int i=0; i<names.length; i++)
+			s.templates[i] = result.get(names[i]);
+		return s;
+	}
+}
@@ -0,0 +1,176 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/** This class caches the output of read-only commands (such as "ip addr"
+ * or "ip route") for a short time. Concurrent requests for the same command
+ * share a single execution: the first one executes it, all others wait for
+ * its result.
+ *
+ * Any command that may modify the system has to call invalidate(), which
+ * drops all cached results. Executions that were already running at that
+ * time are still delivered to their concurrent waiters, but are not kept
+ * for later requests, so that a read never hides a preceding modification.
+ *
+ * @author Rene Mayrhofer
+ */
+public class CommandResultCache {
+	/** Our logger for this class. */
+	private final static Logger logger = Logger.getLogger(Constants.LOG_TAG);
+
+	/** Interface for executing the command on a cache miss. */
+	public interface Producer {
+		public String produce() throws ExitCodeException, CommandTimeoutException, IOException;
+	}
+
+	/** A single (running or finished) execution of a command. */
+	private static class Entry {
+		/** The cache generation this execution has been started in. */
+		final long generation;
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile long completedAt;
+		volatile String output = null;
+		/** The exception thrown by the execution, if any. */
+		volatile Exception error = null;
+		/** Only successful executions or non-zero exit codes may be re-used
+		 * after they have finished, but not I/O errors or timeouts. */
+		volatile boolean reusable = false;
+
+		Entry(long generation) {
+			this.generation = generation;
+		}
+
+		boolean usableFor(long curGeneration, long now, long ttl) {
+			if (generation != curGeneration)
+				return false;
+			if (done.getCount() > 0)
+				return true;
+			return reusable && now - completedAt <= ttl;
+		}
+
+		void complete(String output, Exception error, boolean reusable) {
+			this.output = output;
+			this.error = error;
+			this.reusable = reusable;
+			this.completedAt = System.currentTimeMillis();
+			done.countDown();
+		}
+	}
+
+	private ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private AtomicLong generation = new AtomicLong(0);
+	private volatile long ttl;
+
+	/** Creates a new cache.
+	 *
+	 * @param ttl The time (in milliseconds) for which a finished execution
+	 *            is re-used. If <= 0, only concurrent requests share an
+	 *            execution.
+	 */
+	public CommandResultCache(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public long getTTL() {
+		return ttl;
+	}
+
+	public void setTTL(long ttl) {
+		this.ttl = ttl;
+	}
+
+	/** Drops all cached results. Must be called whenever a command may have
+	 * modified the system.
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+		entries.clear();
+	}
+
+	/** Returns the output of the given command, either from the cache, by
+	 * waiting for a concurrent execution of the same command, or by calling
+	 * the producer.
+	 *
+	 * @param key The full command line, used as the cache key.
+	 * @param timeout The time budget for waiting on a concurrent execution
+	 *                (in milliseconds). If <= 0, wait without deadline.
+	 * @param producer Executes the command if there is no usable result.
+	 */
+	public String get(String key, long timeout, Producer producer)
+			throws ExitCodeException, CommandTimeoutException, IOException {
+		long curGeneration = generation.get();
+		Entry mine = new Entry(curGeneration);
+		while (true) {
+			Entry existing = entries.get(key);
+			if (existing != null && existing.usableFor(curGeneration, System.currentTimeMillis(), ttl)) {
+				logger.finest("Re-using result of command " + key);
+				return await(existing, key, timeout);
+			}
+			if (existing == null ? entries.putIfAbsent(key, mine) == null : entries.replace(key, existing, mine))
+				break;
+			// otherwise somebody else has started it in the meantime, so try again
+		}
+
+		try {
+			String output = producer.produce();
+			mine.complete(output, null, true);
+			return output;
+		} catch (ExitCodeException e) {
+			mine.complete(null, e, true);
+			throw e;
+		} catch (CommandTimeoutException e) {
+			mine.complete(null, e, false);
+			throw e;
+		} catch (IOException e) {
+			mine.complete(null, e, false);
+			throw e;
+		} catch (RuntimeException e) {
+			mine.complete(null, new IOException("Command " + key + " failed: " + e), false);
+			throw e;
+		} finally {
+			// results started before an invalidation or failed ones must not be re-used later on
+			if (mine.generation != generation.get() || !mine.reusable)
+				entries.remove(key, mine);
+		}
+	}
+
+	/** Waits for an execution started by another thread and returns its result. */
+	private String await(Entry entry, String key, long timeout)
+			throws ExitCodeException, CommandTimeoutException, IOException {
+		try {
+			if (timeout > 0) {
+				if (!entry.done.await(timeout, TimeUnit.MILLISECONDS))
+					throw new CommandTimeoutException(key, timeout);
+			}
+			else
+				entry.done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for concurrent execution of " + key);
+		}
+
+		if (entry.error == null)
+			return entry.output;
+		if (entry.error instanceof ExitCodeException)
+			throw (ExitCodeException) entry.error;
+		if (entry.error instanceof CommandTimeoutException)
+			throw (CommandTimeoutException) entry.error;
+		throw (IOException) entry.error;
+	}
+}
@@ -0,0 +1,46 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+
+/**
+ *  The exception <code>CommandTimeoutException</code> is thrown if a system command did not finish within its deadline
+ *  and has therefore been terminated
+ */
+public class CommandTimeoutException extends GibraltarBaseException {
+
+	private static final long serialVersionUID = 1L;
+
+	private long timeout;
+	private String executedCommand;
+
+	/**
+	 * Constructor that initializes with the command and its deadline
+	 *
+	 * @param executedCommand	the command that has been terminated
+	 * @param timeout	the time budget (in milliseconds) that has been exceeded
+	 */
+	public CommandTimeoutException(String executedCommand, long timeout) {
+		super("Command did not finish within " + timeout + "ms and has been terminated");
+		this.executedCommand = executedCommand;
+		this.timeout = timeout;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " [cmd '" + executedCommand + "' exceeded timeout of " + timeout + "ms]";
+	}
+}
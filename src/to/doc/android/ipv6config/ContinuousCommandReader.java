@@ -0,0 +1,335 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.CharBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** This class reads the output of a continuously running command (such as
+ * "ip monitor") on a single reader thread, splits it into lines or records,
+ * and pushes them to all registered listeners. Between the reader and the
+ * listeners, there is a bounded queue so that slow listeners can not stall
+ * the reader; when it is full, the configured OverflowPolicy decides which
+ * records are lost.
+ *
+ * To avoid creating garbage for every line, the queue consists of re-used
+ * character buffers and listeners are handed a CharSequence view that is
+ * only valid during the callback. Output is decoded as ISO-8859-1, which
+ * is sufficient for the ASCII output of the ip command.
+ *
+ * @author Rene Mayrhofer
+ */
+public class ContinuousCommandReader {
+	/** Our logger for this class. */
+	private final static Logger logger = Logger.getLogger(Constants.LOG_TAG);
+
+	/** Buffer size used for reading from the process. */
+	private final static int IOBufferSize = 4192;
+
+	/** Initial size of the character buffers for a single record, grown when necessary. */
+	private final static int INITIAL_RECORD_SIZE = 256;
+
+	/** Default number of records that may be queued for the listeners. */
+	public final static int DEFAULT_QUEUE_CAPACITY = 64;
+
+	/** Callback interface to receive the output of a continuous command. */
+	public interface RecordListener {
+		/** Called for each line or record, without the final line terminator.
+		 * The passed object is re-used for later records and only valid
+		 * during this call; call toString() to keep a copy.
+		 */
+		public void onRecord(CharSequence record);
+
+		/** Called once after the last record when the command output ended
+		 * or the command has been stopped.
+		 */
+		public void onClosed();
+	}
+
+	/** Defines how the output is split. */
+	public enum SplitMode {
+		/** Every line is passed on as a record of its own. */
+		LINES,
+		/** Lines starting with whitespace are continuations of the previous
+		 * one (as in "ip monitor" and "ip addr" output) and are delivered
+		 * together with it, separated by "\n". As a record can arrive in 
+		 * several reads, it is only complete when the next line not starting
+		 * with whitespace (or the end of the output) is read, so the last
+		 * record is delivered with the start of the next one. For event
+		 * streams that have to be handled right away, use LINES instead.
+		 */
+		RECORDS
+	}
+
+	/** Defines what happens when a record is read while the queue is full. */
+	public enum OverflowPolicy {
+		/** Discard the record that has just been read. */
+		DROP_NEWEST,
+		/** Discard the oldest queued record to make space for the new one. */
+		DROP_OLDEST,
+		/** Replace the most recently queued record with the new one, so that
+		 * a burst of events collapses into its latest state.
+		 */
+		COALESCE
+	}
+
+	private String command;
+	private InputStream in;
+	private SplitMode splitMode;
+	private OverflowPolicy overflowPolicy;
+	private CopyOnWriteArrayList<RecordListener> listeners = new CopyOnWriteArrayList<RecordListener>();
+
+	/** The queue is a ring of re-used character buffers, protected by queueLock. */
+	private final Object queueLock = new Object();
+	private char[][] queue;
+	private int[] queueLengths;
+	private int queueHead = 0;
+	private int queueCount = 0;
+	private long droppedRecords = 0;
+	/** True while a dispatch task is scheduled or running. */
+	private boolean dispatching = false;
+	/** Set by the reader when the stream has ended. */
+	private boolean closed = false;
+	private boolean closeNotified = false;
+
+	/** Set by stop() to tell an expected end of the stream from an error. */
+	private volatile boolean stopped = false;
+
+	/** The buffer and view handed to the listeners, only used by the dispatch task. */
+	private char[] deliveryBuffer = new char[INITIAL_RECORD_SIZE];
+	private CharBuffer deliveryView = CharBuffer.wrap(deliveryBuffer);
+
+	/** Creates a new reader, but does not start reading yet.
+	 *
+	 * @param command The command producing the output, only used for logging.
+	 * @param in The output stream of the command.
+	 * @param queueCapacity The maximum number of records queued for the listeners.
+	 */
+	public ContinuousCommandReader(String command, InputStream in, SplitMode splitMode,
+			int queueCapacity, OverflowPolicy overflowPolicy) {
+		this.command = command;
+		this.in = in;
+		this.splitMode = splitMode;
+		this.overflowPolicy = overflowPolicy;
+		queue = new char[queueCapacity][];
+		queueLengths = new int[queueCapacity];
+		for (int i=0; i<queueCapacity; i++)
+			queue[i] = new char[INITIAL_RECORD_SIZE];
+	}
+
+	public void addListener(RecordListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(RecordListener listener) {
+		listeners.remove(listener);
+	}
+
+	/** Returns the number of records that have been lost because the queue was full. */
+	public long getDroppedRecords() {
+		synchronized (queueLock) {
+			return droppedRecords;
+		}
+	}
+
+	/** Starts the reader thread. */
+	public void start() {
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				readLoop();
+			}
+		}, "IPv6Config-ContinuousReader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/** Marks this reader as stopped. Records still queued are discarded and
+	 * the listeners are notified with onClosed right away. The caller is 
+	 * responsible for closing the stream (or terminating the process), which
+	 * will wake up the reader thread; anything it reads until then is ignored.
+	 */
+	public void stop() {
+		stopped = true;
+		synchronized (queueLock) {
+			queueCount = 0;
+			closed = true;
+			scheduleDispatch();
+		}
+	}
+
+	/** The main loop of the reader thread: splits the stream into records
+	 * with a single re-used record buffer.
+	 */
+	private void readLoop() {
+		byte[] buf = new byte[IOBufferSize];
+		char[] record = new char[INITIAL_RECORD_SIZE];
+		int recordLen = 0;
+		// true while the current record holds a complete line that may still be continued (RECORDS mode only)
+		boolean pending = false;
+		boolean atLineStart = true;
+
+		try {
+			int read;
+			while ((read = in.read(buf)) > 0) {
+				for (int i=0; i<read; i++) {
+					char c = (char) (buf[i] & 0xff);
+					if (atLineStart && pending) {
+						if (c == ' ' || c == '\t') {
+							// continuation of the pending record
+							if (recordLen == record.length)
+								record = grow(record);
+							record[recordLen++] = '\n';
+						}
+						else {
+							enqueue(record, recordLen);
+							recordLen = 0;
+						}
+						pending = false;
+					}
+					atLineStart = false;
+
+					if (c == '\n') {
+						if (splitMode == SplitMode.RECORDS)
+							pending = true;
+						else {
+							enqueue(record, recordLen);
+							recordLen = 0;
+						}
+						atLineStart = true;
+					}
+					else if (c != '\r') {
+						if (recordLen == record.length)
+							record = grow(record);
+						record[recordLen++] = c;
+					}
+				}
+			}
+			// flush whatever is left at the end of the stream
+			if (pending || recordLen > 0)
+				enqueue(record, recordLen);
+		} catch (IOException e) {
+			if (!stopped)
+				logger.log(Level.WARNING, "Unable to read output of continuous command " + command, e);
+		}
+
+		logger.fine("Output of continuous command " + command + " ended");
+		try {
+			in.close();
+		} catch (IOException e) {
+			// don't care, we're finished anyways
+		}
+		synchronized (queueLock) {
+			closed = true;
+			scheduleDispatch();
+		}
+	}
+
+	private static char[] grow(char[] buf) {
+		char[] tmp = new char[buf.length * 2];
+		System.arraycopy(buf, 0, tmp, 0, buf.length);
+		return tmp;
+	}
+
+	/** Copies a record into the queue, applying the overflow policy if it is full. */
+	private void enqueue(char[] record, int len) {
+		if (stopped)
+			return;
+		synchronized (queueLock) {
+			int slot;
+			if (queueCount == queue.length) {
+				droppedRecords++;
+				switch (overflowPolicy) {
+				case DROP_NEWEST:
+					return;
+				case DROP_OLDEST:
+					queueHead = (queueHead + 1) % queue.length;
+					slot = (queueHead + queueCount - 1) % queue.length;
+					break;
+				default: // COALESCE
+					slot = (queueHead + queueCount - 1) % queue.length;
+				}
+			}
+			else {
+				slot = (queueHead + queueCount) % queue.length;
+				queueCount++;
+			}
+
+			if (queue[slot].length < len)
+				queue[slot] = new char[Math.max(len, queue[slot].length * 2)];
+			System.arraycopy(record, 0, queue[slot], 0, len);
+			queueLengths[slot] = len;
+			scheduleDispatch();
+		}
+	}
+
+	/** Starts the dispatch task unless it is already running. Must be called with queueLock held. */
+	private void scheduleDispatch() {
+		if (dispatching)
+			return;
+		dispatching = true;
+		StreamPump.getExecutor().execute(new Runnable() {
+			public void run() {
+				dispatch();
+			}
+		});
+	}
+
+	/** Delivers all queued records to the listeners, one at a time. */
+	private void dispatch() {
+		while (true) {
+			int len = 0;
+			boolean done = false;
+			boolean notifyClosed = false;
+			synchronized (queueLock) {
+				if (queueCount == 0) {
+					if (closed && !closeNotified) {
+						closeNotified = true;
+						notifyClosed = true;
+					}
+					dispatching = false;
+					done = true;
+				}
+				else {
+					// copy the record out of the queue so that the reader can re-use the slot immediately
+					len = queueLengths[queueHead];
+					if (deliveryBuffer.length < len) {
+						deliveryBuffer = new char[Math.max(len, deliveryBuffer.length * 2)];
+						deliveryView = CharBuffer.wrap(deliveryBuffer);
+					}
+					System.arraycopy(queue[queueHead], 0, deliveryBuffer, 0, len);
+					queueHead = (queueHead + 1) % queue.length;
+					queueCount--;
+				}
+			}
+
+			for (RecordListener l : listeners) {
+				try {
+					if (!done) {
+						deliveryView.clear();
+						deliveryView.limit(len);
+						l.onRecord(deliveryView);
+					}
+					else if (notifyClosed)
+						l.onClosed();
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Listener for continuous command " + command + " failed", e);
+				}
+			}
+			if (done)
+				return;
+		}
+	}
+}
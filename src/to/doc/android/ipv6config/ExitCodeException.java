@@ -10,6 +10,10 @@ package to.doc.android.ipv6config;
 
 /**
  *  The exception <code>ExitCodeException</code> is thrown if a systam command returned an error code != 0
+ *  
+ *  When created with the command output, the output is only referenced and
+ *  the message is rendered from it on first use, so that expected failures
+ *  cost (almost) nothing when nobody looks at the message.
  */
 public class ExitCodeException extends GibraltarBaseException {
 
@@ -17,6 +21,10 @@ public class ExitCodeException extends GibraltarBaseException {
 
 	private int exitCode;
 	private String executedCommand;
+	/** The raw output of the command, or null if created with a message. */
+	private CharSequence output = null;
+	/** The output rendered as HTML, created on first use. */
+	private transient String htmlOutput = null;
 
 	/**
 	 * paremeterless Constructor
@@ -38,6 +46,19 @@ public class ExitCodeException extends GibraltarBaseException {
 		this.exitCode = exitCode;
 	}
 
+	/**
+	 * Constructor that initializes with the raw output of the command, which
+	 * is rendered as HTML message only when requested
+	 *
+	 * @param output	the output of the command, which must not be modified afterwards
+	 */
+	public ExitCodeException(String executedCommand, int exitCode, CharSequence output) {
+		super();
+		this.executedCommand = executedCommand;
+		this.exitCode = exitCode;
+		this.output = output;
+	}
+
 	/**
 	 * Constructor that initializes with a message and a elementName 
 	 * 
@@ -51,6 +72,54 @@ public class ExitCodeException extends GibraltarBaseException {
 	public int getExitCode() {
 		return exitCode;
 	}
+
+	/**
+	 * Returns the plain text output of the command or null if this exception
+	 * has been created with a message instead
+	 */
+	public String getOutput() {
+		return output != null ? output.toString() : null;
+	}
+
+	/**
+	 * Returns the output of the command with each non-empty line terminated
+	 * by "&lt;br&gt;", or the message if created without output
+	 */
+	@Override
+	public synchronized String getMessage() {
+		if (output == null)
+			return super.getMessage();
+		if (htmlOutput == null)
+			htmlOutput = convertToHTML(output);
+		return htmlOutput;
+	}
+
+	/**
+	 * Converts text to HTML in a single pass: empty lines are dropped and
+	 * all others are terminated with "&lt;br&gt;" instead of "\n"
+	 */
+	public static String convertToHTML(CharSequence text) {
+		int len = text.length();
+		StringBuffer html = new StringBuffer(len + len / 8);
+		boolean blank = true;
+		int lineStart = 0;
+		for (int i=0; i<=len; i++) {
+			char c = i < len ? text.charAt(i) : '\n';
+			if (c == '\n') {
+				if (i > lineStart) {
+					html.append(text, lineStart, i);
+					html.append("<br>");
+				}
+				lineStart = i + 1;
+			}
+			else if (blank && c > ' ')
+				blank = false;
+		}
+		// output consisting only of whitespace is no message at all
+		if (blank)
+			return "";
+		return html.toString();
+	}
 	
 	@Override
 	public String toString() {
@@ -37,6 +37,7 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
+import to.doc.android.ipv6config.LinuxIPCommandHelper.InetAddressWithNetmask;
 import android.annotation.SuppressLint;
 import android.util.Log;
 
@@ -66,6 +67,31 @@ public class IPv6AddressesHelper {
 	public final static String GET_OUTBOUND_IP_URL = 
 		GET_OUTBOUND_IP_URL_PROTOCOL + GET_OUTBOUND_IP_SERVER + ":" + GET_OUTBOUND_IP_PORT + GET_OUTBOUND_IP_URL_PATH;
 
+	/** Predicts the IPv6/IPv4 address that getOutboundIPAddress would report
+	 * (unless there is NAT or a proxy on the path), locally and without any 
+	 * DNS or network traffic: the default source address selection rules
+	 * are applied to the routes and addresses in the snapshot for a 
+	 * connection to GET_OUTBOUND_IP_SERVER.
+	 *
+	 * @param queryIPv6 If true, predicts the IPv6 address, otherwise the IPv4 address.
+	 * @param snapshot The network state to use, or null to capture the current state.
+	 *        Whether temporary addresses are preferred is always taken from
+	 *        the current kernel options.
+	 * @return the predicted address or null if no route or address is available.
+	 */
+	public static InetAddress predictOutboundIPAddress(boolean queryIPv6, NetworkSnapshot snapshot) {
+		try {
+			if (snapshot == null)
+				snapshot = NetworkSnapshot.capture();
+		} catch (IOException e) {
+			logger.warning("Unable to capture network state for predicting the outbound address: " + e);
+			return null;
+		}
+		PackedAddress server = PackedAddress.parse(queryIPv6 ? GET_OUTBOUND_IP_SERVER_ADDRESSv6 : GET_OUTBOUND_IP_SERVER_ADDRESSv4);
+		InetAddressWithNetmask addr = new SourceAddressSelector(snapshot).selectSourceAddress(server);
+		return addr != null ? addr.address : null;
+	}
+
 	/** This method tries to retrieve the IPv6/IPv4 address visible to servers by 
      * querying https://doc.to/getip/.
      * 
@@ -266,15 +292,9 @@ public class IPv6AddressesHelper {
 		if (address == null || ! (address instanceof Inet6Address))
 			// only check valid IPv6 addresses
 			return false;
-		Inet6Address addr6 = (Inet6Address) address;
-		
-		if (addr6.isLinkLocalAddress())
-			// if it's link-local, it may be MAC-derived, but not privacy sensitive
-			return false;
-
-		byte[] addrByte = addr6.getAddress();
+		// if it's link-local, it may be MAC-derived, but not privacy sensitive;
 		// MAC-derivation adds "FFFE" in the middle of the 48 bits MAC
-		return addrByte[11] == (byte) 0xff && addrByte[12] == (byte) 0xfe;
+		return PackedAddress.fromInetAddress(address, 128).isIPv6GlobalMacDerivedAddress();
 	}
 	
 	/** Computes the 64 bit 6to4 prefix from a given IPv4 base address. The 
@@ -289,6 +309,147 @@ public class IPv6AddressesHelper {
 				addrBytes[0], addrBytes[1], addrBytes[2], addrBytes[3]);
 		return prefix;
 	}
+
+	/** Formats an IPv6 address in the compressed form also used by the "ip"
+	 * command (inet_ntop): lower case hex without leading zeros, the longest
+	 * run of at least two zero groups (the first one on ties) replaced by 
+	 * "::", and IPv4-compatible or -mapped addresses with the last 32 bits
+	 * in dotted decimal notation (e.g. "::ffff:192.0.2.1").
+	 */
+	public static String formatIPv6Address(byte[] addr) {
+		int[] words = new int[8];
+		for (int i=0; i<8; i++)
+			words[i] = ((addr[2*i] & 0xff) << 8) | (addr[2*i+1] & 0xff);
+
+		// find the longest run of zero groups
+		int bestStart = -1, bestLen = 0;
+		for (int i=0; i<8; ) {
+			if (words[i] != 0) {
+				i++;
+				continue;
+			}
+			int start = i;
+			while (i < 8 && words[i] == 0)
+				i++;
+			if (i - start > bestLen) {
+				bestStart = start;
+				bestLen = i - start;
+			}
+		}
+		if (bestLen < 2)
+			bestStart = -1;
+
+		StringBuffer out = new StringBuffer(39);
+		for (int i=0; i<8; i++) {
+			if (i == bestStart) {
+				out.append(':');
+				i += bestLen - 1;
+				if (i == 7)
+					out.append(':');
+				continue;
+			}
+			if (i > 0)
+				out.append(':');
+			if (i == 6 && bestStart == 0 && (bestLen == 6 || (bestLen == 5 && words[5] == 0xffff))) {
+				out.append(addr[12] & 0xff).append('.').append(addr[13] & 0xff).append('.')
+					.append(addr[14] & 0xff).append('.').append(addr[15] & 0xff);
+				break;
+			}
+			out.append(Integer.toHexString(words[i]));
+		}
+		return out.toString();
+	}
+
+	/** Parses an IPv4 address in dotted decimal notation (exactly four 
+	 * decimal parts) from s[start..end) into addr[offset..offset+4), without
+	 * creating any objects and without name resolution.
+	 *
+	 * @return true if the characters form a valid IPv4 address.
+	 */
+	public static boolean parseIPv4Address(CharSequence s, int start, int end, byte[] addr, int offset) {
+		int part = 0, value = 0, digits = 0;
+		for (int i=start; i<end; i++) {
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				if (++digits > 3 || value > 255)
+					return false;
+			}
+			else if (c == '.' && digits > 0 && part < 3) {
+				addr[offset + part++] = (byte) value;
+				value = 0;
+				digits = 0;
+			}
+			else
+				return false;
+		}
+		if (part != 3 || digits == 0)
+			return false;
+		addr[offset + 3] = (byte) value;
+		return true;
+	}
+
+	/** Parses an IPv6 address in any of the textual forms of RFC 4291 
+	 * (including "::" compression and a trailing dotted decimal IPv4 part)
+	 * from s[start..end) into the 16 bytes of addr, without creating any
+	 * objects and without name resolution. Scope IDs are not accepted.
+	 *
+	 * @return true if the characters form a valid IPv6 address.
+	 */
+	public static boolean parseIPv6Address(CharSequence s, int start, int end, byte[] addr) {
+		int pos = 0, compressAt = -1, i = start;
+		if (end - start >= 2 && s.charAt(i) == ':') {
+			// only a leading "::" may start with a colon
+			if (s.charAt(i+1) != ':')
+				return false;
+			compressAt = 0;
+			i += 2;
+		}
+		while (i < end) {
+			if (pos == 16)
+				return false;
+			int groupStart = i, value = 0;
+			for (; i < end && i - groupStart < 5; i++) {
+				int digit = Character.digit(s.charAt(i), 16);
+				if (digit < 0)
+					break;
+				value = (value << 4) | digit;
+			}
+			if (i < end && s.charAt(i) == '.') {
+				// embedded IPv4 address as the last 32 bits
+				if (pos > 12 || !parseIPv4Address(s, groupStart, end, addr, pos))
+					return false;
+				pos += 4;
+				break;
+			}
+			if (i == groupStart || i - groupStart > 4)
+				return false;
+			addr[pos++] = (byte) (value >> 8);
+			addr[pos++] = (byte) value;
+			if (i == end)
+				break;
+			if (s.charAt(i) != ':' || ++i == end)
+				return false;
+			if (s.charAt(i) == ':') {
+				if (compressAt >= 0)
+					return false;
+				compressAt = pos;
+				i++;
+			}
+		}
+		if (compressAt >= 0) {
+			if (pos == 16)
+				return false;
+			int shift = 16 - pos;
+			for (int j=pos-1; j>=compressAt; j--)
+				addr[j + shift] = addr[j];
+			for (int j=compressAt; j<compressAt+shift; j++)
+				addr[j] = 0;
+		}
+		else if (pos != 16)
+			return false;
+		return true;
+	}
     
     /** Dummy main routine to call the helper methods and print on console. */
     public static void main(String[] args) throws UnknownHostException {
@@ -14,6 +14,7 @@ package to.doc.android.ipv6config;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.LinkedList;
 
@@ -141,12 +142,14 @@ public class IPv6Config extends Activity {
     @Override
     public void onPause() {
 		savePreferences();
+		LinuxIPCommandHelper.stopInterfaceMonitoring();
 		super.onPause();
     }
     
     @Override
     public void onResume() {
         super.onResume();
+        LinuxIPCommandHelper.startInterfaceMonitoring();
         displayLocalAddresses();
     }
     
@@ -194,9 +197,11 @@ public class IPv6Config extends Activity {
     }
     
     /** A helper class to query the doc.to server for the externally visible 
-     * IPv6 address asynchronously.
+     * IPv6 address asynchronously. For IPv6, the outbound address is first
+     * predicted locally from the current addresses and routes and shown
+     * immediately, and the server query only confirms (or corrects) it.
      */
-    private class DetermineAddressTask extends AsyncTask<Void, Void, String> {
+    private class DetermineAddressTask extends AsyncTask<Void, String, String> {
     	private boolean doIPv6;
     	private TextView globalAddress;
     	
@@ -210,8 +215,27 @@ public class IPv6Config extends Activity {
     	
     	/** This method will be executed in a background thread when execute() is called. */
     	protected String doInBackground(Void... noParms) {
+    		if (doIPv6) {
+    			InetAddress predicted = IPv6AddressesHelper.predictOutboundIPAddress(true, null);
+    			if (predicted != null)
+    				publishProgress(IPv6AddressesHelper.formatIPv6Address(predicted.getAddress()));
+    		}
     		return IPv6AddressesHelper.getOutboundIPAddress(doIPv6);
     	}
+
+    	/** This method will be executed in the UI thread when the local prediction is available. */
+    	protected void onProgressUpdate(String... predictedAddr) {
+    		// don't overwrite the server's answer if it was faster
+    		if (getStatus() != Status.RUNNING)
+    			return;
+    		try {
+    			globalAddress.setText(predictedAddr[0] + "\n" + 
+    					getPrivacyVerdict(Inet6Address.getByName(predictedAddr[0])) + "\n" +
+    					getString(R.string.predictedLocally));
+    		} catch (UnknownHostException e) {
+    			Log.e(Constants.LOG_TAG, "Unable to generate Inet6Address object from string " + predictedAddr[0], e);
+    		}
+    	}
     	
     	/** This method will be executed in the UI thread after doInBackground finishes. */
     	protected void onPostExecute(String outboundAddr) {
@@ -240,14 +264,7 @@ public class IPv6Config extends Activity {
     		} else {
     			// special handling for IPv6 addresses
             	try {
-            		if (IPv6AddressesHelper.isIPv6GlobalMacDerivedAddress(Inet6Address.getByName(outboundAddr))) {
-        				outboundAddr += "\n" + getString(R.string.ipv6GlobalAddressIsMacDerived);
-        				globalAddress.setTextColor(Color.RED);
-        			}
-        			else {
-        				outboundAddr += "\n" + getString(R.string.ipv6GlobalAddressIsNotMacDerived);
-        				globalAddress.setTextColor(Color.GREEN);
-        			}
+            		outboundAddr += "\n" + getPrivacyVerdict(Inet6Address.getByName(outboundAddr));
         		} catch (UnknownHostException e) {
         			Log.e(Constants.LOG_TAG, "Unable to generate Inet6Address object from string " + outboundAddr, e);
         		}
@@ -255,6 +272,18 @@ public class IPv6Config extends Activity {
     		
     		globalAddress.setText(outboundAddr);
     	}
+
+    	/** Returns the privacy verdict for an IPv6 address and sets the text color accordingly. */
+    	private String getPrivacyVerdict(InetAddress addr) {
+    		if (IPv6AddressesHelper.isIPv6GlobalMacDerivedAddress(addr)) {
+    			globalAddress.setTextColor(Color.RED);
+    			return getString(R.string.ipv6GlobalAddressIsMacDerived);
+    		}
+    		else {
+    			globalAddress.setTextColor(Color.GREEN);
+    			return getString(R.string.ipv6GlobalAddressIsNotMacDerived);
+    		}
+    	}
     }
 
     public void determineAddress(View v) {
@@ -0,0 +1,38 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import android.app.Application;
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
+import android.util.Log;
+
+/** This class initializes process-wide state once, before any activity,
+ * service, or receiver is created, so that the IPv6Config activity and the
+ * NetOpsService share the same setup. It is referenced from the Android
+ * Manifest.
+ * 
+ * @author René Mayrhofer
+ */
+public class IPv6ConfigApplication extends Application {
+	@Override
+	public void onCreate() {
+		super.onCreate();
+
+		// the netlink helper is shipped as native library (if built with the NDK)
+		ApplicationInfo info = getApplicationInfo();
+		String libDir = Build.VERSION.SDK_INT >= 9 ? info.nativeLibraryDir : info.dataDir + "/lib";
+		NetlinkBatch.setHelperLocation(libDir + "/" + NetlinkBatch.HELPER_FILE_NAME);
+		Log.v(Constants.LOG_TAG, "Netlink helper " + (NetlinkBatch.isHelperAvailable() ? "found" : "not found") + 
+				" in " + libDir);
+	}
+}
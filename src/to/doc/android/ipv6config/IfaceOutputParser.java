@@ -0,0 +1,713 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import to.doc.android.ipv6config.LinuxIPCommandHelper.InetAddressWithNetmask;
+import to.doc.android.ipv6config.LinuxIPCommandHelper.InterfaceDetail;
+
+/** This class parses the output of "ip addr" into InterfaceDetail objects
+ * in a single pass over the characters. Tokens are compared in place,
+ * address literals are parsed directly into byte arrays (and therefore
+ * never trigger name resolution), and address flags and lifetimes are
+ * read from their positions in the lines, so that only the result objects
+ * are allocated. This matters on hosts with hundreds of interfaces, e.g.
+ * containers with veth pairs.
+ *
+ * Besides the classic block format, the one-line ("ip -o addr") and JSON
+ * ("ip -j addr") formats of newer iproute2 versions are supported. These
+ * consist of independent records (lines or top-level JSON objects): 
+ * findRecords splits the output, parseRecord parses a single record
+ * without depending on any other, and merge combines the records to the
+ * same list of interfaces as the block format. Records can therefore be
+ * parsed on multiple threads.
+ *
+ * Instances keep the parsing state and are not thread-safe; use the static
+ * methods.
+ *
+ * @author Rene Mayrhofer
+ */
+final class IfaceOutputParser {
+	/** Our logger for this class. */
+	private final static Logger logger = Logger.getLogger(Constants.LOG_TAG);
+
+	/** Starts the remaining valid lifetime in the line following an address. */
+	private final static String VALID_LIFETIME = "valid_lft";
+	/** Starts the remaining preferred lifetime in the line following an address. */
+	private final static String PREFERRED_LIFETIME = "preferred_lft";
+	/** Lifetime value of addresses that don't expire. */
+	private final static String LIFETIME_FOREVER = "forever";
+	/** Unit suffix of lifetime values. */
+	private final static String LIFETIME_UNIT = "sec";
+	/** The flag within the <...> block of interface lines for interfaces that are up. */
+	private final static String INTERFACE_FLAG_UP = "UP";
+	/** Starts the link type in the interface block, e.g. "link/ether". */
+	private final static String LINK_TYPE_PREFIX = "link/";
+	/** Link type of Ethernet interfaces and, funnily enough, sometimes also the GPRS/UMTS interfaces. */
+	private final static String LINK_TYPE_ETHER = "ether";
+	/** Link type of PPP interfaces and, therefore, GPRS/UMTS connections using PPP. */
+	private final static String LINK_TYPE_PPP = "ppp";
+	/** Link type of tun interfaces in newer iproute2 versions, older ones print "[65534]". */
+	private final static String LINK_TYPE_NONE = "none";
+	/** Link type of raw IP (e.g. rmnet) interfaces in newer iproute2 versions, older ones print "[530]". */
+	private final static String LINK_TYPE_RAWIP = "rawip";
+
+	/** The classic output of "ip addr" with one block of lines per interface. */
+	final static int FORMAT_BLOCK = 0;
+	/** The output of "ip -o addr" with one line per interface and per address. */
+	final static int FORMAT_ONELINE = 1;
+	/** The output of "ip -j addr" with one JSON object per interface. */
+	final static int FORMAT_JSON = 2;
+
+	/** Keys of the JSON format. */
+	private final static String JSON_IFNAME = "ifname";
+	private final static String JSON_FLAGS = "flags";
+	private final static String JSON_MTU = "mtu";
+	private final static String JSON_LINK_TYPE = "link_type";
+	private final static String JSON_LINK_ADDRESS = "address";
+	private final static String JSON_ADDR_INFO = "addr_info";
+	private final static String JSON_LOCAL = "local";
+	private final static String JSON_PREFIXLEN = "prefixlen";
+	private final static String JSON_VALID_LIFETIME = "valid_life_time";
+	private final static String JSON_PREFERRED_LIFETIME = "preferred_life_time";
+
+	/** One independently parsed record of the one-line or JSON format:
+	 * either the details of an interface (with all of its addresses for 
+	 * the JSON format), or a single address of the named interface. 
+	 */
+	static class Record {
+		public String name;
+		public InterfaceDetail iface;
+		public InetAddressWithNetmask address;
+	}
+
+	private final String out;
+	/** End of the range to parse within out. */
+	private final int length;
+	/** Current position within the current line. */
+	private int pos;
+	/** End of the current line. */
+	private int lineEnd = -1;
+	/** Bounds of the current token within the current line. */
+	private int tokenStart, tokenEnd;
+	/** Scratch buffers for address literals, copied by InetAddress.getByAddress. */
+	private final byte[] ipv4 = new byte[4];
+	private final byte[] ipv6 = new byte[16];
+
+	private IfaceOutputParser(String out, int start, int end) {
+		this.out = out;
+		this.length = end;
+		this.pos = start;
+		this.lineEnd = start - 1;
+	}
+
+	/** Parses the output of "ip addr" (all or only a single interface) in the
+	 * classic block format.
+	 * As before, only Ethernet, PPP, tun, and ADB interfaces are returned.
+	 *
+	 * @return the interfaces in the order of the output.
+	 */
+	static LinkedList<InterfaceDetail> parse(String output) {
+		return new IfaceOutputParser(output, 0, output.length()).parseBlocks();
+	}
+
+	/** Parses the output of "ip addr" in the given format (one of the FORMAT_ constants). */
+	static LinkedList<InterfaceDetail> parse(String output, int format) {
+		if (format == FORMAT_BLOCK)
+			return parse(output);
+		int[] bounds = findRecords(output, format);
+		List<Record> records = new ArrayList<Record>(bounds.length);
+		for (int i=0; i<bounds.length-1; i++) {
+			Record record = parseRecord(output, bounds[i], bounds[i+1], format);
+			if (record != null)
+				records.add(record);
+		}
+		return merge(records);
+	}
+
+	/** Splits one-line or JSON output into records: record i spans from 
+	 * bounds[i] to bounds[i+1]. Whitespace and the separators between 
+	 * records may be part of a record.
+	 */
+	static int[] findRecords(String output, int format) {
+		int[] bounds = new int[16];
+		int num = 0;
+		if (format == FORMAT_ONELINE) {
+			int i = 0;
+			while (i < output.length()) {
+				bounds = addBound(bounds, num++, i);
+				int next = output.indexOf('\n', i);
+				if (next < 0)
+					break;
+				i = next + 1;
+			}
+		}
+		else {
+			// top-level objects in the JSON array
+			int depth = 0;
+			boolean inString = false;
+			for (int i=0; i<output.length(); i++) {
+				char c = output.charAt(i);
+				if (inString) {
+					if (c == '\\')
+						i++;
+					else if (c == '"')
+						inString = false;
+				}
+				else if (c == '"')
+					inString = true;
+				else if (c == '{' || c == '[') {
+					if (depth++ == 1 && c == '{')
+						bounds = addBound(bounds, num++, i);
+				}
+				else if (c == '}' || c == ']')
+					depth--;
+			}
+		}
+		bounds = addBound(bounds, num++, output.length());
+		int[] ret = new int[num];
+		System.arraycopy(bounds, 0, ret, 0, num);
+		return ret;
+	}
+
+	private static int[] addBound(int[] bounds, int index, int value) {
+		if (index == bounds.length) {
+			int[] tmp = new int[bounds.length * 2];
+			System.arraycopy(bounds, 0, tmp, 0, bounds.length);
+			bounds = tmp;
+		}
+		bounds[index] = value;
+		return bounds;
+	}
+
+	/** Parses a single record of one-line or JSON output, independently of
+	 * all other records and therefore safe to call on multiple threads.
+	 *
+	 * @return the record, or null if the range contains no valid record.
+	 */
+	static Record parseRecord(String output, int start, int end, int format) {
+		IfaceOutputParser parser = new IfaceOutputParser(output, start, end);
+		return format == FORMAT_JSON ? parser.parseJsonRecord() : parser.parseOneLineRecord();
+	}
+
+	/** Combines records in their order to interface details, the same as
+	 * the block format would have resulted in.
+	 */
+	static LinkedList<InterfaceDetail> merge(List<Record> records) {
+		LinkedHashMap<String, InterfaceDetail> ifaces = new LinkedHashMap<String, InterfaceDetail>();
+		for (Record record : records) {
+			InterfaceDetail cur = ifaces.get(record.name);
+			if (record.iface != null) {
+				// keep addresses of records that came before the interface details
+				if (cur != null)
+					record.iface.addresses.addAll(0, cur.addresses);
+				ifaces.put(record.name, record.iface);
+			}
+			else {
+				if (cur == null) {
+					cur = new InterfaceDetail();
+					cur.name = record.name;
+					ifaces.put(record.name, cur);
+				}
+				cur.addresses.add(record.address);
+			}
+		}
+		LinkedList<InterfaceDetail> list = new LinkedList<InterfaceDetail>();
+		for (InterfaceDetail cur : ifaces.values())
+			addIfSupported(list, cur);
+		return list;
+	}
+
+	private LinkedList<InterfaceDetail> parseBlocks() {
+		LinkedList<InterfaceDetail> list = new LinkedList<InterfaceDetail>();
+		InterfaceDetail cur = null;
+		InetAddressWithNetmask lastAddr = null;
+
+		while (nextLine()) {
+			if (pos == lineEnd)
+				continue;
+			char first = out.charAt(pos);
+			if (first != ' ' && first != '\t') {
+				// lines that start without whitespace start a new block, flush the last interface
+				addIfSupported(list, cur);
+				cur = parseInterfaceLine();
+				lastAddr = null;
+				continue;
+			}
+			// within a block, but ignore garbage before the first interface line
+			if (cur == null || !nextToken())
+				continue;
+
+			if (tokenIs(LinuxIPCommandHelper.ADDRESS_IPV4) || tokenIs(LinuxIPCommandHelper.ADDRESS_IPV6)) {
+				lastAddr = parseAddress();
+				if (lastAddr != null)
+					cur.addresses.add(lastAddr);
+			}
+			else if (tokenIs(VALID_LIFETIME)) {
+				if (lastAddr != null)
+					parseLifetimes(lastAddr);
+			}
+			else if (tokenStartsWith(LINK_TYPE_PREFIX))
+				parseLinkType(cur);
+		}
+		// save the last block info
+		addIfSupported(list, cur);
+		return list;
+	}
+
+	/** Only link/ether and link/ppp and two other types (tun and adb) for now. */
+	private static void addIfSupported(LinkedList<InterfaceDetail> list, InterfaceDetail cur) {
+		if (cur != null && (cur.mac != null || cur.isPPP || cur.isOther)) {
+			if (logger.isLoggable(Level.FINEST))
+				logger.finest("Parsed interface " + cur.name + ", mtu " + cur.mtu + ", up " + cur.isUp +
+						", " + cur.addresses.size() + " addresses");
+			list.add(cur);
+		}
+	}
+
+	/** Parses "2: eth0: <BROADCAST,MULTICAST,UP,LOWER_UP> mtu 1500 ...". */
+	private InterfaceDetail parseInterfaceLine() {
+		InterfaceDetail cur = new InterfaceDetail();
+		cur.isUp = false;
+		cur.name = parseInterfaceName();
+		pos++;
+		parseInterfaceOptions(cur);
+		return cur;
+	}
+
+	/** Parses "2: eth0" or "5: veth0@if4" and stops at the ':' after the 
+	 * name, if any, or at the first blank after the name. 
+	 */
+	private String parseInterfaceName() {
+		// skip the interface index
+		int i = pos;
+		while (i < lineEnd && out.charAt(i) != ':')
+			i++;
+		i++;
+		while (i < lineEnd && (out.charAt(i) == ' ' || out.charAt(i) == '\t'))
+			i++;
+		// the name ends at the next ':', or at '@' for the "veth0@if5" notation of linked interfaces
+		int nameStart = i;
+		while (i < lineEnd && out.charAt(i) != ':' && out.charAt(i) != '@' && !isBlank(out.charAt(i)))
+			i++;
+		String name = out.substring(nameStart, i);
+		while (i < lineEnd && out.charAt(i) != ':' && !isBlank(out.charAt(i)))
+			i++;
+		pos = i;
+		return name;
+	}
+
+	/** Parses flags, MTU, and (in the one-line format) link type of an interface until the end of the line. */
+	private void parseInterfaceOptions(InterfaceDetail cur) {
+		while (nextToken()) {
+			if (out.charAt(tokenStart) == '<') {
+				// comma separated flags, at the moment only look for "UP"
+				int flagStart = tokenStart + 1;
+				for (int j=flagStart; j<tokenEnd; j++) {
+					char c = out.charAt(j);
+					if (c == ',' || c == '>') {
+						if (j - flagStart == INTERFACE_FLAG_UP.length() &&
+								out.regionMatches(flagStart, INTERFACE_FLAG_UP, 0, INTERFACE_FLAG_UP.length()))
+							cur.isUp = true;
+						flagStart = j + 1;
+					}
+				}
+			}
+			else if (tokenIs(LinuxIPCommandHelper.INTERFACE_MTU) && nextToken())
+				cur.mtu = (int) StringHelper.parseDecimalLong(out, tokenStart, tokenEnd);
+			else if (tokenStartsWith(LINK_TYPE_PREFIX))
+				parseLinkType(cur);
+		}
+	}
+
+	/** Parses "link/ether 02:11:22:33:44:55 ..." with the current token "link/...". */
+	private void parseLinkType(InterfaceDetail cur) {
+		int type = linkType(tokenStart + LINK_TYPE_PREFIX.length(), tokenEnd);
+		String mac = null;
+		if (type == LinuxIPCommandHelper.ARPHRD_ETHER && nextToken())
+			mac = out.substring(tokenStart, tokenEnd);
+		LinuxIPCommandHelper.setLinkType(cur, type, mac);
+	}
+
+	/** Returns the ARPHRD_ type for a link type name, or -1 for unknown names. */
+	private int linkType(int start, int end) {
+		if (regionIs(start, end, LINK_TYPE_ETHER))
+			return LinuxIPCommandHelper.ARPHRD_ETHER;
+		if (regionIs(start, end, LINK_TYPE_PPP))
+			return LinuxIPCommandHelper.ARPHRD_PPP;
+		if (regionIs(start, end, LINK_TYPE_NONE))
+			return LinuxIPCommandHelper.ARPHRD_NONE;
+		if (regionIs(start, end, LINK_TYPE_RAWIP))
+			return LinuxIPCommandHelper.ARPHRD_RAWIP;
+		// types without name are printed as number, e.g. "[65534]"
+		if (end - start > 2 && out.charAt(start) == '[' && out.charAt(end-1) == ']')
+			return (int) StringHelper.parseDecimalLong(out, start+1, end-1);
+		return -1;
+	}
+
+	/** Parses a line of "ip -o addr": either "2: eth0: <...> mtu 1500 ...\    link/ether ..."
+	 * or "2: eth0    inet6 fe80::1/64 scope link \       valid_lft forever preferred_lft forever".
+	 */
+	private Record parseOneLineRecord() {
+		if (!nextLine() || pos == lineEnd)
+			return null;
+		Record record = new Record();
+		record.name = parseInterfaceName();
+		if (record.name.length() == 0)
+			return null;
+		if (pos < lineEnd && out.charAt(pos) == ':') {
+			pos++;
+			record.iface = new InterfaceDetail();
+			record.iface.isUp = false;
+			record.iface.name = record.name;
+			parseInterfaceOptions(record.iface);
+			return record;
+		}
+		if (nextToken() && (tokenIs(LinuxIPCommandHelper.ADDRESS_IPV4) || tokenIs(LinuxIPCommandHelper.ADDRESS_IPV6)))
+			record.address = parseAddress();
+		return record.address != null ? record : null;
+	}
+
+	/** Parses "inet6 fe80::1/64 scope link tentative ..." after the first token. */
+	private InetAddressWithNetmask parseAddress() {
+		boolean isIPv6 = tokenEnd - tokenStart == LinuxIPCommandHelper.ADDRESS_IPV6.length();
+		if (!nextToken())
+			return null;
+
+		int slash = tokenStart;
+		while (slash < tokenEnd && out.charAt(slash) != '/')
+			slash++;
+		InetAddressWithNetmask addr = new InetAddressWithNetmask();
+		addr.address = parseAddressLiteral(tokenStart, slash, isIPv6);
+		int maxLength = isIPv6 ? 128 : 32;
+		addr.subnetLength = slash < tokenEnd ?
+				(int) StringHelper.parseDecimalLong(out, slash+1, tokenEnd) : maxLength;
+		if (addr.address == null || addr.subnetLength < 0 || addr.subnetLength > maxLength) {
+			logger.warning("Ignoring invalid address '" + out.substring(tokenStart, tokenEnd) + "'");
+			return null;
+		}
+
+		// additional modifiers are single tokens in the rest of the line
+		while (nextToken()) {
+			if (tokenIs(LinuxIPCommandHelper.ADDRESS_MODIFIER_SECONDARY))
+				addr.markedSecondary = true;
+			else if (tokenIs(LinuxIPCommandHelper.ADDRESS_MODIFIER_TEMPORARY))
+				addr.markedTemporary = true;
+			else if (tokenIs(LinuxIPCommandHelper.ADDRESS_MODIFIER_DEPRECATED))
+				addr.markedDeprecated = true;
+			else if (tokenIs(LinuxIPCommandHelper.ADDRESS_MODIFIER_TENTATIVE))
+				addr.markedTentative = true;
+			else if (tokenIs(LinuxIPCommandHelper.ADDRESS_MODIFIER_DADFAILED))
+				addr.markedDadFailed = true;
+			// the one-line format continues with the lifetimes
+			else if (tokenIs(VALID_LIFETIME))
+				parseLifetimes(addr);
+		}
+		return addr;
+	}
+
+	/** Parses the address literal in out[start..end) and returns it, or null if it is invalid. */
+	private InetAddress parseAddressLiteral(int start, int end, boolean isIPv6) {
+		try {
+			if (isIPv6 ? IPv6AddressesHelper.parseIPv6Address(out, start, end, ipv6) :
+					IPv6AddressesHelper.parseIPv4Address(out, start, end, ipv4, 0))
+				return InetAddress.getByAddress(isIPv6 ? ipv6 : ipv4);
+		} catch (UnknownHostException e) {
+			// can not happen with 4 or 16 bytes
+		}
+		return null;
+	}
+
+	/** Parses "valid_lft 604778sec preferred_lft 86378sec" after the first token. */
+	private void parseLifetimes(InetAddressWithNetmask addr) {
+		if (nextToken())
+			addr.validLifetime = parseLifetime();
+		if (nextToken() && tokenIs(PREFERRED_LIFETIME) && nextToken())
+			addr.preferredLifetime = parseLifetime();
+	}
+
+	private long parseLifetime() {
+		if (tokenIs(LIFETIME_FOREVER))
+			return InetAddressWithNetmask.LIFETIME_FOREVER;
+		int end = tokenEnd;
+		if (end - tokenStart > LIFETIME_UNIT.length() &&
+				out.regionMatches(end - LIFETIME_UNIT.length(), LIFETIME_UNIT, 0, LIFETIME_UNIT.length()))
+			end -= LIFETIME_UNIT.length();
+		return StringHelper.parseDecimalLong(out, tokenStart, end);
+	}
+
+	/** Advances to the next line, which then starts at pos and ends at lineEnd. */
+	private boolean nextLine() {
+		pos = lineEnd + 1;
+		if (pos >= length)
+			return false;
+		lineEnd = out.indexOf('\n', pos);
+		if (lineEnd < 0 || lineEnd > length)
+			lineEnd = length;
+		return true;
+	}
+
+	/** Finds the next blank separated token in the current line. */
+	private boolean nextToken() {
+		int i = pos;
+		while (i < lineEnd && isBlank(out.charAt(i)))
+			i++;
+		tokenStart = i;
+		while (i < lineEnd && !isBlank(out.charAt(i)))
+			i++;
+		tokenEnd = i;
+		pos = i;
+		return tokenEnd > tokenStart;
+	}
+
+	/** The one-line format replaces line breaks within a record with a backslash. */
+	private static boolean isBlank(char c) {
+		return c == ' ' || c == '\t' || c == '\\';
+	}
+
+	private boolean tokenIs(String s) {
+		return regionIs(tokenStart, tokenEnd, s);
+	}
+
+	private boolean tokenContains(char c) {
+		for (int i=tokenStart; i<tokenEnd; i++)
+			if (out.charAt(i) == c)
+				return true;
+		return false;
+	}
+
+	private boolean tokenStartsWith(String s) {
+		return tokenEnd - tokenStart > s.length() && out.regionMatches(tokenStart, s, 0, s.length());
+	}
+
+	private boolean regionIs(int start, int end, String s) {
+		return end - start == s.length() && out.regionMatches(start, s, 0, s.length());
+	}
+
+	/** Parses one object of "ip -j addr", e.g. {"ifindex":2,"ifname":"eth0",
+	 * "flags":["BROADCAST","MULTICAST","UP"],"mtu":1500,"link_type":"ether",
+	 * "address":"02:11:22:33:44:55","addr_info":[{"family":"inet6",
+	 * "local":"fe80::1","prefixlen":64,"valid_life_time":4294967295,...}]}.
+	 */
+	private Record parseJsonRecord() {
+		lineEnd = length;
+		skipJsonWhitespace();
+		if (pos >= length || out.charAt(pos) != '{')
+			return null;
+		pos++;
+		InterfaceDetail cur = new InterfaceDetail();
+		cur.isUp = false;
+		int type = -1;
+		String mac = null;
+		while (nextJsonKey()) {
+			if (tokenIs(JSON_IFNAME) && nextJsonString())
+				cur.name = jsonString();
+			else if (tokenIs(JSON_FLAGS) && expectJson('[')) {
+				while (nextJsonArrayElement(']')) {
+					if (!nextJsonString())
+						skipJsonValue();
+					else if (tokenIs(INTERFACE_FLAG_UP))
+						cur.isUp = true;
+				}
+			}
+			else if (tokenIs(JSON_MTU) && nextJsonNumber())
+				cur.mtu = (int) StringHelper.parseDecimalLong(out, tokenStart, tokenEnd);
+			else if (tokenIs(JSON_LINK_TYPE) && nextJsonString())
+				type = linkType(tokenStart, tokenEnd);
+			else if (tokenIs(JSON_LINK_ADDRESS) && nextJsonString())
+				mac = jsonString();
+			else if (tokenIs(JSON_ADDR_INFO) && expectJson('[')) {
+				while (nextJsonArrayElement(']')) {
+					InetAddressWithNetmask addr = parseJsonAddress();
+					if (addr != null)
+						cur.addresses.add(addr);
+				}
+			}
+			else
+				skipJsonValue();
+		}
+		if (cur.name == null)
+			return null;
+		LinuxIPCommandHelper.setLinkType(cur, type, mac);
+		Record record = new Record();
+		record.name = cur.name;
+		record.iface = cur;
+		return record;
+	}
+
+	/** Parses one object of the "addr_info" array. */
+	private InetAddressWithNetmask parseJsonAddress() {
+		if (!expectJson('{')) {
+			skipJsonValue();
+			return null;
+		}
+		InetAddressWithNetmask addr = new InetAddressWithNetmask();
+		int prefixLength = -1;
+		boolean isIPv6 = false;
+		while (nextJsonKey()) {
+			if (tokenIs(JSON_LOCAL) && nextJsonString()) {
+				isIPv6 = tokenContains(':');
+				addr.address = parseAddressLiteral(tokenStart, tokenEnd, isIPv6);
+			}
+			else if (tokenIs(JSON_PREFIXLEN) && nextJsonNumber())
+				prefixLength = (int) StringHelper.parseDecimalLong(out, tokenStart, tokenEnd);
+			else if (tokenIs(JSON_VALID_LIFETIME) && nextJsonNumber())
+				addr.validLifetime = StringHelper.parseDecimalLong(out, tokenStart, tokenEnd);
+			else if (tokenIs(JSON_PREFERRED_LIFETIME) && nextJsonNumber())
+				addr.preferredLifetime = StringHelper.parseDecimalLong(out, tokenStart, tokenEnd);
+			else if (tokenIs(LinuxIPCommandHelper.ADDRESS_MODIFIER_SECONDARY))
+				addr.markedSecondary = nextJsonTrue();
+			else if (tokenIs(LinuxIPCommandHelper.ADDRESS_MODIFIER_TEMPORARY))
+				addr.markedTemporary = nextJsonTrue();
+			else if (tokenIs(LinuxIPCommandHelper.ADDRESS_MODIFIER_DEPRECATED))
+				addr.markedDeprecated = nextJsonTrue();
+			else if (tokenIs(LinuxIPCommandHelper.ADDRESS_MODIFIER_TENTATIVE))
+				addr.markedTentative = nextJsonTrue();
+			else if (tokenIs(LinuxIPCommandHelper.ADDRESS_MODIFIER_DADFAILED))
+				addr.markedDadFailed = nextJsonTrue();
+			else
+				skipJsonValue();
+		}
+		int maxLength = isIPv6 ? 128 : 32;
+		addr.subnetLength = prefixLength >= 0 ? prefixLength : maxLength;
+		if (addr.address == null || addr.subnetLength > maxLength) {
+			logger.warning("Ignoring invalid address in JSON output");
+			return null;
+		}
+		return addr;
+	}
+
+	private void skipJsonWhitespace() {
+		while (pos < length && (out.charAt(pos) == ' ' || out.charAt(pos) == '\t' || 
+				out.charAt(pos) == '\n' || out.charAt(pos) == '\r'))
+			pos++;
+	}
+
+	/** Consumes the given character after optional whitespace. */
+	private boolean expectJson(char c) {
+		skipJsonWhitespace();
+		if (pos < length && out.charAt(pos) == c) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	/** Moves to the next element of an array (or member of an object) up 
+	 * to the closing character, consuming separating commas.
+	 */
+	private boolean nextJsonArrayElement(char close) {
+		skipJsonWhitespace();
+		if (pos < length && out.charAt(pos) == ',')
+			pos++;
+		skipJsonWhitespace();
+		if (pos >= length)
+			return false;
+		if (out.charAt(pos) == close) {
+			pos++;
+			return false;
+		}
+		return true;
+	}
+
+	/** Reads the next key of an object into the current token and consumes the ':'. */
+	private boolean nextJsonKey() {
+		return nextJsonArrayElement('}') && nextJsonString() && expectJson(':');
+	}
+
+	/** Reads a string into the current token (without quotes, escapes are not resolved). */
+	private boolean nextJsonString() {
+		if (!expectJson('"'))
+			return false;
+		tokenStart = pos;
+		while (pos < length && out.charAt(pos) != '"')
+			pos += out.charAt(pos) == '\\' ? 2 : 1;
+		tokenEnd = Math.min(pos, length);
+		pos++;
+		return true;
+	}
+
+	/** Returns the current string token with escape sequences resolved. */
+	private String jsonString() {
+		if (!tokenContains('\\'))
+			return out.substring(tokenStart, tokenEnd);
+		StringBuffer ret = new StringBuffer(tokenEnd - tokenStart);
+		for (int i=tokenStart; i<tokenEnd; i++) {
+			char c = out.charAt(i);
+			if (c == '\\' && i+1 < tokenEnd) {
+				c = out.charAt(++i);
+				if (c == 'u' && i+4 < tokenEnd) {
+					c = (char) StringHelper.parseHex(out, i+1, i+5);
+					i += 4;
+				}
+				else if (c == 'n')
+					c = '\n';
+				else if (c == 't')
+					c = '\t';
+			}
+			ret.append(c);
+		}
+		return ret.toString();
+	}
+
+	/** Reads a non-negative integer into the current token. */
+	private boolean nextJsonNumber() {
+		skipJsonWhitespace();
+		tokenStart = pos;
+		while (pos < length && out.charAt(pos) >= '0' && out.charAt(pos) <= '9')
+			pos++;
+		tokenEnd = pos;
+		return tokenEnd > tokenStart;
+	}
+
+	/** Reads a boolean value and returns true if it is "true". */
+	private boolean nextJsonTrue() {
+		skipJsonWhitespace();
+		boolean ret = out.startsWith("true", pos);
+		skipJsonValue();
+		return ret;
+	}
+
+	/** Skips any value including nested objects and arrays. */
+	private void skipJsonValue() {
+		skipJsonWhitespace();
+		int depth = 0;
+		while (pos < length) {
+			char c = out.charAt(pos);
+			if (c == '"')
+				nextJsonString();
+			else {
+				if (c == '{' || c == '[')
+					depth++;
+				else if (c == '}' || c == ']') {
+					// the end of the enclosing object or array is not part of the value
+					if (depth == 0)
+						return;
+					depth--;
+				}
+				else if (c == ',' && depth == 0)
+					return;
+				pos++;
+			}
+			if (depth == 0 && (c == '"' || c == '}' || c == ']'))
+				return;
+		}
+	}
+}
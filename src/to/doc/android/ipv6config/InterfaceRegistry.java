@@ -0,0 +1,247 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/** This class keeps the names of all IPv6-capable network interfaces, i.e.
+ * the directories of the IPv6 configuration tree (without the special
+ * "all" and "default" entries), as a sorted array.
+ *
+ * The tree is enumerated once with a single directory listing. Afterwards,
+ * the set is either updated incrementally from link events ("ip monitor
+ * link", see startMonitoring) or enumerated again when it is older than
+ * the configured maximum age. Directory modification times can not be
+ * used for this, as procfs does not update them when interfaces appear or
+ * disappear. With monitoring, a full enumeration is only repeated after
+ * MONITORED_MAX_AGE as a safety net (e.g. for renamed interfaces) or when
+ * events have been lost.
+ *
+ * Published arrays are never modified, but replaced on changes, so callers
+ * can loop over them without copying or locking. They must not modify
+ * them either.
+ *
+ * @author Rene Mayrhofer
+ */
+public class InterfaceRegistry {
+	/** Our logger for this class. */
+	private final static Logger logger = Logger.getLogger(Constants.LOG_TAG);
+
+	/** Default maximum age of the set without monitoring (in milliseconds). */
+	public final static long DEFAULT_MAX_AGE = 2*1000;
+	/** Maximum age of the set while link events are monitored (in milliseconds). */
+	public final static long MONITORED_MAX_AGE = 5*60*1000;
+
+	/** Names of the tree that do not denote interfaces. */
+	private final static String CONF_INTERFACES_ALL = "all";
+	private final static String CONF_INTERFACES_DEFAULT = "default";
+	/** Prefix of link event records for removed interfaces. */
+	private final static String EVENT_DELETED = "Deleted ";
+
+	private final String tree;
+	private long maxAge;
+
+	/** The current sorted set of interface names, replaced on every change. */
+	private volatile String[] interfaces = new String[0];
+	/** Time of the last full enumeration, 0 if the set has to be enumerated. */
+	private long enumeratedAt = 0;
+
+	/** The monitoring command and reader, null if link events are not monitored. */
+	private String monitorCommand = null;
+	private ContinuousCommandReader monitor = null;
+	private long droppedEvents = 0;
+
+	/** Creates a new registry for the given tree, without enumerating it yet.
+	 *
+	 * @param tree The IPv6 configuration tree, ending with "/".
+	 * @param maxAge The time in milliseconds after which the set is
+	 *               enumerated again if link events are not monitored.
+	 */
+	public InterfaceRegistry(String tree, long maxAge) {
+		this.tree = tree;
+		this.maxAge = maxAge;
+	}
+
+	/** Returns the sorted names of all interfaces, enumerating the tree first
+	 * if the set is not up to date. The array must not be modified.
+	 */
+	public String[] getInterfaces() {
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (enumeratedAt == 0 || now - enumeratedAt > (monitor != null ? MONITORED_MAX_AGE : maxAge))
+				enumerate(now);
+		}
+		return interfaces;
+	}
+
+	/** Returns true if the interface exists (according to the current set). */
+	public boolean contains(String iface) {
+		return Arrays.binarySearch(getInterfaces(), iface) >= 0;
+	}
+
+	/** Forces the tree to be enumerated again on the next access. */
+	public synchronized void invalidate() {
+		enumeratedAt = 0;
+	}
+
+	/** Checks the given interface in the tree and adds it to or removes it
+	 * from the set accordingly, without enumerating all other interfaces.
+	 */
+	public void interfaceChanged(String iface) {
+		if (iface.length() == 0 || iface.indexOf('/') >= 0 ||
+				iface.equals(CONF_INTERFACES_ALL) || iface.equals(CONF_INTERFACES_DEFAULT))
+			return;
+		boolean exists = new File(tree + iface).isDirectory();
+		synchronized (this) {
+			String[] cur = interfaces;
+			int pos = Arrays.binarySearch(cur, iface);
+			if (exists && pos < 0) {
+				pos = -pos - 1;
+				String[] next = new String[cur.length + 1];
+				System.arraycopy(cur, 0, next, 0, pos);
+				next[pos] = iface;
+				System.arraycopy(cur, pos, next, pos + 1, cur.length - pos);
+				interfaces = next;
+				logger.finer("Interface " + iface + " appeared, now " + next.length + " interfaces");
+			}
+			else if (!exists && pos >= 0) {
+				String[] next = new String[cur.length - 1];
+				System.arraycopy(cur, 0, next, 0, pos);
+				System.arraycopy(cur, pos + 1, next, pos, cur.length - pos - 1);
+				interfaces = next;
+				logger.finer("Interface " + iface + " disappeared, now " + next.length + " interfaces");
+			}
+		}
+	}
+
+	/** Starts to update the set from link events of the given command (such
+	 * as "ip monitor link"), so that the tree does not have to be enumerated
+	 * again on every access. Monitoring ends when the command terminates or
+	 * stopMonitoring is called.
+	 *
+	 * @return true if the command could be started (or was already running).
+	 */
+	public synchronized boolean startMonitoring(String command) {
+		if (monitor != null)
+			return true;
+		try {
+			monitor = Command.executeContinuousCommand(command, false, new LinkEventListener(),
+					ContinuousCommandReader.SplitMode.LINES, ContinuousCommandReader.DEFAULT_QUEUE_CAPACITY,
+					ContinuousCommandReader.OverflowPolicy.DROP_OLDEST);
+		} catch (IOException e) {
+			logger.warning("Unable to monitor link events with " + command + ", enumerating interfaces instead: " + e);
+			monitor = null;
+		}
+		if (monitor == null)
+			return false;
+		monitorCommand = command;
+		droppedEvents = monitor.getDroppedRecords();
+		// events before this point are unknown
+		enumeratedAt = 0;
+		return true;
+	}
+
+	/** Stops monitoring link events, afterwards the set is enumerated again after the maximum age. */
+	public void stopMonitoring() {
+		String command;
+		synchronized (this) {
+			command = monitorCommand;
+			monitor = null;
+			monitorCommand = null;
+		}
+		if (command != null)
+			try {
+				Command.stopContinuousCommand(command);
+			} catch (IOException e) {
+				logger.warning("Unable to stop " + command + ": " + e);
+			}
+	}
+
+	/** Lists the tree and publishes the result as new set. */
+	private void enumerate(long now) {
+		String[] names = new File(tree).list();
+		if (names == null) {
+			logger.warning("Unable to list " + tree + ", assuming no IPv6 interfaces");
+			names = new String[0];
+		}
+		int count = 0;
+		for (int i=0; i<names.length; i++)
+			if (!names[i].equals(CONF_INTERFACES_ALL) && !names[i].equals(CONF_INTERFACES_DEFAULT))
+				names[count++] = names[i];
+		String[] next = new String[count];
+		System.arraycopy(names, 0, next, 0, count);
+		Arrays.sort(next);
+		interfaces = next;
+		enumeratedAt = now;
+		logger.finer("Enumerated " + count + " interfaces in " + tree);
+	}
+
+	/** Updates the set from the lines of "ip monitor link" that start an
+	 * event, e.g. "3: wlan0: <BROADCAST,MULTICAST,UP,LOWER_UP> mtu 1500 ..."
+	 * or "Deleted 3: wlan0: <BROADCAST,MULTICAST> mtu 1500 ...". Lines are
+	 * used instead of records, so that each event is handled right away
+	 * instead of with the start of the next one; the indented continuation
+	 * lines (e.g. "    link/ether ...") do not parse and are ignored.
+	 */
+	private class LinkEventListener implements ContinuousCommandReader.RecordListener {
+		public void onRecord(CharSequence record) {
+			synchronized (InterfaceRegistry.this) {
+				// the set can not be updated incrementally after lost events
+				if (monitor != null && monitor.getDroppedRecords() != droppedEvents) {
+					droppedEvents = monitor.getDroppedRecords();
+					enumeratedAt = 0;
+					return;
+				}
+			}
+			String iface = parseInterfaceName(record);
+			if (iface != null)
+				interfaceChanged(iface);
+		}
+
+		public void onClosed() {
+			synchronized (InterfaceRegistry.this) {
+				if (monitor != null) {
+					logger.warning("Link event monitor " + monitorCommand + " ended, enumerating interfaces instead");
+					monitor = null;
+					monitorCommand = null;
+					enumeratedAt = 0;
+				}
+			}
+		}
+	}
+
+	/** Returns the interface name of a link event record (without "@" and
+	 * the name of the lower interface), or null if it can not be parsed.
+	 */
+	static String parseInterfaceName(CharSequence record) {
+		int len = record.length();
+		int pos = 0;
+		if (len >= EVENT_DELETED.length() && record.subSequence(0, EVENT_DELETED.length()).toString().equals(EVENT_DELETED))
+			pos = EVENT_DELETED.length();
+		// skip the interface index
+		int start = pos;
+		while (pos < len && record.charAt(pos) >= '0' && record.charAt(pos) <= '9')
+			pos++;
+		if (pos == start || pos + 2 > len || record.charAt(pos) != ':' || record.charAt(pos+1) != ' ')
+			return null;
+		start = pos + 2;
+		pos = start;
+		while (pos < len && record.charAt(pos) != ':' && record.charAt(pos) != '@' && record.charAt(pos) != ' ')
+			pos++;
+		if (pos == start || pos == len)
+			return null;
+		return record.subSequence(start, pos).toString();
+	}
+}
@@ -11,12 +11,17 @@
 
 package to.doc.android.ipv6config;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.StringTokenizer;
@@ -33,36 +38,37 @@ public class LinuxIPCommandHelper {
 	/** Our logger for this class. */
 	private final static Logger logger = java.util.logging.Logger.getLogger(Constants.LOG_TAG);
 
-	/** Identifies an Ethernet interface and, funnily enough, sometimes also the GPRS/UMTS interfaces. */
-	private final static String ETHERNET_INTERFACE = "link/ether";
-	/** Identifies a PPP interface and, therefore, GPRS/UMTS connections using PPP. */
-	private final static String PPP_INTERFACE = "link/ppp";
-	/** Identifies a tun interface, which is sometimes also used for upstream connectivity on Android. */
-	private final static String TUN_INTERFACE = "link/[65534]";
-	/** Identifies an ADB interface, used for upstream connectivity on Android when connected to a development host. */
-	private final static String USB_INTERFACE = "link/[530]";
-	
 	/** Identifier for starting the MTU option in the interface line. */
-	private final static String INTERFACE_MTU = "mtu";
+	final static String INTERFACE_MTU = "mtu";
 
 	/** Identifier that starts the state option in the interface line. */
 	//private final static String INTERFACE_STATE = "state";
 
 	/** Identifies an IPv4 address. */
-	private final static String ADDRESS_IPV4 = "inet";
+	final static String ADDRESS_IPV4 = "inet";
 	/** Identifies an IPv6 address. */
-	private final static String ADDRESS_IPV6 = "inet6";
+	final static String ADDRESS_IPV6 = "inet6";
 	/** Identifies a secondary IPv4 address. */
-	private final static String ADDRESS_MODIFIER_SECONDARY = "secondary";
+	final static String ADDRESS_MODIFIER_SECONDARY = "secondary";
 	/** Identifies a temporary IPv6 address. */
-	private final static String ADDRESS_MODIFIER_TEMPORARY = "temporary";
+	final static String ADDRESS_MODIFIER_TEMPORARY = "temporary";
 	/** Identifies a deprecated IPv6 address. */
-	private final static String ADDRESS_MODIFIER_DEPRECATED = "deprecated";
+	final static String ADDRESS_MODIFIER_DEPRECATED = "deprecated";
+	/** Marks an IPv6 address for which duplicate address detection is still running. */
+	final static String ADDRESS_MODIFIER_TENTATIVE = "tentative";
+	/** Marks an IPv6 address for which duplicate address detection failed. */
+	final static String ADDRESS_MODIFIER_DADFAILED = "dadfailed";
 	
 	/** Identifies the gateway of a route. */
 	private final static String ROUTE_GATEWAY = "via";
 	/** Identifies the device of a route. */
 	private final static String ROUTE_DEVICE = "dev";
+	/** Identifies the metric of a route. */
+	private final static String ROUTE_METRIC = "metric";
+	/** Target of default routes as printed by "ip route". */
+	final static String ROUTE_TARGET_DEFAULT = "default";
+	/** Route types printed by "ip route" before the target, for routes that don't forward packets to an interface. */
+	private final static String[] ROUTE_TYPES_WITHOUT_INTERFACE = { "unreachable", "prohibit", "blackhole", "throw" };
 
 	/** Search for the "ip" and "busybox" binaries at these locations. */
 	public final static String[] LINUX_BINARY_LOCATIONS = { 
@@ -88,9 +94,15 @@ public class LinuxIPCommandHelper {
 	
 	/** Command to get and set routes under modern Linux systems. */
 	private final static String ROUTES_COMMAND = " route";
+	/** Command to continuously print link events (interfaces appearing, changing, or disappearing). */
+	private final static String MONITOR_LINK_COMMAND = " monitor link";
 	
 	/** Option to select only IPv6 addresses/routes. */
 	private final static String OPTION_IPv6_ONLY = " -6 ";
+	/** Option to print one line per interface and address (IfaceOutputParser.FORMAT_ONELINE). */
+	private final static String OPTION_ONELINE = " -o";
+	/** Option to print JSON (IfaceOutputParser.FORMAT_JSON), supported by iproute2 since 4.13. */
+	private final static String OPTION_JSON = " -j";
 
 	/** Command to get and set Ethernet interface details under Linux systems. */
 	public final static String ETHTOOL_COMMAND = "/usr/sbin/ethtool ";
@@ -99,16 +111,62 @@ public class LinuxIPCommandHelper {
 	public final static String SH_COMMAND = "sh";
 	/** Path for the IPv6 configuration kernel options. */
 	public final static String IPV6_CONFIG_TREE = "/proc/sys/net/ipv6/conf/";
-	/** First part of the command to enable IPv6 address privacy (before interface name). */
-	private final static String ENABLE_ADDRESS_PRIVACY_PART1 = "echo 2 > " + IPV6_CONFIG_TREE;
-	/** First part of the command to disable IPv6 address privacy (before interface name). */
-	private final static String DISABLE_ADDRESS_PRIVACY_PART1 = "echo 0 > " + IPV6_CONFIG_TREE;
-	/** Second part of the command to enable/disable IPv6 address privacy (after interface name). */
+	/** Kernel table of all IPv6 addresses, readable without privileges. Each line 
+	 * holds address, interface index, prefix length, scope, flags (all in 
+	 * hex), and the interface name.
+	 */
+	public final static String PROC_NET_IF_INET6 = "/proc/net/if_inet6";
+	/** Kernel table of IPv4 routes in the main routing table, readable without 
+	 * privileges. After a header line, each line holds the interface name, 
+	 * destination, gateway, flags, reference count, use count, metric, and 
+	 * mask, with addresses in little-endian hex.
+	 */
+	public final static String PROC_NET_ROUTE = "/proc/net/route";
+	/** Kernel table of IPv6 routes, readable without privileges. Each line 
+	 * holds destination, prefix length, source, source prefix length, next
+	 * hop, metric, reference count, use count, flags (all in hex), and the
+	 * interface name.
+	 */
+	public final static String PROC_NET_IPV6_ROUTE = "/proc/net/ipv6_route";
+	/** Route flags from the kernel (include/uapi/linux/route.h and ipv6_route.h) as used in PROC_NET_ROUTE and PROC_NET_IPV6_ROUTE. */
+	private final static int RTF_UP = 0x0001;
+	private final static int RTF_GATEWAY = 0x0002;
+	private final static int RTF_REJECT = 0x0200;
+	private final static int RTF_ANYCAST = 0x00100000;
+	private final static int RTF_CACHE = 0x01000000;
+	private final static long RTF_LOCAL = 0x80000000L;
+	/** Kernel tree with details about each network interface. */
+	public final static String SYS_CLASS_NET = "/sys/class/net/";
+	/** Address flags from the kernel (include/uapi/linux/if_addr.h) as used in PROC_NET_IF_INET6 and by NetlinkHelper. */
+	final static int IFA_F_SECONDARY = 0x01;
+	final static int IFA_F_TEMPORARY = 0x01;
+	final static int IFA_F_DADFAILED = 0x08;
+	final static int IFA_F_DEPRECATED = 0x20;
+	final static int IFA_F_TENTATIVE = 0x40;
+	/** Interface flag for an administratively enabled interface (include/uapi/linux/if.h). */
+	final static int IFF_UP = 0x1;
+	/** Hardware types from the kernel (include/uapi/linux/if_arp.h) as used in SYS_CLASS_NET/[iface]/type and by NetlinkHelper. */
+	final static int ARPHRD_ETHER = 1;
+	final static int ARPHRD_PPP = 512;
+	final static int ARPHRD_RAWIP = 530;
+	final static int ARPHRD_NONE = 65534;
+	/** Value of use_tempaddr to enable IPv6 address privacy (and prefer temporary addresses). */
+	private final static String ENABLE_ADDRESS_PRIVACY = "2";
+	/** Value of use_tempaddr to disable IPv6 address privacy. */
+	private final static String DISABLE_ADDRESS_PRIVACY = "0";
+	/** Kernel option to enable/disable IPv6 address privacy (after interface name). */
 	private final static String ADDRESS_PRIVACY_PART2 = "/use_tempaddr";
+	/** Kernel option to disable IPv6 on an interface (after interface name). */
+	private final static String DISABLE_IPV6_PART2 = "/disable_ipv6";
+	/** Kernel options for stateless address autoconfiguration (after interface name). */
+	private final static String AUTOCONF_PART2 = "/autoconf";
+	private final static String ACCEPT_RA_PART2 = "/accept_ra";
 	/** Interface "name" to denote all network interface for kernel configuration options. */ 
 	private final static String CONF_INTERFACES_ALL = "all";
 	/** Interface "name" to denote the default kernel configuration options for new (hotplug enabled) network interfaces. */ 
 	private final static String CONF_INTERFACES_DEFAULT = "default";
+	/** The loopback interface, which never has temporary addresses. */
+	private final static String LOOPBACK_INTERFACE = "lo";
 
 	/** Command to get and set network interface status under modern Linux systems (up/down mostly). */
 	private final static String SET_INTERFACE = " link set ";
@@ -120,8 +178,32 @@ public class LinuxIPCommandHelper {
 	private final static String ADD = " add ";
 	/** Option to delete network interface / addresses / routes. */
 	private final static String DEL = " del ";
-	/** Delay between setting an interface down and up to force its IPv6 address to be reset (in milliseconds). */
-	public final static int INTERFACE_DOWN_UP_DELAY = 100;
+	/** Maximum time to wait for interfaces to be reported down after setting them down (in milliseconds). */
+	public final static long LINK_DOWN_TIMEOUT = 2*1000;
+	/** Maximum time to wait for interfaces to be usable again after setting 
+	 * them up (in milliseconds). This is generous because radios may need 
+	 * to re-associate first. */
+	public final static long LINK_UP_TIMEOUT = 15*1000;
+	/** Maximum time to wait for new global addresses after an interface 
+	 * is up again (in milliseconds), which includes waiting for a router 
+	 * advertisement and for duplicate address detection. */
+	public final static long ADDRESS_READY_TIMEOUT = 15*1000;
+	/** Names under which the time from setting interfaces up until they
+	 * have a usable temporary/stable global address is recorded in 
+	 * CommandMetrics (per interface). */
+	public final static String METRIC_TIME_TO_PRIVATE_ADDRESS = "reload: time to private address";
+	public final static String METRIC_TIME_TO_GLOBAL_ADDRESS = "reload: time to global address";
+	/** Shortest and longest interval between checks of the link state (in milliseconds). */
+	private final static long LINK_STATE_POLL_MIN = 1;
+	private final static long LINK_STATE_POLL_MAX = 100;
+	/** Values of SYS_CLASS_NET/[iface]/operstate (RFC 2863 states as named by the kernel). */
+	private final static String OPERSTATE_UP = "up";
+	private final static String OPERSTATE_UNKNOWN = "unknown";
+	/** Time budget for querying commands such as "ip addr" (in milliseconds). */
+	public final static long QUERY_TIMEOUT = 10*1000;
+	/** Time budget for a single modifying command or a batch of them (in
+	 * milliseconds). This is generous because su might ask the user first. */
+	public final static long MUTATION_TIMEOUT = 30*1000;
 
 	/** Command to the "ip" binary to delete a tunnel interface under modern Linux systems. */
 	private final static String DELETE_TUNNEL_INTERFACE = " tunnel" + DEL;
@@ -129,10 +211,24 @@ public class LinuxIPCommandHelper {
 	private final static String ADD_TUNNEL_INTERFACE = " tunnel" + ADD;
 	private final static String ADD_TUNNEL_INTERFACE_OPTIONS_1 = " mode sit remote any local ";
 	private final static String ADD_TUNNEL_INTERFACE_OPTIONS_2 = " ttl 255 ";
+	/** The prefix ::ffff:0:0/96 of IPv4-mapped IPv6 addresses (which InetAddress.getByName would turn into 0.0.0.0). */
+	private final static byte[] IPV4_MAPPED_PREFIX = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xff, (byte) 0xff, 0, 0, 0, 0 };
 	
 	/** Static initializer: find out where to call the "ip" binary from and remember for future use. */
 	private static String ipBinaryLocation = null;
 	private static String ipBinaryTriedPaths = null;
+	/** The output format of "ip addr" supported by the found binary, one of the IfaceOutputParser.FORMAT_ constants. */
+	private static int ipOutputFormat = IfaceOutputParser.FORMAT_BLOCK;
+	/** If true, routes are read from PROC_NET_ROUTE and PROC_NET_IPV6_ROUTE instead of "ip route". */
+	private static boolean readRoutesFromProcfs = true;
+	/** If true, enableIPv6AddressPrivacy reloads addresses with regenerateAddresses instead of forceAddressReload. */
+	private static boolean reloadByRegeneration = true;
+	/** The known values of the kernel options in IPV6_CONFIG_TREE, so that only changes need root. */
+	private final static SysctlCache ipv6ConfigOptions = new SysctlCache(IPV6_CONFIG_TREE, SysctlCache.DEFAULT_TTL);
+	/** The IPv6-capable interfaces, i.e. those in IPV6_CONFIG_TREE. */
+	private final static InterfaceRegistry ipv6Interfaces = new InterfaceRegistry(IPV6_CONFIG_TREE, InterfaceRegistry.DEFAULT_MAX_AGE);
+	/** The number of components that currently use interface monitoring. */
+	private static int interfaceMonitoringUsers = 0;
 	
 	/** Helper function to try a list of paths with a command to verify if "ip addr" can be executed correctly.
 	 * 
@@ -154,9 +250,10 @@ public class LinuxIPCommandHelper {
 				 */
 				try {
 					logger.fine("Trying to execute cmd '" + binary + ADDRESSES_COMMAND + "'");
-					Command.executeCommand(binary + ADDRESSES_COMMAND, false, false, null);
+					Command.executeCommand(binary + ADDRESSES_COMMAND, false, false, null, QUERY_TIMEOUT);
 					logger.fine("Found working ip binary in " + binary);
 					ipBinaryLocation = binary;
+					ipOutputFormat = probeOutputFormat(binary);
 					return true;
 				} catch (Exception e) {
 					logger.warning("Found ip binary in " + binary + 
@@ -168,6 +265,34 @@ public class LinuxIPCommandHelper {
 		return false;
 	}
 	
+	/** Checks which output format of "ip addr" a working binary supports.
+	 * JSON is preferred as it does not depend on any heuristics, then the 
+	 * one-line format, and finally the classic block format which all 
+	 * versions support.
+	 */
+	private static int probeOutputFormat(String binary) {
+		try {
+			String out = Command.executeCommand(binary + OPTION_JSON + ADDRESSES_COMMAND, false, false, null, QUERY_TIMEOUT);
+			if (out.trim().startsWith("[")) {
+				logger.fine("ip binary " + binary + " supports JSON output");
+				return IfaceOutputParser.FORMAT_JSON;
+			}
+		} catch (Exception e) {
+			logger.finer("ip binary " + binary + " does not support JSON output: " + e);
+		}
+		try {
+			// each record has at least the link type after a line continuation
+			String out = Command.executeCommand(binary + OPTION_ONELINE + ADDRESSES_COMMAND, false, false, null, QUERY_TIMEOUT);
+			if (out.indexOf('\\') >= 0) {
+				logger.fine("ip binary " + binary + " supports one-line output");
+				return IfaceOutputParser.FORMAT_ONELINE;
+			}
+		} catch (Exception e) {
+			logger.finer("ip binary " + binary + " does not support one-line output: " + e);
+		}
+		return IfaceOutputParser.FORMAT_BLOCK;
+	}
+	
 	/** Helper to locate a usable "ip" command or null if none is found. */
 	public static String getIPCommandLocation() {
 		if (ipBinaryLocation == null) {
@@ -181,6 +306,75 @@ public class LinuxIPCommandHelper {
 		return ipBinaryLocation;
 	}
 	
+	/** Overrides the location of the "ip" command instead of searching for 
+	 * it, e.g. when commands are served by a RecordedCommandExecutor.
+	 */
+	public static void setIPCommandLocation(String location) {
+		setIPCommandLocation(location, IfaceOutputParser.FORMAT_BLOCK);
+	}
+	
+	/** Like setIPCommandLocation(String), but with the output format of 
+	 * "ip addr" to use (one of the IfaceOutputParser.FORMAT_ constants).
+	 */
+	static void setIPCommandLocation(String location, int outputFormat) {
+		ipBinaryLocation = location;
+		ipOutputFormat = outputFormat;
+	}
+	
+	/** Selects where getRouteOutput gets its routes from: if true (the 
+	 * default), IPv4 routes are parsed from PROC_NET_ROUTE and IPv6 routes
+	 * are dumped with NetlinkHelper, without starting any process, with 
+	 * "ip route" only used when these are not available. If false, 
+	 * "ip route" is always used.
+	 */
+	public static void setReadRoutesFromProcfs(boolean fromProcfs) {
+		readRoutesFromProcfs = fromProcfs;
+	}
+
+	/** Selects how enableIPv6AddressPrivacy reloads addresses: if true (the
+	 * default), with regenerateAddresses while the links stay up, falling 
+	 * back to forceAddressReload only where that is not possible. If false,
+	 * always with forceAddressReload, i.e. by setting the interfaces down 
+	 * and up again.
+	 */
+	public static void setReloadByRegeneration(boolean byRegeneration) {
+		reloadByRegeneration = byRegeneration;
+	}
+
+	/** Returns the registry of IPv6-capable interfaces used for enabling 
+	 * address privacy and reloading addresses.
+	 */
+	public static InterfaceRegistry getIPv6Interfaces() {
+		return ipv6Interfaces;
+	}
+
+	/** Keeps the set of IPv6-capable interfaces up to date from link events
+	 * of "ip monitor link" instead of listing IPV6_CONFIG_TREE again, which
+	 * is worth it for long-running processes on hosts with many interfaces.
+	 * Long-lived components (such as the IPv6Config activity while it is 
+	 * shown) call this when they become active and stopInterfaceMonitoring
+	 * when they are paused; the monitor runs while at least one of them is
+	 * active. Short-lived ones such as NetOpsService, which handles each 
+	 * intent within seconds, should not: starting the monitor costs more
+	 * than the single enumeration it would save. Without monitoring (or when it can not be started,
+	 * e.g. without "ip" or netlink access), the tree is listed again after 
+	 * InterfaceRegistry.DEFAULT_MAX_AGE.
+	 * 
+	 * @return true if monitoring is running.
+	 */
+	public static synchronized boolean startInterfaceMonitoring() {
+		interfaceMonitoringUsers++;
+		if (getIPCommandLocation() == null)
+			return false;
+		return ipv6Interfaces.startMonitoring(getIPCommandLocation() + MONITOR_LINK_COMMAND);
+	}
+
+	/** Ends one use of startInterfaceMonitoring, and stops monitoring after the last one. */
+	public static synchronized void stopInterfaceMonitoring() {
+		if (interfaceMonitoringUsers > 0 && --interfaceMonitoringUsers == 0)
+			ipv6Interfaces.stopMonitoring();
+	}
+	
 	public static String getAllTriedIPCommandLocations() {
 		return ipBinaryTriedPaths;
 	}
@@ -195,6 +389,22 @@ public class LinuxIPCommandHelper {
 		public boolean markedTemporary = false;
 		/* Set to true if the "deprecated" keyword is listed for this address. */ 
 		public boolean markedDeprecated = false;
+		/* Set to true if duplicate address detection is still running ("tentative" keyword). */ 
+		public boolean markedTentative = false;
+		/* Set to true if duplicate address detection failed ("dadfailed" keyword). */ 
+		public boolean markedDadFailed = false;
+		/* Remaining preferred and valid lifetimes in seconds, LIFETIME_FOREVER 
+		 * for permanent addresses, or -1 if unknown (not reported by all sources). */
+		public long preferredLifetime = -1;
+		public long validLifetime = -1;
+
+		/** Lifetime of addresses that don't expire. */
+		public final static long LIFETIME_FOREVER = 0xffffffffL;
+
+		/* The packed form of address and subnetLength, converted on first use,
+		 * and the (immutable) address it was converted from. */
+		private PackedAddress packed = null;
+		private InetAddress packedFrom = null;
 
 		public InetAddressWithNetmask() {}
 		public InetAddressWithNetmask(InetAddress addr, int maskLength) {
@@ -202,12 +412,27 @@ public class LinuxIPCommandHelper {
 			this.subnetLength = maskLength;
 		}
 		
+		/** Returns address and subnetLength as PackedAddress for classification
+		 * and prefix lookups, or null if no address is set. The conversion 
+		 * is only done once unless address or subnetLength change.
+		 */
+		public PackedAddress getPackedAddress() {
+			if (address == null)
+				return null;
+			if (packed == null || packedFrom != address || packed.getFamilyPrefixLength() != subnetLength) {
+				packed = PackedAddress.fromInetAddress(address, subnetLength);
+				packedFrom = address;
+			}
+			return packed;
+		}
+		
 		/** Returns true if this address is an IPv6 address, is globally routeable (i.e.
 		 * it is not a link- or site-local address), and has been derived from a MAC
 		 * address using the EUI scheme.
 		 */
 		public boolean isIPv6GlobalMacDerivedAddress() {
-			return IPv6AddressesHelper.isIPv6GlobalMacDerivedAddress(address);
+			PackedAddress addr = getPackedAddress();
+			return addr != null && addr.isIPv6GlobalMacDerivedAddress();
 		}
 	}
 	
@@ -258,15 +483,19 @@ public class LinuxIPCommandHelper {
 	public static LinkedList<InterfaceDetail> getIfaceOutput(String iface) throws IOException {
 		logger.finer("Acquiring interface details for iface " + iface);
 		
-		String cmd = getIPCommandLocation() + ADDRESSES_COMMAND;
-		StringTokenizer lines = null;
-		LinkedList<InterfaceDetail> list = new LinkedList<InterfaceDetail>();
+		String cmd = getIPCommandLocation();
+		// the format is known after locating the binary
+		int format = ipOutputFormat;
+		cmd += (format == IfaceOutputParser.FORMAT_JSON ? OPTION_JSON : 
+			format == IfaceOutputParser.FORMAT_ONELINE ? OPTION_ONELINE : "") + ADDRESSES_COMMAND;
+		String output;
 		
 		try {
-			lines =	new StringTokenizer(Command.executeCommand(cmd + 
+			output = Command.executeCommand(cmd + 
 						(iface != null ? (INTERFACES_SELECTOR + iface) : ""),
-						false, false, null), "\n");
+						false, false, null, QUERY_TIMEOUT);
 		} catch (Exception e) {
+			LinkedList<InterfaceDetail> list = new LinkedList<InterfaceDetail>();
 			if (iface == null)
 				logger.log(Level.WARNING, "Tried to parse interface stati for all interfaces, but could not", e);
 			else {
@@ -277,136 +506,175 @@ public class LinuxIPCommandHelper {
 				cur.name = iface;
 				cur.isUp = false;
 				list.add(cur);
-				return list;
 			}
+			return list;
 		}
 		
-		InterfaceDetail cur = null;
-		while (lines != null && lines.hasMoreTokens()) {
-			String line = lines.nextToken();
-			logger.finest("getIfaceOutput: parsing line '" + line + "'");
-			if (! Character.isWhitespace(line.charAt(0))) {
-				// lines that start without whitespace start a new block
-				logger.finest("getIfaceOutput: start of new block");
-				
-				// starting a new block, flush the last interface (if we have one) 
-				// only link/ether and link/ppp and two other types (tun and adb) for now
-				// in the future, might skip the cur.mac != null check to include all interface types
-				if (cur != null && (cur.mac != null || cur.isPPP || cur.isOther)) {
-					logger.finest("getIfaceOutput: adding to list: " + cur.name);
-					list.add(cur);
+		return IfaceOutputParser.parse(output, format);
+	}
+
+	/** Returns interface details with only the IPv6 addresses of interfaces.
+	 * These are read from PROC_NET_IF_INET6 and SYS_CLASS_NET without 
+	 * starting any process; only when these can not be read, "ip addr" is
+	 * used as a fallback.
+	 * 
+	 * In contrast to getIfaceOutput, interfaces without any IPv6 address are
+	 * not returned (not even a dummy description for a given iface).
+	 * 
+	 * @param iface If set, then only fetch information for this interface name.
+	 *              If set to null, returns all interfaces.
+	 */
+	public static LinkedList<InterfaceDetail> getIPv6IfaceOutput(String iface) throws IOException {
+		LinkedList<InterfaceDetail> list = readProcIfInet6(iface);
+		if (list != null)
+			return list;
+		
+		logger.fine("Unable to read " + PROC_NET_IF_INET6 + ", falling back to ip addr");
+		list = new LinkedList<InterfaceDetail>();
+		for (InterfaceDetail cur : getIfaceOutput(iface)) {
+			LinkedList<InetAddressWithNetmask> addrs = new LinkedList<InetAddressWithNetmask>();
+			for (InetAddressWithNetmask addr : cur.addresses)
+				if (addr.address instanceof Inet6Address)
+					addrs.add(addr);
+			cur.addresses = addrs;
+			if (!addrs.isEmpty())
+				list.add(cur);
+		}
+		return list;
+	}
+
+	/** Parses PROC_NET_IF_INET6, e.g.
+	 * "fe80000000000000021122fffe334455 03 40 20 80     eth0",
+	 * directly into address bytes and flags.
+	 * 
+	 * @return the interfaces in order of their first address or null if the
+	 *         file could not be read.
+	 */
+	private static LinkedList<InterfaceDetail> readProcIfInet6(String iface) {
+		LinkedHashMap<String, InterfaceDetail> ifaces = new LinkedHashMap<String, InterfaceDetail>();
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(PROC_NET_IF_INET6));
+			String line;
+			while ((line = in.readLine()) != null) {
+				int[] bounds = new int[12];
+				if (findFields(line, bounds) < 6 || bounds[1] - bounds[0] != 32) {
+					logger.warning("Unable to parse line '" + line + "' of " + PROC_NET_IF_INET6);
+					continue;
+				}
+				String name = line.substring(bounds[10], bounds[11]);
+				if (iface != null && !iface.equals(name))
+					continue;
+
+				byte[] bytes = new byte[16];
+				int prefixLength = StringHelper.parseHex(line, bounds[4], bounds[5]);
+				int flags = StringHelper.parseHex(line, bounds[8], bounds[9]);
+				if (!StringHelper.parseHexBytes(line, bounds[0], bytes) || prefixLength < 0 || flags < 0) {
+					logger.warning("Unable to parse line '" + line + "' of " + PROC_NET_IF_INET6);
+					continue;
 				}
 				
-				StringTokenizer fields = new StringTokenizer(line, ":");
-				// ignore the first field - just a number
-				fields.nextToken();
-				
-				// the second is the interface name
-				cur = new InterfaceDetail();
-				cur.name = fields.nextToken().trim();
-				cur.isUp = false;
-				
-				// the third "field" contains multiple options, now separated by space
-				String remainder = fields.nextToken();
-				logger.finest("Starting to parse remainder of interface line '" + remainder + "'");
-				StringTokenizer options = new StringTokenizer(remainder);
-				while (options.hasMoreTokens()) {
-					String opt = options.nextToken().trim();
-					logger.finest("Parsing option " + opt);
-					if (opt.equals(INTERFACE_MTU)) {
-						String mtu = options.nextToken().trim();
-						logger.finest("Interface " + cur.name + " mtu field: '" + mtu + "'");
-						cur.mtu = Integer.parseInt(mtu);
-					}
-					// hmm, this seems to be "UNKNOWN instead of UP - don't use the state option but the other syntax
-					/*else if (opt.equals(INTERFACE_STATE)) {
-						String state = options.nextToken();
-						logger.finest("Interface " + cur.name + " state field: '" + state + "'");
-						cur.isUp = state.equals("UP");
-					}*/
-					// this handles the first options block embedded in <...>
-					else if (opt.startsWith("<")) {
-						String tmp = opt.substring(1, opt.length()-1);
-						logger.finest("Parsing embedded options '" + tmp + "'");
-						// these embedded options are again separated by ","
-						StringTokenizer options2 = new StringTokenizer(tmp, ",");
-						while (options2.hasMoreTokens()) {
-							String opt2 = options2.nextToken();
-							// at the moment, only look for the "UP" option
-							// in the future, might want to read NO-CARRIER, BROADCAST, and MULTICAST as well
-							if (opt2.equals("UP"))
-								cur.isUp = true;
-						}
-					}
+				InterfaceDetail cur = ifaces.get(name);
+				if (cur == null) {
+					cur = new InterfaceDetail();
+					cur.name = name;
+					ifaces.put(name, cur);
 				}
-				logger.finest("Read interface line: " + cur.name + ", " + cur.mtu + ", " + cur.isUp);
+				InetAddressWithNetmask addr = new InetAddressWithNetmask(Inet6Address.getByAddress(null, bytes, 0), prefixLength);
+				addr.markedTemporary = (flags & IFA_F_TEMPORARY) != 0;
+				addr.markedDeprecated = (flags & IFA_F_DEPRECATED) != 0;
+				addr.markedTentative = (flags & IFA_F_TENTATIVE) != 0;
+				addr.markedDadFailed = (flags & IFA_F_DADFAILED) != 0;
+				cur.addresses.add(addr);
 			}
-			else {
-				logger.finest("getIfaceOutput: block continued");
-				// within a block
-				StringTokenizer options = new StringTokenizer(line.trim(), " \t");
-				while (options.hasMoreTokens()) {
-					String opt = options.nextToken();
-					logger.finest("getIfaceOutput: trying to parse option '" + opt + "'");
-					
-					// link/ppp lines have no further "values", so need to check here
-					if (opt.equals(PPP_INTERFACE)) {
-						cur.isPPP = true;
-						logger.finest("getIfaceOutput: found PPP interface " + cur.name);
-					}
-					else if (opt.equals(TUN_INTERFACE)) {
-						cur.isOther = true;
-						logger.finest("getIfaceOutput: found TUN interface " + cur.name);
-					}
-					else if (opt.equals(USB_INTERFACE)) {
-						cur.isOther = true;
-						logger.finest("getIfaceOutput: found ADB interface " + cur.name);
-					}
-					
-					// "lo" marks the end of line, but also check explicitly
-					if (opt.equals("lo") || !options.hasMoreTokens()) break;
-					
-					String value = options.nextToken();
-					logger.finest("getIfaceOutput: trying to parse value '" + value + "'");
-
-					if (opt.equals(ETHERNET_INTERFACE)) {
-						cur.mac = value;
-						logger.finest("getIfaceOutput: found mac " + cur.mac
-								+ " for " + cur.name);
-					} else if (opt.equals(ADDRESS_IPV4) || opt.equals(ADDRESS_IPV6)) {
-						InetAddressWithNetmask addr = new InetAddressWithNetmask();
-						if (value.contains("/")) {
-							addr.address = InetAddress.getByName(value.substring(0, value.indexOf('/')));
-							addr.subnetLength = Integer.parseInt(value.substring(value.indexOf('/')+1));
-						}
-						else {
-							addr.address = InetAddress.getByName(value);
-							addr.subnetLength = addr.address instanceof Inet4Address ? 32 : 128;
-						}
-							
-						// try to find additional modifiers
-						if (line.indexOf(ADDRESS_MODIFIER_SECONDARY) >= 0)
-							addr.markedSecondary = true;
-						if (line.indexOf(ADDRESS_MODIFIER_TEMPORARY) >= 0)
-							addr.markedTemporary = true;
-						if (line.indexOf(ADDRESS_MODIFIER_DEPRECATED) >= 0)
-							addr.markedDeprecated = true;
-							
-						cur.addresses.add(addr);
-						logger.finest("getIfaceOutput: found IP address " + addr
-								+ " for " + cur.name);
-					}
+		} catch (IOException e) {
+			logger.fine("Unable to read " + PROC_NET_IF_INET6 + ": " + e);
+			return null;
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException e) {
+					// don't care, we're finished anyways
 				}
-			}
-		}		
-		// save the last block info
-		if (cur != null && (cur.mac != null || cur.isPPP || cur.isOther)) {
-			logger.finest("getIfaceOutput: adding to list: " + cur.name);
-			list.add(cur);
+		}
+
+		// fill in the link details and apply the same filter as getIfaceOutput
+		LinkedList<InterfaceDetail> list = new LinkedList<InterfaceDetail>();
+		for (InterfaceDetail cur : ifaces.values()) {
+			readSysClassNet(cur);
+			if (cur.mac != null || cur.isPPP || cur.isOther)
+				list.add(cur);
 		}
 		return list;
 	}
 
+	/** Finds the start (inclusive) and end (exclusive) of the first 
+	 * bounds.length/2 fields delimited by blanks or tabs without splitting the
+	 * string, and stores them in bounds as consecutive pairs.
+	 * 
+	 * @return the number of fields found.
+	 */
+	private static int findFields(String line, int[] bounds) {
+		int numFields = 0;
+		int pos = 0;
+		while (2*numFields < bounds.length && pos < line.length()) {
+			while (pos < line.length() && (line.charAt(pos) == ' ' || line.charAt(pos) == '\t'))
+				pos++;
+			bounds[2*numFields] = pos;
+			while (pos < line.length() && line.charAt(pos) != ' ' && line.charAt(pos) != '\t')
+				pos++;
+			bounds[2*numFields+1] = pos;
+			if (bounds[2*numFields] < pos)
+				numFields++;
+		}
+		return numFields;
+	}
+
+	/** Fills in MAC address, up/down status, MTU, and interface type from SYS_CLASS_NET. */
+	private static void readSysClassNet(InterfaceDetail cur) {
+		String dir = SYS_CLASS_NET + cur.name + "/";
+		int type = StringHelper.convertHexStringToInt(readSysValue(dir + "type"), false);
+		setLinkType(cur, type, type == ARPHRD_ETHER ? readSysValue(dir + "address") : null);
+		// -1 for flags that can not be read, which must not count as up
+		int flags = StringHelper.convertHexStringToInt(readSysValue(dir + "flags"), false);
+		cur.isUp = flags >= 0 && (flags & IFF_UP) != 0;
+		int mtu = StringHelper.convertHexStringToInt(readSysValue(dir + "mtu"), false);
+		if (mtu > 0)
+			cur.mtu = mtu;
+	}
+
+	/** Sets the interface type flags (and MAC address for Ethernet interfaces)
+	 * the same way getIfaceOutput derives them from the "link/..." line.
+	 */
+	static void setLinkType(InterfaceDetail cur, int type, String mac) {
+		if (type == ARPHRD_ETHER)
+			cur.mac = mac;
+		else if (type == ARPHRD_PPP)
+			cur.isPPP = true;
+		else if (type == ARPHRD_RAWIP || type == ARPHRD_NONE)
+			cur.isOther = true;
+	}
+
+	/** Returns the first line of a (single value) sysfs file or "" if it can not be read. */
+	private static String readSysValue(String fileName) {
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(fileName));
+			String line = in.readLine();
+			return line != null ? line.trim() : "";
+		} catch (IOException e) {
+			return "";
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException e) {
+					// don't care, we're finished anyways
+				}
+		}
+	}
+
 	/** This class represents a route with a target (as a string, because it 
 	 * can take on special values such as "default" in addition to target 
 	 * networks), a gateway, and an interface. Gateway or (exclusive or) iface
@@ -416,6 +684,8 @@ public class LinuxIPCommandHelper {
 		public String target;
 		public InetAddress gateway;
 		public String iface;
+		/** The metric (priority) of the route, 0 if not set. */
+		public int metric;
 		
 		/** This is a helper field used internally for storing the complete 
 		 * route description so that it can be restored after an interface
@@ -424,11 +694,51 @@ public class LinuxIPCommandHelper {
 		protected String fullRouteLine;
 	}
 
-	/** Returns the list of routes in the main routing table. 
+	/** Returns the list of routes in the main routing table. Depending on 
+	 * setReadRoutesFromProcfs, these are read from procfs (IPv4), netlink
+	 * (IPv6), or "ip route", with the same targets, gateways, interfaces, 
+	 * and metrics in all cases.
+	 * 
+	 * PROC_NET_IPV6_ROUTE lists the routes of all tables without telling
+	 * them apart, so with policy routing (as used by Android for each 
+	 * network) it does not match the main table. It is therefore only read
+	 * when neither netlink nor "ip" is available.
 	 *  
 	 * @param queryIPv6 If true, then IPv6 routes are queried. If false, then IPv4 routes are queried.
 	 */
 	public static LinkedList<RouteDetail> getRouteOutput(boolean queryIPv6) throws IOException {
+		if (readRoutesFromProcfs) {
+			if (!queryIPv6) {
+				LinkedList<RouteDetail> list = readProcNetRoute();
+				if (list != null)
+					return list;
+				logger.fine("Unable to read " + PROC_NET_ROUTE + ", falling back to ip route");
+			}
+			else {
+				if (NetlinkHelper.isAvailable()) {
+					try {
+						return NetlinkHelper.getRouteOutput(NetlinkHelper.dump(), true);
+					} catch (IOException e) {
+						logger.fine("Unable to dump IPv6 routes via netlink, falling back to ip route: " + e);
+					}
+				}
+				if (getIPCommandLocation() == null) {
+					LinkedList<RouteDetail> list = readProcNetIPv6Route();
+					if (list != null) {
+						logger.fine("No ip binary, using the routes of all tables from " + PROC_NET_IPV6_ROUTE);
+						return list;
+					}
+				}
+			}
+		}
+		return getRouteOutputFromIP(queryIPv6);
+	}
+
+	/** Returns the list of routes in the main routing table as printed by "ip route". 
+	 *  
+	 * @param queryIPv6 If true, then IPv6 routes are queried. If false, then IPv4 routes are queried.
+	 */
+	public static LinkedList<RouteDetail> getRouteOutputFromIP(boolean queryIPv6) throws IOException {
 		String cmd = getIPCommandLocation() + (queryIPv6 ? OPTION_IPv6_ONLY : "") + ROUTES_COMMAND;
 		StringTokenizer lines = null;
 		LinkedList<RouteDetail> list = new LinkedList<RouteDetail>();
@@ -436,7 +746,7 @@ public class LinuxIPCommandHelper {
 		logger.warning("Acquiring route details with command '" + cmd + "'");
 
 		try {
-			lines =	new StringTokenizer(Command.executeCommand(cmd,	false, false, null), "\n");
+			lines =	new StringTokenizer(Command.executeCommand(cmd,	false, false, null, QUERY_TIMEOUT), "\n");
 		} catch (Exception e) {
 			logger.log(Level.WARNING, "Tried to parse routes, but could not", e);
 		}
@@ -452,6 +762,10 @@ public class LinuxIPCommandHelper {
 			cur = new RouteDetail();
 			cur.fullRouteLine = line;
 			cur.target = fields.nextToken();
+			if (isRouteTypeWithoutInterface(cur.target)) {
+				logger.finest("getRouteOutput: skipping " + cur.target + " route");
+				continue;
+			}
 
 			// then we get options defined by "dev" or "via" (and others that we ignore)
 			while (fields.hasMoreTokens()) {
@@ -464,6 +778,12 @@ public class LinuxIPCommandHelper {
 				} else if (opt.equals(ROUTE_DEVICE) && fields.hasMoreTokens()) {
 					cur.iface = fields.nextToken().trim();
 					logger.finest("getRouteOutput: found interface " + cur.iface + " for target " + cur.target);
+				} else if (opt.equals(ROUTE_METRIC) && fields.hasMoreTokens()) {
+					try {
+						cur.metric = (int) Long.parseLong(fields.nextToken().trim());
+					} catch (NumberFormatException e) {
+						logger.warning("getRouteOutput: unable to parse metric for target " + cur.target);
+					}
 				} else {
 					logger.finest("getRouteOutput: ignoring unknown option '" + opt + "' or no further field in string. Cannot parse.");
 				}
@@ -476,17 +796,193 @@ public class LinuxIPCommandHelper {
 		return list;
 	}
 
+	/** Returns true for the route types that "ip route" prints before the
+	 * target, i.e. routes that don't forward packets to an interface. These
+	 * are not part of the route list.
+	 */
+	private static boolean isRouteTypeWithoutInterface(String field) {
+		for (String type : ROUTE_TYPES_WITHOUT_INTERFACE)
+			if (type.equals(field))
+				return true;
+		return false;
+	}
+
+	/** Fills in the route target as printed by "ip route" ("default", a 
+	 * single address for host routes, or address/prefix length otherwise)
+	 * and the full route specification that can be passed to "ip route add".
+	 */
+	static void setRouteTarget(RouteDetail route, String address, int prefixLength, int maxPrefixLength) {
+		if (prefixLength == 0)
+			route.target = ROUTE_TARGET_DEFAULT;
+		else if (prefixLength == maxPrefixLength)
+			route.target = address;
+		else
+			route.target = address + "/" + prefixLength;
+
+		StringBuffer spec = new StringBuffer(route.target);
+		if (route.gateway != null)
+			spec.append(' ').append(ROUTE_GATEWAY).append(' ').append(route.gateway instanceof Inet6Address ?
+					IPv6AddressesHelper.formatIPv6Address(route.gateway.getAddress()) : route.gateway.getHostAddress());
+		if (route.iface != null)
+			spec.append(' ').append(ROUTE_DEVICE).append(' ').append(route.iface);
+		if (route.metric != 0)
+			spec.append(' ').append(ROUTE_METRIC).append(' ').append(route.metric & 0xffffffffL);
+		route.fullRouteLine = spec.toString();
+	}
+
+	/** Parses PROC_NET_ROUTE, e.g.
+	 * "eth0	00000000	0101A8C0	0003	0	0	0	00000000	0	0	0",
+	 * with addresses in little-endian hex.
+	 * 
+	 * @return the routes in the order of the kernel table or null if the file 
+	 *         could not be read.
+	 */
+	private static LinkedList<RouteDetail> readProcNetRoute() {
+		LinkedList<RouteDetail> list = new LinkedList<RouteDetail>();
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(PROC_NET_ROUTE));
+			// skip the header line
+			String line = in.readLine();
+			byte[] dest = new byte[4], gateway = new byte[4], mask = new byte[4];
+			while ((line = in.readLine()) != null) {
+				int[] bounds = new int[16];
+				if (findFields(line, bounds) < 8 || 
+					!parseLittleEndianIPv4(line, bounds[2], bounds[3], dest) ||
+					!parseLittleEndianIPv4(line, bounds[4], bounds[5], gateway) ||
+					!parseLittleEndianIPv4(line, bounds[14], bounds[15], mask)) {
+					logger.warning("Unable to parse line '" + line + "' of " + PROC_NET_ROUTE);
+					continue;
+				}
+				int flags = StringHelper.parseHex(line, bounds[6], bounds[7]);
+				// in contrast to all other columns, the metric is printed in decimal
+				int metric = -1;
+				try {
+					metric = Integer.parseInt(line.substring(bounds[12], bounds[13]));
+				} catch (NumberFormatException e) {}
+				if (flags < 0 || metric < 0) {
+					logger.warning("Unable to parse line '" + line + "' of " + PROC_NET_ROUTE);
+					continue;
+				}
+				if ((flags & RTF_UP) == 0 || (flags & RTF_REJECT) != 0)
+					continue;
+
+				RouteDetail cur = new RouteDetail();
+				String iface = line.substring(bounds[0], bounds[1]);
+				if (!iface.equals("*"))
+					cur.iface = iface;
+				if ((flags & RTF_GATEWAY) != 0)
+					cur.gateway = InetAddress.getByAddress(gateway);
+				cur.metric = metric;
+				int prefixLength = 0;
+				for (byte b : mask)
+					prefixLength += Integer.bitCount(b & 0xff);
+				setRouteTarget(cur, InetAddress.getByAddress(dest).getHostAddress(), prefixLength, 32);
+				list.add(cur);
+			}
+		} catch (IOException e) {
+			logger.fine("Unable to read " + PROC_NET_ROUTE + ": " + e);
+			return null;
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException e) {
+					// don't care, we're finished anyways
+				}
+		}
+		return list;
+	}
+
+	/** Parses an IPv4 address given as 8 hex digits in little-endian order 
+	 * (e.g. "0101A8C0" for 192.168.1.1) into target.
+	 */
+	private static boolean parseLittleEndianIPv4(String line, int start, int end, byte[] target) {
+		if (end - start != 8 || !StringHelper.parseHexBytes(line, start, target))
+			return false;
+		byte b = target[0];
+		target[0] = target[3];
+		target[3] = b;
+		b = target[1];
+		target[1] = target[2];
+		target[2] = b;
+		return true;
+	}
+
+	/** Parses PROC_NET_IPV6_ROUTE, e.g.
+	 * "00000000000000000000000000000000 00 00000000000000000000000000000000 00 
+	 * fe800000000000000000000000000001 00000400 00000001 00000000 00000003     eth0".
+	 * 
+	 * In contrast to the main table shown by "ip -6 route", this lists the 
+	 * routes of all tables. Local, anycast, and cached routes (from the local 
+	 * table or the route cache), the multicast route ff00::/8 (which older 
+	 * kernels keep in the main table), and reject routes are therefore 
+	 * skipped, so that the result matches "ip -6 route" on systems without
+	 * policy routing. With policy routing, it does not, see getRouteOutput.
+	 * 
+	 * @return the routes in the order of the kernel table or null if the file 
+	 *         could not be read.
+	 */
+	private static LinkedList<RouteDetail> readProcNetIPv6Route() {
+		LinkedList<RouteDetail> list = new LinkedList<RouteDetail>();
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(PROC_NET_IPV6_ROUTE));
+			String line;
+			byte[] dest = new byte[16], nextHop = new byte[16];
+			while ((line = in.readLine()) != null) {
+				int[] bounds = new int[20];
+				if (findFields(line, bounds) < 10 || bounds[1] - bounds[0] != 32 || bounds[9] - bounds[8] != 32 ||
+					!StringHelper.parseHexBytes(line, bounds[0], dest) ||
+					!StringHelper.parseHexBytes(line, bounds[8], nextHop)) {
+					logger.warning("Unable to parse line '" + line + "' of " + PROC_NET_IPV6_ROUTE);
+					continue;
+				}
+				int prefixLength = StringHelper.parseHex(line, bounds[2], bounds[3]);
+				long metric = StringHelper.parseHexLong(line, bounds[10], bounds[11]);
+				long flags = StringHelper.parseHexLong(line, bounds[16], bounds[17]);
+				if (prefixLength < 0 || prefixLength > 128 || metric < 0 || flags < 0) {
+					logger.warning("Unable to parse line '" + line + "' of " + PROC_NET_IPV6_ROUTE);
+					continue;
+				}
+				if ((flags & RTF_UP) == 0 || (flags & (RTF_REJECT | RTF_ANYCAST | RTF_CACHE | RTF_LOCAL)) != 0 ||
+					(prefixLength == 8 && dest[0] == (byte) 0xff))
+					continue;
+				
+				RouteDetail cur = new RouteDetail();
+				cur.iface = line.substring(bounds[18], bounds[19]);
+				if ((flags & RTF_GATEWAY) != 0)
+					cur.gateway = Inet6Address.getByAddress(null, nextHop, 0);
+				cur.metric = (int) metric;
+				setRouteTarget(cur, IPv6AddressesHelper.formatIPv6Address(dest), prefixLength, 128);
+				list.add(cur);
+			}
+		} catch (IOException e) {
+			logger.fine("Unable to read " + PROC_NET_IPV6_ROUTE + ": " + e);
+			return null;
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException e) {
+					// don't care, we're finished anyways
+				}
+		}
+		return list;
+	}
+
 	/** Executes the command ethtool for the given network interface and returns the output within a HashMap.
 	 * @param device Get the information of this network interface card.
 	 * @return A map of options and their values, e.g. "Link detected", "Speed", "Duplex", and "Auto-negotiation". 
 	 */
-	public static HashMap<String, String> getInterfaceDetails(String device) throws ExitCodeException, IOException {
+	public static HashMap<String, String> getInterfaceDetails(String device) 
+			throws ExitCodeException, CommandTimeoutException, IOException {
 		// first check if the interface is up
 		HashMap<String, String> options = new HashMap<String, String>();
 		LinkedList<InterfaceDetail> ifaceDetail = getIfaceOutput(device);
 		if (ifaceDetail.get(0).isUp) {
 			StringTokenizer lines;
-			lines = new StringTokenizer(Command.executeCommand(ETHTOOL_COMMAND + device, false, false, null), "\n");
+			lines = new StringTokenizer(Command.executeCommand(ETHTOOL_COMMAND + device, false, false, null, QUERY_TIMEOUT), "\n");
 			String supportedLinkModes = "";
 			boolean supportedLinkModesDone = false;
 			while ((lines.hasMoreTokens())) {
@@ -530,15 +1026,30 @@ public class LinuxIPCommandHelper {
 	 * reload) or null if no default route is known.
 	 */
 	public static String getIPv4DefaultRouteSpecification() {
-		LinkedList<RouteDetail> routes;
+		return getIPv4DefaultRouteSpecification(null);
+	}
+
+	/** Returns the IPv4 default route specification as getIPv4DefaultRouteSpecification(),
+	 * but from the given snapshot.
+	 * 
+	 * @param snapshot The network state to use, or null to query the current state.
+	 */
+	public static String getIPv4DefaultRouteSpecification(NetworkSnapshot snapshot) {
+		RouteDetail route = getIPv4DefaultRoute(snapshot);
+		return route != null ? route.fullRouteLine : null;
+	}
+
+	/** Returns the IPv4 default route or null if no default route is known. */
+	private static RouteDetail getIPv4DefaultRoute(NetworkSnapshot snapshot) {
+		List<RouteDetail> routes;
 		try {
-			routes = LinuxIPCommandHelper.getRouteOutput(false);
+			routes = snapshot != null ? snapshot.getRoutes(false) : LinuxIPCommandHelper.getRouteOutput(false);
 			for (RouteDetail route : routes) {
 				if (route.target.equalsIgnoreCase("default") || route.target.equals("0.0.0.0/0")) {
 					// ok, default route found
 					logger.info("Found default IPv4 route pointing to gateway '" +
 							route.gateway + "' on interface '" + route.iface + "'");
-					return route.fullRouteLine;
+					return route;
 				}
 			}
 		} catch (IOException e) {
@@ -552,10 +1063,19 @@ public class LinuxIPCommandHelper {
      * prefix for a 6to4 tunneling address.  
      */
     public static Inet4Address getOutboundIPv4Address() {
+    	return getOutboundIPv4Address(null);
+    }
+
+    /** Returns the outbound IPv4 address as getOutboundIPv4Address(), but 
+     * from the given snapshot.
+     * 
+     * @param snapshot The network state to use, or null to query the current state.
+     */
+    public static Inet4Address getOutboundIPv4Address(NetworkSnapshot snapshot) {
     	try {
     		/* loop over all IPv4 routes to find the default route which would
     		 * be used for establishing a 6to4 tunnel */
-			LinkedList<RouteDetail> routes = LinuxIPCommandHelper.getRouteOutput(false);
+			List<RouteDetail> routes = snapshot != null ? snapshot.getRoutes(false) : LinuxIPCommandHelper.getRouteOutput(false);
 			for (RouteDetail route : routes) {
 				if (route.target.equalsIgnoreCase("default") || route.target.equals("0.0.0.0/0")) {
 					// ok, default route found
@@ -567,7 +1087,14 @@ public class LinuxIPCommandHelper {
 					}
 					
 					// now try to find the outbound IPv4 address on this interface
-					LinkedList<InterfaceDetail> ifaceDetails = LinuxIPCommandHelper.getIfaceOutput(route.iface);
+					LinkedList<InterfaceDetail> ifaceDetails;
+					if (snapshot != null) {
+						ifaceDetails = new LinkedList<InterfaceDetail>();
+						if (snapshot.getInterface(route.iface) != null)
+							ifaceDetails.add(snapshot.getInterface(route.iface));
+					}
+					else
+						ifaceDetails = LinuxIPCommandHelper.getIfaceOutput(route.iface);
 					if (ifaceDetails.size() != 1) {
 						logger.severe("Interface " + route.iface + " is listed for IPv4 default route, " +
 								"but can't parse interface details (got " + ifaceDetails.size() +
@@ -601,7 +1128,16 @@ public class LinuxIPCommandHelper {
      * @return true if an IPv6 default route can be found, false otherwise.
      */
     public static boolean existsIPv6DefaultRoute() {
-    	return getIfacesWithIPv6DefaultRoute().size() > 0;
+    	return existsIPv6DefaultRoute(null);
+    }
+    
+    /** Determine if a suitable IPv6 default route is set in the given snapshot.
+     * 
+     * @param snapshot The network state to use, or null to query the current state.
+     * @return true if an IPv6 default route can be found, false otherwise.
+     */
+    public static boolean existsIPv6DefaultRoute(NetworkSnapshot snapshot) {
+    	return getIfacesWithIPv6DefaultRoute(snapshot).size() > 0;
     }
     
     /** Determine which interfaces have an IPv6 default route set.
@@ -609,10 +1145,19 @@ public class LinuxIPCommandHelper {
      * @return the list of interfaces with an IPv6 default route.
      */
     public static LinkedList<String> getIfacesWithIPv6DefaultRoute() {
+    	return getIfacesWithIPv6DefaultRoute(null);
+    }
+    
+    /** Determine which interfaces have an IPv6 default route set in the given snapshot.
+     * 
+     * @param snapshot The network state to use, or null to query the current state.
+     * @return the list of interfaces with an IPv6 default route.
+     */
+    public static LinkedList<String> getIfacesWithIPv6DefaultRoute(NetworkSnapshot snapshot) {
     	LinkedList<String> ifaces = new LinkedList<String>();
-		LinkedList<RouteDetail> routes;
+		List<RouteDetail> routes;
 		try {
-			routes = LinuxIPCommandHelper.getRouteOutput(true);
+			routes = snapshot != null ? snapshot.getRoutes(true) : LinuxIPCommandHelper.getRouteOutput(true);
 			for (RouteDetail route : routes) {
 				if (route.target.equalsIgnoreCase("default") || route.target.equals("::/0") ||
 					route.target.equals("2000::/3") // with IPv6, a route prefix of 2000::/3 is currently enough as a default route
@@ -633,6 +1178,17 @@ public class LinuxIPCommandHelper {
 		return ifaces;
     }
 
+    /** Determines if the kernel currently prefers temporary (privacy) addresses
+     * as source addresses on the given interface, i.e. if its use_tempaddr
+     * option is set to 2 or more. The option is read without privileges.
+     * 
+     * @return false if not, or if the option can not be read.
+     */
+    public static boolean isTemporaryAddressPreferred(String iface) {
+    	String value = ipv6ConfigOptions.get(iface + ADDRESS_PRIVACY_PART2);
+    	return value != null && StringHelper.parseDecimalLong(value, 0, value.length()) >= 2;
+    }
+
     /** Determines if the necessary kernel options for IPv6 privacy are available.
      * 
      * @return true if available, false otherwise.
@@ -644,53 +1200,85 @@ public class LinuxIPCommandHelper {
     }
     
 	/** Enable address privacy for all interfaces and potentially try to force reload.
+	 * The option is only written on interfaces where it differs from the 
+	 * requested value, so this needs no superuser privileges if nothing 
+	 * has changed since the last call.
 	 * 
 	 * @param enablePrivacy If true, enable privacy. If false, disable address privacy. 
 	 * @param forceAddressReload If set to true, each interface will also be 
 	 *        reset by calling forceAddressReload.
 	 * @return false if address privacy could not be set on any of the interfaces,
-	 *         true if all of them could be set.
+	 *         true if all of them could be set (and, when forcing a reload,
+	 *         have usable new addresses).
 	 */
 	public static boolean enableIPv6AddressPrivacy(boolean enablePrivacy, boolean forceAddressReload) {
+		return enableIPv6AddressPrivacy(enablePrivacy, forceAddressReload, null);
+	}
+
+	/** Enable address privacy for all interfaces as enableIPv6AddressPrivacy(boolean, boolean),
+	 * but take the routes to decide about reloading from the given snapshot.
+	 * 
+	 * @param snapshot The network state to use, or null to query the current state.
+	 */
+	public static boolean enableIPv6AddressPrivacy(boolean enablePrivacy, boolean forceAddressReload, 
+			NetworkSnapshot snapshot) {
 		logger.fine((enablePrivacy ? "Enabling" : "Disabling") + " IPv6 address privacy" +
 				(forceAddressReload ? " and forcing reload of interfaces" : ""));
 		
 		boolean ret = true;
-		LinkedList<String> allIfaces = new LinkedList<String>();
 		LinkedList<String> modifiedIfacesToReload = new LinkedList<String>();
 		
-		// include the special "default" and "all" trees
-		allIfaces.add(CONF_INTERFACES_ALL);
-		allIfaces.add(CONF_INTERFACES_DEFAULT);
-		
-		// for now, use static interface names
-		// TODO: take all other interfaces with IPv6 addresses as well
-		allIfaces.add("eth0"); // WLAN interface on HTC Desire, Desire HD and Google Nexus S (and probably others)
-		allIfaces.add("rmnet0"); // GPRS/UMTS interface
-		allIfaces.add("rmnet1");
-		allIfaces.add("rmnet2");
-		allIfaces.add("ip6tnl0"); // IPv6 in/over IPv4 tunnel
-		allIfaces.add("tiwlan0"); // WLAN interface on Motorola Milestone
-		
 		/* query IPv6 default route so that we only need to force reload on
 		 * those interfaces that are actually used for IPv6 outgoing traffic
 		 */
-		LinkedList<String> ifacesWithIPv6Route = getIfacesWithIPv6DefaultRoute();
+		LinkedList<String> ifacesWithIPv6Route = getIfacesWithIPv6DefaultRoute(snapshot);
+		
+		// the special "default" and "all" trees and all interfaces known as IPv6-capable to the kernel
+		ArrayList<String> existingIfaces = new ArrayList<String>();
+		existingIfaces.add(CONF_INTERFACES_ALL);
+		existingIfaces.add(CONF_INTERFACES_DEFAULT);
+		for (String iface : ipv6Interfaces.getInterfaces())
+			if (!iface.equals(LOOPBACK_INTERFACE))
+				existingIfaces.add(iface);
 		
-		for (String iface: allIfaces) {
-			File configDir = new File(IPV6_CONFIG_TREE + iface); 
-			// only try to enable if this is indeed known as an IPv6-capable interface to the kernel
-			if (configDir.isDirectory())
-				if (enableIPv6AddressPrivacy(iface, enablePrivacy)) {
+		// set the kernel option on all of them where it differs, in one batch
+		String[] keys = new String[existingIfaces.size()];
+		String[] values = new String[keys.length];
+		for (int i=0; i<keys.length; i++) {
+			keys[i] = existingIfaces.get(i) + ADDRESS_PRIVACY_PART2;
+			values[i] = enablePrivacy ? ENABLE_ADDRESS_PRIVACY : DISABLE_ADDRESS_PRIVACY;
+		}
+		try {
+			boolean[] results = ipv6ConfigOptions.set(keys, values, MUTATION_TIMEOUT);
+			for (int i=0; i<results.length; i++) {
+				String iface = existingIfaces.get(i);
+				if (results[i]) {
+					logger.finer("Address privacy " + (enablePrivacy ? "enabled" : "disabled") + " on interface " + iface);
 					if (ifacesWithIPv6Route.contains(iface))
 						modifiedIfacesToReload.add(iface);
 				}
 				else
 					ret = false;
+			}
+		} catch (IOException e) {
+			logger.severe("Unable to execute system command, address privacy may not be enabled (access privileges missing?) " + e);
+			ret = false;
+		} catch (CommandTimeoutException e) {
+			logger.severe("Setting address privacy did not finish in time, it may not be enabled " + e);
+			ret = false;
 		}
 		
-		if (forceAddressReload)
-			forceAddressReload(modifiedIfacesToReload);
+		// success includes the new addresses being usable
+		if (forceAddressReload) {
+			LinkedList<String> ifacesToBounce = modifiedIfacesToReload;
+			if (reloadByRegeneration) {
+				ifacesToBounce = new LinkedList<String>();
+				if (!regenerateAddresses(modifiedIfacesToReload, enablePrivacy, ifacesToBounce))
+					ret = false;
+			}
+			if (ifacesToBounce.size() > 0 && !forceAddressReload(ifacesToBounce, snapshot, enablePrivacy))
+				ret = false;
+		}
 		
 		return ret;
 	}
@@ -703,9 +1291,9 @@ public class LinuxIPCommandHelper {
 	 */
 	public static boolean enableIPv6AddressPrivacy(String iface, boolean enablePrivacy) {
 		try {
-			if (Command.executeCommand(SH_COMMAND, true, 
-					(enablePrivacy ? ENABLE_ADDRESS_PRIVACY_PART1 : DISABLE_ADDRESS_PRIVACY_PART1) + 
-							iface + ADDRESS_PRIVACY_PART2, null, null) == 0) {
+			if (ipv6ConfigOptions.set(new String[] { iface + ADDRESS_PRIVACY_PART2 }, 
+					new String[] { enablePrivacy ? ENABLE_ADDRESS_PRIVACY : DISABLE_ADDRESS_PRIVACY }, 
+					MUTATION_TIMEOUT)[0]) {
 				logger.finer("Enabled address privacy on interface " + iface);
 				return true;
 			}
@@ -715,20 +1303,54 @@ public class LinuxIPCommandHelper {
 		} catch (IOException e) {
 			logger.severe("Unable to execute system command, address privacy may not be enabled (access privileges missing?) " + e);
 			return false;
-		} catch (InterruptedException e) {
+		} catch (CommandTimeoutException e) {
+			logger.severe("Setting address privacy on interface " + iface + " did not finish in time " + e);
 			return false;
 		}
 	}
 	
+	/** Executes the batch with the netlink helper if it is available.
+	 * 
+	 * @return the result of each operation (0 on success), or null if the 
+	 *         helper is not available or could not be run, in which case 
+	 *         the caller should fall back to "ip".
+	 */
+	private static int[] executeNetlinkBatch(NetlinkBatch batch, boolean stopOnFirstFailure) 
+			throws CommandTimeoutException {
+		if (!NetlinkBatch.isHelperAvailable())
+			return null;
+		try {
+			return batch.execute(stopOnFirstFailure);
+		} catch (IOException e) {
+			logger.warning("Unable to execute netlink helper, falling back to ip: " + e);
+			return null;
+		}
+	}
+
+	/** Returns the exit codes of all results. */
+	private static int[] getExitCodes(Command.CommandResult[] results) {
+		int[] exitCodes = new int[results.length];
+		for (int i=0; i<results.length; i++)
+			exitCodes[i] = results[i].exitCode;
+		return exitCodes;
+	}
+
 	/** Tries to force the interface to reset its addresses by setting it down and then up. */
 	public static boolean forceAddressReload(String iface) {
 		String cmd = getIPCommandLocation() + SET_INTERFACE + iface + " ";
 
 		try {
-			if (Command.executeCommand(SH_COMMAND, true, cmd + DOWN, null, null) == 0) {
-				// wait just a little for the interface to properly go down
-				Thread.sleep(INTERFACE_DOWN_UP_DELAY);
-				if (Command.executeCommand(SH_COMMAND, true, cmd + UP, null, null) == 0) {
+			if (Command.executeRootCommand(cmd + DOWN, MUTATION_TIMEOUT).exitCode == 0) {
+				// wait for the interface to properly go down
+				List<String> ifaces = new LinkedList<String>();
+				ifaces.add(iface);
+				if (waitForLinkState(ifaces, false, LINK_DOWN_TIMEOUT).size() > 0)
+					logger.warning("Interface " + iface + " not reported down in time, setting it up anyway");
+				if (Command.executeRootCommand(cmd + UP, MUTATION_TIMEOUT).exitCode == 0) {
+					if (waitForLinkState(ifaces, true, LINK_UP_TIMEOUT).size() > 0) {
+						logger.warning("Reset interface " + iface + ", but its link did not come back in time");
+						return false;
+					}
 					logger.finer("Reset interface " + iface + " to force address reload");
 					return true;
 				}
@@ -744,6 +1366,9 @@ public class LinuxIPCommandHelper {
 		} catch (IOException e) {
 			logger.severe("Unable to execute system command, new addresses may not have been set (access privileges missing?) " + e);
 			return false;
+		} catch (CommandTimeoutException e) {
+			logger.severe("Reloading interfaces did not finish in time, new addresses may not have been set " + e);
+			return false;
 		} catch (InterruptedException e) {
 			return false;
 		}
@@ -751,47 +1376,118 @@ public class LinuxIPCommandHelper {
 
 	/** Tries to force all specified interfaces to reset their addresses by setting them down and then up. */
 	public static boolean forceAddressReload(List<String> ifaces) {
+		return forceAddressReload(ifaces, null);
+	}
+
+	/** Tries to force all specified interfaces to reset their addresses as 
+	 * forceAddressReload(List), but take the default route to restore from
+	 * the given snapshot.
+	 * 
+	 * @param snapshot The network state to use, or null to query the current state.
+	 */
+	public static boolean forceAddressReload(List<String> ifaces, NetworkSnapshot snapshot) {
+		return forceAddressReload(ifaces, snapshot, false);
+	}
+
+	/** Tries to force all specified interfaces to reset their addresses as
+	 * forceAddressReload(List, NetworkSnapshot), and only reports success
+	 * when each of them has a new global address that has passed duplicate
+	 * address detection (see waitForGlobalAddresses).
+	 * 
+	 * @param waitForTemporary If true, a temporary (privacy) address is 
+	 *        required on each interface, otherwise any global address.
+	 */
+	public static boolean forceAddressReload(List<String> ifaces, NetworkSnapshot snapshot, 
+			boolean waitForTemporary) {
 		boolean ret = true;
+		LinkedList<String> ifacesToReload = new LinkedList<String>();
 		LinkedList<String> downedIfaces = new LinkedList<String>();
 		
 		String cmd = getIPCommandLocation() + SET_INTERFACE;
 
 		// remember the default route so that we can restore it later on
-		String currentDefaultRoute = getIPv4DefaultRouteSpecification();
+		RouteDetail defaultRoute = getIPv4DefaultRoute(snapshot);
+		String currentDefaultRoute = defaultRoute != null ? defaultRoute.fullRouteLine : null;
 		
 		try {
-			// first set all interfaces down
+			// only try to reload if this is indeed known as an IPv6-capable interface to the kernel
 			for (String iface : ifaces) {
-				// only try to enable if this is indeed known as an IPv6-capable interface to the kernel
-				File configDir = new File(IPV6_CONFIG_TREE + iface);
-				if (configDir.isDirectory() && !iface.equals(CONF_INTERFACES_ALL) && !iface.equals(CONF_INTERFACES_DEFAULT)) {
-					if (Command.executeCommand(SH_COMMAND, true, cmd + iface + DOWN, null, null) == 0)
-						downedIfaces.add(iface);
-					else {
-						logger.warning("Unable to set interface " + iface + " down, will not try to set it up again");
-						ret = false;
-					}
+				if (ipv6Interfaces.contains(iface))
+					ifacesToReload.add(iface);
+			}
+
+			// first set all interfaces down in one batch
+			NetlinkBatch downBatch = new NetlinkBatch();
+			for (String iface : ifacesToReload)
+				downBatch.setLinkDown(iface);
+			int[] downResults = executeNetlinkBatch(downBatch, false);
+			if (downResults == null) {
+				String[] downCmds = new String[ifacesToReload.size()];
+				for (int i=0; i<downCmds.length; i++)
+					downCmds[i] = cmd + ifacesToReload.get(i) + DOWN;
+				downResults = getExitCodes(Command.executeRootCommands(downCmds, false, MUTATION_TIMEOUT));
+			}
+			for (int i=0; i<downResults.length; i++) {
+				if (downResults[i] == 0)
+					downedIfaces.add(ifacesToReload.get(i));
+				else {
+					logger.warning("Unable to set interface " + ifacesToReload.get(i) + " down, will not try to set it up again");
+					ret = false;
 				}
 			}
 			
-			// then wait just a little for the interfaces to properly go down
-			Thread.sleep(INTERFACE_DOWN_UP_DELAY);
+			// then wait for the interfaces to properly go down
+			List<String> notDown = waitForLinkState(downedIfaces, false, LINK_DOWN_TIMEOUT);
+			if (notDown.size() > 0)
+				logger.warning("Interfaces " + notDown + " not reported down in time, setting them up anyway");
 			
-			// and start all those again that were set down
-			for (String iface : downedIfaces) {
-				if (Command.executeCommand(SH_COMMAND, true, cmd + iface + UP, null, null) == 0) 
-					logger.finer("Reset interface " + iface + " to force address reload");
+			// and start all those again that were set down, together with restoring the old default route
+			boolean restoreDefaultRoute = currentDefaultRoute != null && currentDefaultRoute.length() > 0;
+			NetlinkBatch upBatch = new NetlinkBatch();
+			for (String iface : downedIfaces)
+				upBatch.setLinkUp(iface, 0);
+			if (restoreDefaultRoute)
+				upBatch.addRoute(defaultRoute.iface, InetAddress.getByAddress(new byte[4]), 0, 
+						defaultRoute.gateway, defaultRoute.metric);
+			int[] upResults = executeNetlinkBatch(upBatch, false);
+			if (upResults == null) {
+				String[] upCmds = new String[downedIfaces.size() + (restoreDefaultRoute ? 1 : 0)];
+				for (int i=0; i<downedIfaces.size(); i++)
+					upCmds[i] = cmd + downedIfaces.get(i) + UP;
+				if (restoreDefaultRoute)
+					upCmds[upCmds.length-1] = getIPCommandLocation() + ROUTES_COMMAND + ADD + currentDefaultRoute;
+				upResults = getExitCodes(Command.executeRootCommands(upCmds, false, MUTATION_TIMEOUT));
+			}
+			LinkedList<String> upIfaces = new LinkedList<String>();
+			for (int i=0; i<downedIfaces.size(); i++) {
+				if (upResults[i] == 0) 
+					upIfaces.add(downedIfaces.get(i));
 				else {
-					logger.warning("Set interface " + iface + " down but was unable to set it up again");
+					logger.warning("Set interface " + downedIfaces.get(i) + " down but was unable to set it up again");
+					ret = false;
+				}
+			}
+			
+			// the reload is only complete when the links are actually back
+			long upAt = System.currentTimeMillis();
+			List<String> notUp = waitForLinkState(upIfaces, true, LINK_UP_TIMEOUT);
+			for (String iface : upIfaces) {
+				if (notUp.contains(iface)) {
+					logger.warning("Reset interface " + iface + ", but its link did not come back in time");
 					ret = false;
 				}
+				else
+					logger.finer("Reset interface " + iface + " to force address reload");
 			}
+			upIfaces.removeAll(notUp);
+			
+			// and when they have usable new addresses
+			if (!waitForNewAddresses(upIfaces, waitForTemporary, upAt, "reload"))
+				ret = false;
 			
-			// if we had one, restore old default route
-			if (currentDefaultRoute != null && currentDefaultRoute.length() > 0) {
-				if (Command.executeCommand(SH_COMMAND, true, 
-						getIPCommandLocation() + ROUTES_COMMAND + ADD + currentDefaultRoute, 
-						null, null) == 0) 
+			// if we had one, check if the old default route could be restored
+			if (restoreDefaultRoute) {
+				if (upResults[upResults.length-1] == 0) 
 					logger.fine("Reloaded default route '" + currentDefaultRoute + "'");
 				else {
 					logger.warning("Unable to reload default route '" + currentDefaultRoute + 
@@ -803,11 +1499,294 @@ public class LinuxIPCommandHelper {
 		} catch (IOException e) {
 			logger.severe("Unable to execute system command, new addresses may not have been set (access privileges missing?) " + e);
 			return false;
+		} catch (CommandTimeoutException e) {
+			logger.severe("Reloading interfaces did not finish in time, new addresses may not have been set " + e);
+			return false;
 		} catch (InterruptedException e) {
 			return false;
 		}
 	}
 	
+	/** Makes the kernel regenerate the IPv6 addresses of all specified 
+	 * interfaces without setting them down: IPv6 is disabled and enabled
+	 * again on each of them (with the disable_ipv6 kernel option, in one
+	 * batch), which drops their IPv6 addresses and routes and restarts 
+	 * stateless autoconfiguration, including new temporary addresses. In 
+	 * contrast to forceAddressReload, the links, their IPv4 addresses, and
+	 * IPv4 routes are not touched, so there is no gap in IPv4 connectivity
+	 * and no default route has to be restored.
+	 * 
+	 * As this also drops static addresses and routes, only interfaces with
+	 * stateless autoconfiguration (see isAutoconfigured) are regenerated;
+	 * all others, in particular the 6to4 tunnel, and interfaces on which
+	 * IPv6 is disabled stay untouched. If regenerating fails or does not 
+	 * finish in time, IPv6 is enabled again on all affected interfaces in
+	 * a separate write. Success is only reported when each interface has a
+	 * usable new address, as for forceAddressReload(List, NetworkSnapshot, 
+	 * boolean).
+	 * 
+	 * @param waitForTemporary If true, a temporary (privacy) address is 
+	 *        required on each interface, otherwise any global address.
+	 * @param notRegenerated If not null, interfaces for which the kernel 
+	 *        option could not be set are added to this list (e.g. to reload
+	 *        them with forceAddressReload instead), and do not count as failure.
+	 * @return true if all interfaces have usable new addresses.
+	 */
+	public static boolean regenerateAddresses(List<String> ifaces, boolean waitForTemporary, 
+			List<String> notRegenerated) {
+		boolean ret = true;
+		LinkedList<String> ifacesToRegenerate = new LinkedList<String>();
+		for (String iface : ifaces) {
+			if (!ipv6Interfaces.contains(iface))
+				continue;
+			if (!isAutoconfigured(iface)) {
+				logger.finer("Interface " + iface + " does not autoconfigure addresses, not regenerating them");
+				continue;
+			}
+			String disabled = ipv6ConfigOptions.get(iface + DISABLE_IPV6_PART2);
+			if (disabled == null) {
+				logger.warning("Unable to read " + IPV6_CONFIG_TREE + iface + DISABLE_IPV6_PART2 + 
+						", can not regenerate addresses of interface " + iface);
+				if (notRegenerated != null)
+					notRegenerated.add(iface);
+				else
+					ret = false;
+			}
+			else if (disabled.equals("0"))
+				ifacesToRegenerate.add(iface);
+		}
+		if (ifacesToRegenerate.size() == 0)
+			return ret;
+
+		// disable and enable again in one batch, so that IPv6 is not left disabled in between
+		String[] cmds = new String[ifacesToRegenerate.size()];
+		for (int i=0; i<cmds.length; i++) {
+			String option = IPV6_CONFIG_TREE + ifacesToRegenerate.get(i) + DISABLE_IPV6_PART2;
+			cmds[i] = "echo 1 > " + option + " && echo 0 > " + option;
+		}
+		Command.CommandResult[] results;
+		try {
+			results = Command.executeRootCommands(cmds, false, MUTATION_TIMEOUT);
+		} catch (IOException e) {
+			logger.severe("Unable to execute system command, addresses may not have been regenerated (access privileges missing?) " + e);
+			reenableIPv6(ifacesToRegenerate);
+			return false;
+		} catch (CommandTimeoutException e) {
+			logger.severe("Regenerating addresses did not finish in time, enabling IPv6 again on " + ifacesToRegenerate + " " + e);
+			reenableIPv6(ifacesToRegenerate);
+			return false;
+		}
+		long regeneratedAt = System.currentTimeMillis();
+		LinkedList<String> regenerated = new LinkedList<String>();
+		LinkedList<String> failed = new LinkedList<String>();
+		for (int i=0; i<results.length; i++) {
+			String iface = ifacesToRegenerate.get(i);
+			if (results[i].exitCode == 0)
+				regenerated.add(iface);
+			else {
+				logger.warning("Unable to regenerate addresses of interface " + iface);
+				failed.add(iface);
+				if (notRegenerated != null)
+					notRegenerated.add(iface);
+				else
+					ret = false;
+			}
+		}
+		// the first write may have succeeded, so make sure that IPv6 is not left disabled
+		if (failed.size() > 0)
+			reenableIPv6(failed);
+
+		try {
+			if (!waitForNewAddresses(regenerated, waitForTemporary, regeneratedAt, "regeneration"))
+				ret = false;
+			return ret;
+		} catch (IOException e) {
+			logger.severe("Unable to read the new addresses after regeneration " + e);
+			return false;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	/** Enables IPv6 again on the interfaces after a failed regeneration, in
+	 * a separate write that does not depend on the state of the failed one.
+	 */
+	private static void reenableIPv6(List<String> ifaces) {
+		String[] cmds = new String[ifaces.size()];
+		for (int i=0; i<cmds.length; i++)
+			cmds[i] = "echo 0 > " + IPV6_CONFIG_TREE + ifaces.get(i) + DISABLE_IPV6_PART2;
+		try {
+			Command.CommandResult[] results = Command.executeRootCommands(cmds, false, MUTATION_TIMEOUT);
+			for (int i=0; i<results.length; i++)
+				if (results[i].exitCode != 0)
+					logger.severe("Unable to enable IPv6 again on interface " + ifaces.get(i) + 
+							", it stays disabled until the next network interface change!");
+		} catch (IOException e) {
+			logger.severe("Unable to execute system command, IPv6 may stay disabled on " + ifaces + " " + e);
+		} catch (CommandTimeoutException e) {
+			logger.severe("Enabling IPv6 again did not finish in time, it may stay disabled on " + ifaces + " " + e);
+		}
+		// the cached values do not reflect the failed writes
+		ipv6ConfigOptions.invalidate();
+	}
+
+	/** Waits until all interfaces are down or up and usable, but at most
+	 * until the timeout. The state is read from SYS_CLASS_NET without 
+	 * privileges, first after a millisecond and then in growing intervals,
+	 * so that fast interfaces are not delayed and slow ones not polled 
+	 * needlessly often.
+	 * 
+	 * @param up If false, waits until the interfaces are administratively
+	 *           down and their operational state is no longer up. If true, 
+	 *           waits until they are up and have a carrier, with an 
+	 *           operational state of up (or unknown for interfaces that do
+	 *           not report one, such as tunnels).
+	 * @return the interfaces that did not reach the state in time, empty
+	 *         if all did.
+	 */
+	public static List<String> waitForLinkState(List<String> ifaces, boolean up, long timeout) 
+			throws InterruptedException {
+		LinkedList<String> pending = new LinkedList<String>(ifaces);
+		LinkedList<String> failed = new LinkedList<String>();
+		long start = System.currentTimeMillis();
+		long interval = LINK_STATE_POLL_MIN;
+		while (true) {
+			for (Iterator<String> iter = pending.iterator(); iter.hasNext(); ) {
+				String iface = iter.next();
+				if (isLinkInState(iface, up))
+					iter.remove();
+				else if (up && !new File(SYS_CLASS_NET + iface).exists()) {
+					// an interface that has disappeared will not come back by waiting
+					failed.add(iface);
+					iter.remove();
+				}
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			if (pending.size() == 0 && failed.size() == 0)
+				logger.finer("Interfaces " + ifaces + " " + (up ? "up" : "down") + " after " + elapsed + "ms");
+			if (pending.size() == 0 || elapsed >= timeout) {
+				failed.addAll(pending);
+				return failed;
+			}
+			Thread.sleep(Math.min(interval, timeout - elapsed));
+			interval = Math.min(interval * 2, LINK_STATE_POLL_MAX);
+		}
+	}
+
+	/** Waits until each interface has a global IPv6 address that has passed 
+	 * duplicate address detection, i.e. is neither tentative nor failed, 
+	 * but at most until the timeout. Addresses are read from 
+	 * PROC_NET_IF_INET6 in growing intervals as in waitForLinkState.
+	 * 
+	 * @param temporary If true, the address has to be a temporary (privacy) one.
+	 * @param since The time (as in System.currentTimeMillis) from which 
+	 *              the returned times are measured, e.g. when the 
+	 *              interfaces have been set up.
+	 * @return for each interface, the time in milliseconds from since until
+	 *         it had such an address, or -1 if it had none in time.
+	 */
+	public static HashMap<String, Long> waitForGlobalAddresses(List<String> ifaces, boolean temporary, 
+			long since, long timeout) throws IOException, InterruptedException {
+		HashMap<String, Long> ret = new HashMap<String, Long>();
+		LinkedList<String> pending = new LinkedList<String>(ifaces);
+		long start = System.currentTimeMillis();
+		long interval = LINK_STATE_POLL_MIN;
+		while (true) {
+			long now = System.currentTimeMillis();
+			if (pending.size() > 0) {
+				for (InterfaceDetail iface : getIPv6IfaceOutput(null))
+					if (pending.contains(iface.name) && hasUsableGlobalAddress(iface, temporary)) {
+						pending.remove(iface.name);
+						ret.put(iface.name, now - since);
+					}
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			if (pending.size() == 0 || elapsed >= timeout) {
+				for (String iface : pending)
+					ret.put(iface, -1L);
+				return ret;
+			}
+			Thread.sleep(Math.min(interval, timeout - elapsed));
+			interval = Math.min(interval * 2, LINK_STATE_POLL_MAX);
+		}
+	}
+
+	/** Waits for usable new addresses with waitForGlobalAddresses after a 
+	 * reload or regeneration, and records the time each interface needed 
+	 * as METRIC_TIME_TO_PRIVATE_ADDRESS or METRIC_TIME_TO_GLOBAL_ADDRESS.
+	 * Only interfaces with stateless autoconfiguration (see 
+	 * isAutoconfigured) get new addresses by themselves, so all others, 
+	 * such as the 6to4 tunnel, are not waited for.
+	 * 
+	 * @return true if all interfaces had a usable address in time.
+	 */
+	private static boolean waitForNewAddresses(List<String> allIfaces, boolean temporary, long since, 
+			String action) throws IOException, InterruptedException {
+		boolean ret = true;
+		String kind = temporary ? "temporary" : "global";
+		LinkedList<String> ifaces = new LinkedList<String>();
+		for (String iface : allIfaces) {
+			if (isAutoconfigured(iface))
+				ifaces.add(iface);
+			else
+				logger.finer("Interface " + iface + " does not autoconfigure addresses, not waiting for them after " + action);
+		}
+		HashMap<String, Long> readyTimes = waitForGlobalAddresses(ifaces, temporary, since, ADDRESS_READY_TIMEOUT);
+		for (String iface : ifaces) {
+			long readyTime = readyTimes.get(iface);
+			CommandMetrics.record(temporary ? METRIC_TIME_TO_PRIVATE_ADDRESS : METRIC_TIME_TO_GLOBAL_ADDRESS,
+					(readyTime >= 0 ? readyTime : System.currentTimeMillis() - since) * 1000, readyTime >= 0);
+			if (readyTime < 0) {
+				logger.warning("Interface " + iface + " has no usable " + kind + " address " + 
+						ADDRESS_READY_TIMEOUT + "ms after " + action);
+				ret = false;
+			}
+			else
+				logger.fine("Interface " + iface + " has a usable " + kind + " address " + readyTime + "ms after " + action);
+		}
+		return ret;
+	}
+
+	/** Returns true if the interface configures its addresses with stateless
+	 * autoconfiguration, i.e. autoconf and accept_ra are enabled. The 6to4
+	 * tunnel only carries its static address and never does.
+	 */
+	private static boolean isAutoconfigured(String iface) {
+		if (iface.equals(IPv6AddressesHelper.IPv6_6to4_TUNNEL_INTERFACE_NAME))
+			return false;
+		String autoconf = ipv6ConfigOptions.get(iface + AUTOCONF_PART2);
+		String acceptRA = ipv6ConfigOptions.get(iface + ACCEPT_RA_PART2);
+		return autoconf != null && !autoconf.equals("0") && acceptRA != null && !acceptRA.equals("0");
+	}
+
+	/** Returns true if the interface has a global address that is usable as source address. */
+	private static boolean hasUsableGlobalAddress(InterfaceDetail iface, boolean temporary) {
+		for (InetAddressWithNetmask addr : iface.addresses) {
+			PackedAddress packed = addr.getPackedAddress();
+			if (packed != null && !addr.markedTentative && !addr.markedDadFailed && 
+					(addr.markedTemporary || !temporary) &&
+					SourceAddressSelector.getScope(packed) == SourceAddressSelector.SCOPE_GLOBAL)
+				return true;
+		}
+		return false;
+	}
+
+	/** Checks the state of a single interface as described for waitForLinkState. */
+	private static boolean isLinkInState(String iface, boolean up) {
+		String dir = SYS_CLASS_NET + iface + "/";
+		int flags = StringHelper.convertHexStringToInt(readSysValue(dir + "flags"), false);
+		// an interface that has disappeared (or whose flags can not be read) counts as down
+		if (flags < 0)
+			return !up;
+		boolean adminUp = (flags & IFF_UP) != 0;
+		String operstate = readSysValue(dir + "operstate");
+		if (!up)
+			return !adminUp && !operstate.equals(OPERSTATE_UP);
+		// carrier can only be read while the interface is administratively up
+		return adminUp && readSysValue(dir + "carrier").equals("1") &&
+				(operstate.equals(OPERSTATE_UP) || operstate.equals(OPERSTATE_UNKNOWN));
+	}
+
 	/** Delete a tunnel interface that was previously created.
 	 * 
 	 * @param iface The interface name to delete.
@@ -817,7 +1796,10 @@ public class LinuxIPCommandHelper {
 		String cmd = getIPCommandLocation() + DELETE_TUNNEL_INTERFACE + iface;
 
 		try {
-			if (Command.executeCommand(SH_COMMAND, true, cmd, null, null) == 0) { 
+			int[] results = executeNetlinkBatch(new NetlinkBatch().deleteTunnel(iface), false);
+			if (results == null)
+				results = new int[] { Command.executeRootCommand(cmd, MUTATION_TIMEOUT).exitCode };
+			if (results[0] == 0) { 
 				logger.finer("Deleted tunnel interface " + iface);
 				return true;
 			}
@@ -828,7 +1810,8 @@ public class LinuxIPCommandHelper {
 		} catch (IOException e) {
 			logger.severe("Unable to execute system command, tunnel interface not deleted (access privileges missing?) " + e);
 			return false;
-		} catch (InterruptedException e) {
+		} catch (CommandTimeoutException e) {
+			logger.severe("Modifying tunnel interface " + iface + " did not finish in time " + e);
 			return false;
 		}
 	}
@@ -874,24 +1857,36 @@ public class LinuxIPCommandHelper {
 					" with local endpoint " + localIPv4Endpoint.getHostAddress() +
 					" for prefix " + ipv6Prefix + " with MTU " + mtu);
 			
-			if (Command.executeCommand(SH_COMMAND, true, cmdTunnel, null, null) != 0) {
+			// all steps depend on the previous ones, so stop at the first failure
+			NetlinkBatch batch = new NetlinkBatch()
+				.addTunnel(iface, localIPv4Endpoint, 255)
+				.setLinkUp(iface, mtu)
+				.addAddress(iface, InetAddress.getByName(ipv6Prefix + "::"), 16)
+				.addRoute(iface, Inet6Address.getByAddress(null, IPV4_MAPPED_PREFIX, 0), 96, null, 1)
+				.addRoute(iface, InetAddress.getByName("2000::"), 3, InetAddress.getByName("::192.88.99.1"), 1);
+			int[] results = executeNetlinkBatch(batch, true);
+			if (results == null)
+				results = getExitCodes(Command.executeRootCommands(new String[] {
+					cmdTunnel, cmdSetUp, cmd6to4Addr, cmd6to4Route1, cmd6to4Route2 }, true, MUTATION_TIMEOUT));
+			
+			if (results[0] != 0) {
 				logger.severe("Unable to create tunnel interface " + iface);
 				return false;
 			}
-			if (Command.executeCommand(SH_COMMAND, true, cmdSetUp, null, null) != 0) {
+			if (results[1] != 0) {
 				logger.severe("Unable to set tunnel interface " + iface + " up with MTU " + mtu);
 				return false;
 			}
-			if (Command.executeCommand(SH_COMMAND, true, cmd6to4Addr, null, null) != 0) {
+			if (results[2] != 0) {
 				logger.severe("Unable to add 6to4 address " + ipv6Prefix + 
 						" to tunnel interface " + iface);
 				return false;
 			}
-			if (Command.executeCommand(SH_COMMAND, true, cmd6to4Route1, null, null) != 0) {
+			if (results[3] != 0) {
 				logger.severe("Unable to add 6to4 route 1 to tunnel interface " + iface);
 				return false;
 			}
-			if (Command.executeCommand(SH_COMMAND, true, cmd6to4Route2, null, null) != 0) {
+			if (results[4] != 0) {
 				logger.severe("Unable to add 6to4 route 2 to tunnel interface " + iface);
 				return false;
 			}
@@ -903,7 +1898,8 @@ public class LinuxIPCommandHelper {
 		} catch (IOException e) {
 			logger.severe("Unable to execute system command, tunnel interface not deleted (access privileges missing?) " + e);
 			return false;
-		} catch (InterruptedException e) {
+		} catch (CommandTimeoutException e) {
+			logger.severe("Modifying tunnel interface " + iface + " did not finish in time " + e);
 			return false;
 		}
 	}
@@ -1,7 +1,9 @@
 package to.doc.android.ipv6config;
 
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.UnknownHostException;
+import java.util.LinkedList;
 
 import android.app.IntentService;
 import android.content.Context;
@@ -98,8 +100,17 @@ public class NetOpsService extends IntentService {
 		Log.i(Constants.LOG_TAG, "Overrides taken from intent: " + overrides);
 
 		if (autoStart || overrides || reload) {
+			// query the network state only once for all decisions below
+			NetworkSnapshot snapshot = null;
+			try {
+				snapshot = NetworkSnapshot.capture();
+				Log.d(Constants.LOG_TAG, "Captured " + snapshot);
+			} catch (IOException e) {
+				Log.w(Constants.LOG_TAG, "Unable to capture network state, will query it for each step", e);
+			}
+
 			Log.w(Constants.LOG_TAG, "Now enabling address privacy on all currently known interfaces, this might take a few seconds...");
-	    	if (LinuxIPCommandHelper.enableIPv6AddressPrivacy(enablePrivacy, reload)) {
+	    	if (LinuxIPCommandHelper.enableIPv6AddressPrivacy(enablePrivacy, reload, snapshot)) {
 	    		if (displayNotifications)
 	    			displayToast(enablePrivacy ? getApplicationContext().getString(R.string.toastEnableSuccess) : getApplicationContext().getString(R.string.toastDisableSuccess));
 	    	}
@@ -108,7 +119,7 @@ public class NetOpsService extends IntentService {
 			}
 	    	
 	    	if (enable6to4Tunnel)
-	    		create6to4Tunnel(getApplicationContext(), force6to4Tunnel, displayNotifications);
+	    		create6to4Tunnel(getApplicationContext(), force6to4Tunnel, displayNotifications, snapshot);
 		}
 		// as IntentService, we just register setIntentRedelivery(true) in the constructor instead of returning START_STICKY
 	}
@@ -164,20 +175,26 @@ public class NetOpsService extends IntentService {
 	 * 
 	 * @param force6to4Tunnel If set to true, tunnel creation will be attempted
 	 *        even if the IPv4 addresses do not indicate it possible. 
+	 * @param snapshot The network state to base decisions on, or null to query 
+	 *        the current state.
 	 * @return true when a tunnel interface was established, false otherwise.
 	 */
-	private boolean create6to4Tunnel(Context context, boolean force6to4Tunnel, boolean displayNotifications) {
+	private boolean create6to4Tunnel(Context context, boolean force6to4Tunnel, boolean displayNotifications, 
+			NetworkSnapshot snapshot) {
 		// first delete tunnel if it exists (if it doesn't, don't mind)
 		LinuxIPCommandHelper.deleteTunnelInterface(IPv6AddressesHelper.IPv6_6to4_TUNNEL_INTERFACE_NAME);
 
 		// check if we should create a tunnel now (i.e. if there is any IPv6 default route)
-		if (LinuxIPCommandHelper.existsIPv6DefaultRoute()) {
+		LinkedList<String> ifacesWithIPv6Route = LinuxIPCommandHelper.getIfacesWithIPv6DefaultRoute(snapshot);
+		// the snapshot may still contain the routes of the tunnel deleted above
+		ifacesWithIPv6Route.remove(IPv6AddressesHelper.IPv6_6to4_TUNNEL_INTERFACE_NAME);
+		if (!ifacesWithIPv6Route.isEmpty()) {
 			Log.i(Constants.LOG_TAG, "Not creating a 6to4 tunnel because an IPv6 default route already exists.");
 			return false;
 		}
 		
 		// determine outbound IPv4 address based on routes
-		Inet4Address outboundIPv4Addr = LinuxIPCommandHelper.getOutboundIPv4Address();
+		Inet4Address outboundIPv4Addr = LinuxIPCommandHelper.getOutboundIPv4Address(snapshot);
     	Log.d(Constants.LOG_TAG, "test3");
 		
 		if (! is6to4TunnelPossible(outboundIPv4Addr, force6to4Tunnel)) {
@@ -0,0 +1,197 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.StringTokenizer;
+import java.util.logging.Logger;
+
+/** This class collects link, address, and route modifications and applies
+ * them via rtnetlink with a single start of the privileged helper built
+ * from jni/nlhelper.c, instead of one "ip" process (and su/sh chain) per
+ * modification. The helper sends all netlink messages with as few send()
+ * calls as possible and waits for the acknowledgements of the whole batch.
+ *
+ * The helper is shipped as native library file and is located with
+ * setHelperLocation by IPv6ConfigApplication when the process starts.
+ * When it is not available, callers should fall back to "ip".
+ *
+ * @author Rene Mayrhofer
+ */
+public class NetlinkBatch {
+	/** Our logger for this class. */
+	private final static Logger logger = Logger.getLogger(Constants.LOG_TAG);
+
+	/** File name of the helper within the native library directory. */
+	public final static String HELPER_FILE_NAME = "libipv6config-nlhelper.so";
+	/** Result of operations that have not been executed. */
+	public final static int NOT_EXECUTED = -1;
+	/** Exit code of the helper for invalid arguments. */
+	private final static int HELPER_EXIT_INVALID_ARGUMENTS = 2;
+	/** Exit code of the helper when the netlink socket could not be opened. */
+	private final static int HELPER_EXIT_NO_NETLINK = 3;
+	/** Option for the helper to stop after the first failed batch. */
+	private final static String HELPER_OPTION_STOP_ON_FAILURE = " -s";
+	/** Characters allowed in interface names, which are passed through the shell. */
+	private final static String INTERFACE_NAME_CHARACTERS =
+		"abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789_.-@:";
+
+	/** The full path of the helper or null if not known. */
+	private static String helperLocation = null;
+
+	private StringBuffer arguments = new StringBuffer();
+	private int numOperations = 0;
+
+	/** Sets the full path of the helper executable. */
+	public static void setHelperLocation(String location) {
+		helperLocation = location;
+	}
+
+	/** Returns true if the helper has been located and exists. */
+	public static boolean isHelperAvailable() {
+		return helperLocation != null && new File(helperLocation).isFile();
+	}
+
+	/** Returns the number of operations in this batch. */
+	public int size() {
+		return numOperations;
+	}
+
+	/** Adds a SIT (IPv6 in IPv4) tunnel interface with any remote endpoint. */
+	public NetlinkBatch addTunnel(String iface, Inet4Address localEndpoint, int ttl) {
+		return add("tunnel-add", checkName(iface), localEndpoint.getHostAddress(), Integer.toString(ttl));
+	}
+
+	/** Deletes a (tunnel) interface. */
+	public NetlinkBatch deleteTunnel(String iface) {
+		return add("tunnel-del", checkName(iface));
+	}
+
+	/** Sets an interface up and changes its MTU, unless mtu is <= 0. */
+	public NetlinkBatch setLinkUp(String iface, int mtu) {
+		return add("link-up", checkName(iface), Integer.toString(Math.max(mtu, 0)));
+	}
+
+	/** Sets an interface down. */
+	public NetlinkBatch setLinkDown(String iface) {
+		return add("link-down", checkName(iface));
+	}
+
+	/** Adds an address with the given prefix length to an interface. */
+	public NetlinkBatch addAddress(String iface, InetAddress address, int prefixLength) {
+		return add("addr-add", checkName(iface), format(address) + "/" + prefixLength);
+	}
+
+	/** Deletes an address with the given prefix length from an interface. */
+	public NetlinkBatch deleteAddress(String iface, InetAddress address, int prefixLength) {
+		return add("addr-del", checkName(iface), format(address) + "/" + prefixLength);
+	}
+
+	/** Adds a route to the main table.
+	 *
+	 * @param iface The outgoing interface, may be null if a gateway is given.
+	 * @param gateway The gateway, null for routes directly on the link.
+	 * @param metric The metric, 0 for the kernel default.
+	 */
+	public NetlinkBatch addRoute(String iface, InetAddress destination, int prefixLength, InetAddress gateway, int metric) {
+		return add("route-add", iface != null ? checkName(iface) : "-", format(destination) + "/" + prefixLength,
+				gateway != null ? format(gateway) : "-", Long.toString(metric & 0xffffffffL));
+	}
+
+	/** Deletes a route from the main table, with parameters as for addRoute. */
+	public NetlinkBatch deleteRoute(String iface, InetAddress destination, int prefixLength, InetAddress gateway, int metric) {
+		return add("route-del", iface != null ? checkName(iface) : "-", format(destination) + "/" + prefixLength,
+				gateway != null ? format(gateway) : "-", Long.toString(metric & 0xffffffffL));
+	}
+
+	private NetlinkBatch add(String... args) {
+		for (String arg : args)
+			arguments.append(' ').append(arg);
+		numOperations++;
+		return this;
+	}
+
+	/** Interface names are passed through the shell, so only accept harmless characters. */
+	private static String checkName(String iface) {
+		if (iface == null || iface.length() == 0)
+			throw new IllegalArgumentException("Interface name must not be empty");
+		for (int i=0; i<iface.length(); i++)
+			if (INTERFACE_NAME_CHARACTERS.indexOf(iface.charAt(i)) < 0)
+				throw new IllegalArgumentException("Invalid interface name '" + iface + "'");
+		return iface;
+	}
+
+	/** Formats IPv6 addresses without scope, in the form inet_pton accepts. */
+	private static String format(InetAddress address) {
+		if (address instanceof Inet6Address)
+			return IPv6AddressesHelper.formatIPv6Address(address.getAddress());
+		return address.getHostAddress();
+	}
+
+	/** Returns the command line to start the helper for this batch. */
+	public String getCommandLine(boolean stopOnFirstFailure) {
+		return helperLocation + (stopOnFirstFailure ? HELPER_OPTION_STOP_ON_FAILURE : "") + arguments;
+	}
+
+	/** Executes all operations with a single start of the helper in the
+	 * root shell.
+	 *
+	 * @param stopOnFirstFailure If true, the helper sends no further netlink
+	 *        messages after a failed batch. Note that the kernel still
+	 *        processes all messages sent together with the failed one.
+	 * @return one result per operation: 0 on success, an errno value on
+	 *         failure, or NOT_EXECUTED.
+	 * @throws IOException if the helper is not available, could not be run,
+	 *         or could not execute any operation (e.g. without netlink access).
+	 */
+	public int[] execute(boolean stopOnFirstFailure) throws IOException, CommandTimeoutException {
+		if (!isHelperAvailable())
+			throw new IOException("Netlink helper not available at " + helperLocation);
+
+		String cmd = getCommandLine(stopOnFirstFailure);
+		logger.finer("Executing netlink batch '" + cmd + "'");
+		Command.CommandResult result = Command.executeRootCommand(cmd, LinuxIPCommandHelper.MUTATION_TIMEOUT);
+		if (result.exitCode == HELPER_EXIT_INVALID_ARGUMENTS || result.exitCode == HELPER_EXIT_NO_NETLINK ||
+				result.stdout == null)
+			throw new IOException("Netlink helper failed with exit code " + result.exitCode + ": " + result.stderr);
+
+		int[] results = new int[numOperations];
+		for (int i=0; i<results.length; i++)
+			results[i] = NOT_EXECUTED;
+		StringTokenizer lines = new StringTokenizer(result.stdout, "\n");
+		int numResults = 0;
+		while (lines.hasMoreTokens()) {
+			StringTokenizer fields = new StringTokenizer(lines.nextToken());
+			if (fields.countTokens() != 2)
+				continue;
+			try {
+				int index = Integer.parseInt(fields.nextToken());
+				int error = Integer.parseInt(fields.nextToken());
+				if (index >= 0 && index < results.length) {
+					results[index] = error;
+					// the first operation is always attempted, so nothing has been done without any other result
+					if (error != NOT_EXECUTED)
+						numResults++;
+				}
+			} catch (NumberFormatException e) {
+				// not one of our result lines
+			}
+		}
+		if (numResults == 0)
+			throw new IOException("Netlink helper executed no operations (exit code " + result.exitCode + "): " + result.stderr);
+		return results;
+	}
+}
@@ -0,0 +1,373 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+
+import to.doc.android.ipv6config.LinuxIPCommandHelper.InetAddressWithNetmask;
+import to.doc.android.ipv6config.LinuxIPCommandHelper.InterfaceDetail;
+import to.doc.android.ipv6config.LinuxIPCommandHelper.RouteDetail;
+
+/** This class queries links, addresses, and routes directly from the
+ * kernel via rtnetlink, using the small native library built from jni/
+ * (with ndk-build for Android or make for plain Linux). In contrast to
+ * "ip" and procfs, the kernel doesn't format its state as text that we then
+ * parse back, and no process is started.
+ *
+ * A dump fills pre-sized primitive arrays with one fixed-size record per
+ * link, address, and route (see the LINK_*, ADDR_*, and ROUTE_* constants),
+ * which can be reused for subsequent dumps. getIfaceOutput and
+ * getRouteOutput convert them into the same structures LinuxIPCommandHelper
+ * returns, and fall back to it when the native library is not available.
+ *
+ * @author Rene Mayrhofer
+ */
+public class NetlinkHelper {
+	/** Our logger for this class. */
+	private final static Logger logger = Logger.getLogger(Constants.LOG_TAG);
+
+	/** Name of the native library (libipv6config-netlink.so). */
+	public final static String LIBRARY_NAME = "ipv6config-netlink";
+
+	/** Offsets within the int part of link records, must match jni/netlink.c. */
+	public final static int LINK_INDEX = 0;
+	public final static int LINK_FLAGS = 1;
+	public final static int LINK_MTU = 2;
+	public final static int LINK_TYPE = 3;
+	/** Operational state (RFC 2863, e.g. 6 for up), -1 if not reported. */
+	public final static int LINK_OPERSTATE = 4;
+	/** 1 if the link has carrier, 0 if not, -1 if not reported. */
+	public final static int LINK_CARRIER = 5;
+	public final static int LINK_HWADDR_LENGTH = 6;
+	public final static int LINK_INTS = 7;
+	/** Offsets within the byte part of link records: the NUL-terminated name and the hardware address. */
+	public final static int LINK_NAME_OFFSET = 0;
+	public final static int LINK_HWADDR_OFFSET = 16;
+	public final static int LINK_BYTES = 32;
+
+	/** Offsets within the int part of address records, must match jni/netlink.c. */
+	public final static int ADDR_INDEX = 0;
+	public final static int ADDR_FAMILY = 1;
+	public final static int ADDR_PREFIX_LENGTH = 2;
+	public final static int ADDR_FLAGS = 3;
+	public final static int ADDR_SCOPE = 4;
+	/** Lifetimes in seconds as unsigned 32 bit values, 0xffffffff (i.e. -1) for forever. */
+	public final static int ADDR_PREFERRED_LIFETIME = 5;
+	public final static int ADDR_VALID_LIFETIME = 6;
+	public final static int ADDR_INTS = 7;
+	/** The byte part of address records holds the address (4 or 16 bytes). */
+	public final static int ADDR_BYTES = 16;
+
+	/** Offsets within the int part of route records, must match jni/netlink.c. */
+	public final static int ROUTE_FAMILY = 0;
+	public final static int ROUTE_PREFIX_LENGTH = 1;
+	public final static int ROUTE_TABLE = 2;
+	public final static int ROUTE_PROTOCOL = 3;
+	public final static int ROUTE_SCOPE = 4;
+	public final static int ROUTE_TYPE = 5;
+	public final static int ROUTE_FLAGS = 6;
+	public final static int ROUTE_OUTPUT_INDEX = 7;
+	public final static int ROUTE_METRIC = 8;
+	public final static int ROUTE_HAS_GATEWAY = 9;
+	public final static int ROUTE_INTS = 10;
+	/** Offsets within the byte part of route records: destination and gateway (4 or 16 bytes each). */
+	public final static int ROUTE_DESTINATION_OFFSET = 0;
+	public final static int ROUTE_GATEWAY_OFFSET = 16;
+	public final static int ROUTE_BYTES = 32;
+
+	/** Address families (include/linux/socket.h). */
+	public final static int AF_INET = 2;
+	public final static int AF_INET6 = 10;
+	/** The main routing table as shown by "ip route" (include/uapi/linux/rtnetlink.h). */
+	public final static int RT_TABLE_MAIN = 254;
+	/** Route type of routes forwarding to an interface (include/uapi/linux/rtnetlink.h). */
+	public final static int RTN_UNICAST = 1;
+
+	/** Returned by nativeDump when at least one array was too small. */
+	private final static int RESULT_OVERFLOW = 1;
+	/** How often a dump is retried with larger arrays, in case links or
+	 * addresses are added while dumping.
+	 */
+	private final static int MAX_DUMP_ATTEMPTS = 3;
+
+	/** True if the native library could be loaded. */
+	private static boolean available = false;
+
+	static {
+		try {
+			System.loadLibrary(LIBRARY_NAME);
+			available = true;
+		} catch (UnsatisfiedLinkError e) {
+			logger.info("Native library " + LIBRARY_NAME + " not available, will use ip instead: " + e);
+		} catch (SecurityException e) {
+			logger.info("Not allowed to load native library " + LIBRARY_NAME + ", will use ip instead: " + e);
+		}
+	}
+
+	/** This class holds the result of a dump as fixed-size records in
+	 * primitive arrays. Record i of links starts at linkInts[i*LINK_INTS]
+	 * and linkBytes[i*LINK_BYTES], and likewise for addresses and routes.
+	 * The arrays grow as necessary when the object is reused for dumps.
+	 */
+	public static class Dump {
+		public int numLinks, numAddresses, numRoutes;
+		public int[] linkInts;
+		public byte[] linkBytes;
+		public int[] addrInts;
+		public byte[] addrBytes;
+		public int[] routeInts;
+		public byte[] routeBytes;
+
+		/** Creates arrays sized for a typical phone. */
+		public Dump() {
+			this(16, 64, 64);
+		}
+
+		/** Creates arrays for the given numbers of records. */
+		public Dump(int maxLinks, int maxAddresses, int maxRoutes) {
+			allocate(maxLinks, maxAddresses, maxRoutes);
+		}
+
+		private void allocate(int maxLinks, int maxAddresses, int maxRoutes) {
+			linkInts = new int[maxLinks * LINK_INTS];
+			linkBytes = new byte[maxLinks * LINK_BYTES];
+			addrInts = new int[maxAddresses * ADDR_INTS];
+			addrBytes = new byte[maxAddresses * ADDR_BYTES];
+			routeInts = new int[maxRoutes * ROUTE_INTS];
+			routeBytes = new byte[maxRoutes * ROUTE_BYTES];
+		}
+
+		/** Returns the name of link record i. */
+		public String getLinkName(int i) {
+			int start = i * LINK_BYTES + LINK_NAME_OFFSET;
+			int end = start;
+			while (end < start + LINK_HWADDR_OFFSET && linkBytes[end] != 0)
+				end++;
+			char[] name = new char[end - start];
+			for (int j=0; j<name.length; j++)
+				name[j] = (char) (linkBytes[start + j] & 0xff);
+			return new String(name);
+		}
+
+		/** Returns the hardware address of link record i as e.g. "02:11:22:33:44:55". */
+		public String getLinkHardwareAddress(int i) {
+			int start = i * LINK_BYTES + LINK_HWADDR_OFFSET;
+			int len = linkInts[i * LINK_INTS + LINK_HWADDR_LENGTH];
+			StringBuffer mac = new StringBuffer(3 * len);
+			for (int j=0; j<len; j++) {
+				if (j > 0)
+					mac.append(':');
+				int b = linkBytes[start + j] & 0xff;
+				mac.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return mac.toString();
+		}
+
+		/** Returns the record number of the link with the given interface index, or -1. */
+		public int findLink(int index) {
+			for (int i=0; i<numLinks; i++)
+				if (linkInts[i * LINK_INTS + LINK_INDEX] == index)
+					return i;
+			return -1;
+		}
+
+		/** Returns the address of address record i. */
+		public InetAddress getAddress(int i) throws IOException {
+			return toInetAddress(addrInts[i * ADDR_INTS + ADDR_FAMILY], addrBytes, i * ADDR_BYTES);
+		}
+
+		/** Returns the destination of route record i. */
+		public InetAddress getRouteDestination(int i) throws IOException {
+			return toInetAddress(routeInts[i * ROUTE_INTS + ROUTE_FAMILY], routeBytes,
+					i * ROUTE_BYTES + ROUTE_DESTINATION_OFFSET);
+		}
+
+		/** Returns the gateway of route record i, or null if it has none. */
+		public InetAddress getRouteGateway(int i) throws IOException {
+			if (routeInts[i * ROUTE_INTS + ROUTE_HAS_GATEWAY] == 0)
+				return null;
+			return toInetAddress(routeInts[i * ROUTE_INTS + ROUTE_FAMILY], routeBytes,
+					i * ROUTE_BYTES + ROUTE_GATEWAY_OFFSET);
+		}
+
+		/** Note that IPv6 addresses are always returned as Inet6Address, as 
+		 * InetAddress.getByAddress would turn IPv4-mapped ones (such as the
+		 * destination of the ::ffff:0:0/96 route) into 4 byte Inet4Address.
+		 */
+		private static InetAddress toInetAddress(int family, byte[] src, int offset) throws IOException {
+			byte[] addr = new byte[family == AF_INET ? 4 : 16];
+			System.arraycopy(src, offset, addr, 0, addr.length);
+			return family == AF_INET ? InetAddress.getByAddress(addr) : Inet6Address.getByAddress(null, addr, 0);
+		}
+	}
+
+	/** Dumps all links, addresses, and routes into the given arrays and
+	 * stores the number of records of each in counts. Returns 0 on success,
+	 * RESULT_OVERFLOW if any array was too small (counts then hold the
+	 * required numbers), or a negative errno value.
+	 */
+	private static native int nativeDump(int[] linkInts, byte[] linkBytes, int[] addrInts, byte[] addrBytes,
+			int[] routeInts, byte[] routeBytes, int[] counts);
+
+	/** Returns true if the native library could be loaded. */
+	public static boolean isAvailable() {
+		return available;
+	}
+
+	/** Dumps all links, addresses, and routes (of all tables) into a new Dump. */
+	public static Dump dump() throws IOException {
+		return dump(new Dump());
+	}
+
+	/** Dumps all links, addresses, and routes (of all tables) into the given
+	 * Dump, growing its arrays if necessary. All three dumps are done within
+	 * a single native call over the same netlink socket.
+	 *
+	 * @throws IOException if the native library is not available or the
+	 *         kernel reported an error.
+	 */
+	public static Dump dump(Dump target) throws IOException {
+		if (!available)
+			throw new IOException("Native library " + LIBRARY_NAME + " not available");
+
+		int[] counts = new int[3];
+		for (int attempt=0; attempt<MAX_DUMP_ATTEMPTS; attempt++) {
+			int ret = nativeDump(target.linkInts, target.linkBytes, target.addrInts, target.addrBytes,
+					target.routeInts, target.routeBytes, counts);
+			if (ret < 0)
+				throw new IOException("rtnetlink dump failed with error " + (-ret));
+			if (ret != RESULT_OVERFLOW) {
+				target.numLinks = counts[0];
+				target.numAddresses = counts[1];
+				target.numRoutes = counts[2];
+				return target;
+			}
+			// leave some room in case the numbers change until the next attempt
+			logger.fine("Growing netlink dump arrays to " + counts[0] + " links, " +
+					counts[1] + " addresses, " + counts[2] + " routes");
+			target.allocate(counts[0] + 4, counts[1] + 16, counts[2] + 16);
+		}
+		throw new IOException("rtnetlink dump did not fit after " + MAX_DUMP_ATTEMPTS + " attempts");
+	}
+
+	/** Returns the same interface details as LinuxIPCommandHelper.getIfaceOutput,
+	 * queried via rtnetlink, or by calling it if the native library is not
+	 * available. In addition, address lifetimes are filled in.
+	 *
+	 * @param iface If set, then only fetch information for this interface name.
+	 *              If set to null, returns all interfaces.
+	 */
+	public static LinkedList<InterfaceDetail> getIfaceOutput(String iface) throws IOException {
+		if (!available)
+			return LinuxIPCommandHelper.getIfaceOutput(iface);
+		return getIfaceOutput(dump(), iface);
+	}
+
+	/** Returns the interface details contained in a dump, in the same way as getIfaceOutput(String). */
+	public static LinkedList<InterfaceDetail> getIfaceOutput(Dump d, String iface) throws IOException {
+		LinkedList<InterfaceDetail> list = new LinkedList<InterfaceDetail>();
+		boolean found = false;
+		for (int i=0; i<d.numLinks; i++) {
+			String name = d.getLinkName(i);
+			if (iface != null && !iface.equals(name))
+				continue;
+			found = true;
+
+			int[] ints = d.linkInts;
+			int base = i * LINK_INTS;
+			InterfaceDetail cur = new InterfaceDetail();
+			cur.name = name;
+			cur.isUp = (ints[base + LINK_FLAGS] & LinuxIPCommandHelper.IFF_UP) != 0;
+			cur.mtu = ints[base + LINK_MTU];
+			int type = ints[base + LINK_TYPE];
+			LinuxIPCommandHelper.setLinkType(cur, type,
+					type == LinuxIPCommandHelper.ARPHRD_ETHER ? d.getLinkHardwareAddress(i) : null);
+
+			for (int j=0; j<d.numAddresses; j++) {
+				int abase = j * ADDR_INTS;
+				if (d.addrInts[abase + ADDR_INDEX] != ints[base + LINK_INDEX])
+					continue;
+				int family = d.addrInts[abase + ADDR_FAMILY];
+				if (family != AF_INET && family != AF_INET6)
+					continue;
+				int flags = d.addrInts[abase + ADDR_FLAGS];
+				InetAddressWithNetmask addr = new InetAddressWithNetmask(d.getAddress(j), d.addrInts[abase + ADDR_PREFIX_LENGTH]);
+				// the same flag is printed as "secondary" for IPv4 and "temporary" for IPv6
+				if (family == AF_INET)
+					addr.markedSecondary = (flags & LinuxIPCommandHelper.IFA_F_SECONDARY) != 0;
+				else
+					addr.markedTemporary = (flags & LinuxIPCommandHelper.IFA_F_TEMPORARY) != 0;
+				addr.markedDeprecated = (flags & LinuxIPCommandHelper.IFA_F_DEPRECATED) != 0;
+				addr.markedTentative = (flags & LinuxIPCommandHelper.IFA_F_TENTATIVE) != 0;
+				addr.markedDadFailed = (flags & LinuxIPCommandHelper.IFA_F_DADFAILED) != 0;
+				addr.preferredLifetime = d.addrInts[abase + ADDR_PREFERRED_LIFETIME] & 0xffffffffL;
+				addr.validLifetime = d.addrInts[abase + ADDR_VALID_LIFETIME] & 0xffffffffL;
+				cur.addresses.add(addr);
+			}
+
+			// same filter as getIfaceOutput
+			if (cur.mac != null || cur.isPPP || cur.isOther)
+				list.add(cur);
+		}
+
+		if (iface != null && !found) {
+			// same as getIfaceOutput for interfaces that don't exist (yet)
+			logger.warning("Interface " + iface + " not found, will generate a dummy interface description");
+			InterfaceDetail cur = new InterfaceDetail();
+			cur.name = iface;
+			cur.isUp = false;
+			list.add(cur);
+		}
+		return list;
+	}
+
+	/** Returns the same routes of the main routing table as
+	 * LinuxIPCommandHelper.getRouteOutput, queried via rtnetlink, or by
+	 * calling it if the native library is not available.
+	 *
+	 * @param queryIPv6 If true, then IPv6 routes are queried. If false, then IPv4 routes are queried.
+	 */
+	public static LinkedList<RouteDetail> getRouteOutput(boolean queryIPv6) throws IOException {
+		if (!available)
+			return LinuxIPCommandHelper.getRouteOutput(queryIPv6);
+		return getRouteOutput(dump(), queryIPv6);
+	}
+
+	/** Returns the routes of the main routing table contained in a dump, in the same way as getRouteOutput(boolean). */
+	public static LinkedList<RouteDetail> getRouteOutput(Dump d, boolean queryIPv6) throws IOException {
+		int family = queryIPv6 ? AF_INET6 : AF_INET;
+		LinkedList<RouteDetail> list = new LinkedList<RouteDetail>();
+		for (int i=0; i<d.numRoutes; i++) {
+			int base = i * ROUTE_INTS;
+			if (d.routeInts[base + ROUTE_FAMILY] != family || d.routeInts[base + ROUTE_TABLE] != RT_TABLE_MAIN ||
+				d.routeInts[base + ROUTE_TYPE] != RTN_UNICAST)
+				continue;
+
+			RouteDetail cur = new RouteDetail();
+			cur.gateway = d.getRouteGateway(i);
+			int link = d.findLink(d.routeInts[base + ROUTE_OUTPUT_INDEX]);
+			if (link >= 0)
+				cur.iface = d.getLinkName(link);
+			cur.metric = d.routeInts[base + ROUTE_METRIC];
+			InetAddress dest = d.getRouteDestination(i);
+			LinuxIPCommandHelper.setRouteTarget(cur,
+					queryIPv6 ? IPv6AddressesHelper.formatIPv6Address(dest.getAddress()) : dest.getHostAddress(),
+					d.routeInts[base + ROUTE_PREFIX_LENGTH], queryIPv6 ? 128 : 32);
+			list.add(cur);
+		}
+		return list;
+	}
+}
@@ -0,0 +1,122 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import to.doc.android.ipv6config.LinuxIPCommandHelper.InterfaceDetail;
+import to.doc.android.ipv6config.LinuxIPCommandHelper.RouteDetail;
+
+/** This class holds the network state (interfaces with their addresses,
+ * IPv4 and IPv6 routes of the main table) captured at one point in time,
+ * so that a sequence of decisions (e.g. a complete NetOpsService run) can
+ * be based on a single system query instead of one query per decision.
+ *
+ * The state is captured in a single rtnetlink dump if NetlinkHelper is
+ * available, and otherwise with a single "ip addr" process plus the route
+ * tables read from procfs. Snapshots can not be changed after capturing;
+ * the contained InterfaceDetail and RouteDetail objects are shared and
+ * must be treated as read-only.
+ *
+ * @author Rene Mayrhofer
+ */
+public final class NetworkSnapshot {
+	/** Our logger for this class. */
+	private final static Logger logger = Logger.getLogger(Constants.LOG_TAG);
+
+	private final List<InterfaceDetail> interfaces;
+	private final HashMap<String, InterfaceDetail> interfacesByName;
+	private final List<RouteDetail> ipv4Routes;
+	private final List<RouteDetail> ipv6Routes;
+	private final long captureTime;
+	/** Built on first use, as most runs don't need route lookups. */
+	private RouteLookupTable routeTable = null;
+
+	private NetworkSnapshot(List<InterfaceDetail> interfaces, List<RouteDetail> ipv4Routes, List<RouteDetail> ipv6Routes) {
+		this.interfaces = Collections.unmodifiableList(interfaces);
+		this.ipv4Routes = Collections.unmodifiableList(ipv4Routes);
+		this.ipv6Routes = Collections.unmodifiableList(ipv6Routes);
+		interfacesByName = new HashMap<String, InterfaceDetail>();
+		for (InterfaceDetail iface : interfaces)
+			interfacesByName.put(iface.name, iface);
+		captureTime = System.currentTimeMillis();
+	}
+
+	/** Captures the current network state.
+	 *
+	 * @throws IOException if the state could not be queried at all.
+	 */
+	public static NetworkSnapshot capture() throws IOException {
+		if (NetlinkHelper.isAvailable()) {
+			try {
+				NetlinkHelper.Dump dump = NetlinkHelper.dump();
+				return new NetworkSnapshot(NetlinkHelper.getIfaceOutput(dump, null),
+						NetlinkHelper.getRouteOutput(dump, false), NetlinkHelper.getRouteOutput(dump, true));
+			} catch (IOException e) {
+				logger.warning("Unable to capture network state via netlink, falling back to ip: " + e);
+			}
+		}
+		return new NetworkSnapshot(LinuxIPCommandHelper.getIfaceOutput(null),
+				LinuxIPCommandHelper.getRouteOutput(false), LinuxIPCommandHelper.getRouteOutput(true));
+	}
+
+	/** Returns all interfaces in the order reported by the kernel. */
+	public List<InterfaceDetail> getInterfaces() {
+		return interfaces;
+	}
+
+	/** Returns the interface with the given name or null if it did not exist. */
+	public InterfaceDetail getInterface(String name) {
+		return interfacesByName.get(name);
+	}
+
+	/** Returns the routes of the main routing table.
+	 *
+	 * @param ipv6 If true, returns the IPv6 routes, otherwise the IPv4 routes.
+	 */
+	public List<RouteDetail> getRoutes(boolean ipv6) {
+		return ipv6 ? ipv6Routes : ipv4Routes;
+	}
+
+	/** Returns a longest-prefix-match table over the routes of both families.
+	 * The table must be treated as read-only, as it is shared by all users
+	 * of this snapshot.
+	 */
+	public synchronized RouteLookupTable getRouteLookupTable() {
+		if (routeTable == null)
+			routeTable = new RouteLookupTable(ipv4Routes, ipv6Routes);
+		return routeTable;
+	}
+
+	/** Returns the route (with egress interface and gateway) that would be
+	 * used for the destination, or null if there is none.
+	 */
+	public RouteDetail getRoute(InetAddress destination) {
+		return getRouteLookupTable().lookup(destination);
+	}
+
+	/** Returns the time of capturing (in milliseconds since the epoch). */
+	public long getCaptureTime() {
+		return captureTime;
+	}
+
+	@Override
+	public String toString() {
+		return "NetworkSnapshot with " + interfaces.size() + " interfaces, " + ipv4Routes.size() +
+			" IPv4 and " + ipv6Routes.size() + " IPv6 routes";
+	}
+}
@@ -0,0 +1,241 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/** This class is a compact, immutable representation of an IPv6 address
+ * (or prefix) as two longs plus a prefix length. IPv4 addresses are mapped
+ * into the same space as ::ffff:a.b.c.d, with their prefix length
+ * increased by 96, so that both families can be handled by the same code
+ * (e.g. PrefixTrie).
+ *
+ * Compared to java.net.InetAddress, it needs about a quarter of the
+ * memory, and classification is done with a few bit operations on the
+ * two longs instead of copying the address bytes with getAddress() and
+ * checking the type with instanceof. Conversion to InetAddress is only
+ * meant for API boundaries.
+ *
+ * @author Rene Mayrhofer
+ */
+public final class PackedAddress implements Comparable<PackedAddress> {
+	/** Bits 32..47 of the lower long of IPv4-mapped addresses (::ffff:0:0/96). */
+	private final static long IPV4_MAPPED = 0xffffL << 32;
+	/** Prefix length of the IPv4-mapped space, added to IPv4 prefix lengths. */
+	public final static int IPV4_MAPPED_PREFIX_LENGTH = 96;
+
+	/** The upper (network) and lower (interface identifier) 64 bits. */
+	public final long high;
+	public final long low;
+	/** The prefix length between 0 and 128, 128 for single addresses. */
+	public final int prefixLength;
+
+	public PackedAddress(long high, long low, int prefixLength) {
+		if (prefixLength < 0 || prefixLength > 128)
+			throw new IllegalArgumentException("Invalid prefix length " + prefixLength);
+		this.high = high;
+		this.low = low;
+		this.prefixLength = prefixLength;
+	}
+
+	/** Creates an address from 4 (IPv4) or 16 (IPv6) bytes in network order.
+	 *
+	 * @param prefixLength The prefix length in the address family of the
+	 *        bytes, i.e. between 0 and 32 for IPv4.
+	 */
+	public static PackedAddress fromBytes(byte[] addr, int prefixLength) {
+		if (addr.length == 4)
+			return new PackedAddress(0, IPV4_MAPPED | (readLong(addr, 0, 4) & 0xffffffffL),
+					prefixLength + IPV4_MAPPED_PREFIX_LENGTH);
+		if (addr.length != 16)
+			throw new IllegalArgumentException("Invalid address length " + addr.length);
+		return new PackedAddress(readLong(addr, 0, 8), readLong(addr, 8, 8), prefixLength);
+	}
+
+	/** Creates an address from an InetAddress, with the prefix length in its address family. */
+	public static PackedAddress fromInetAddress(InetAddress addr, int prefixLength) {
+		return fromBytes(addr.getAddress(), prefixLength);
+	}
+
+	/** Parses "2001:db8::1", "192.0.2.1", or either with "/length" appended,
+	 * without name resolution.
+	 *
+	 * @return the address, or null if the text is not a valid address.
+	 */
+	public static PackedAddress parse(String text) {
+		int slash = text.indexOf('/');
+		int end = slash >= 0 ? slash : text.length();
+		boolean isIPv6 = text.lastIndexOf(':', end) >= 0;
+		byte[] addr = new byte[isIPv6 ? 16 : 4];
+		if (isIPv6 ? !IPv6AddressesHelper.parseIPv6Address(text, 0, end, addr) :
+				!IPv6AddressesHelper.parseIPv4Address(text, 0, end, addr, 0))
+			return null;
+		int maxLength = isIPv6 ? 128 : 32;
+		long prefixLength = slash >= 0 ? StringHelper.parseDecimalLong(text, slash+1, text.length()) : maxLength;
+		if (prefixLength < 0 || prefixLength > maxLength)
+			return null;
+		return fromBytes(addr, (int) prefixLength);
+	}
+
+	private static long readLong(byte[] addr, int offset, int length) {
+		long value = 0;
+		for (int i=offset; i<offset+length; i++)
+			value = (value << 8) | (addr[i] & 0xff);
+		return value;
+	}
+
+	/** Returns true for IPv4 addresses (mapped into ::ffff:0:0/96). */
+	public boolean isIPv4() {
+		return high == 0 && (low & 0xffffffff00000000L) == IPV4_MAPPED;
+	}
+
+	/** Returns the prefix length in the address family, i.e. without the 96 bits of the mapping for IPv4. */
+	public int getFamilyPrefixLength() {
+		return isIPv4() ? prefixLength - IPV4_MAPPED_PREFIX_LENGTH : prefixLength;
+	}
+
+	/** Returns true for IPv6 link-local (fe80::/10) and IPv4 link-local (169.254.0.0/16) addresses. */
+	public boolean isLinkLocal() {
+		if (isIPv4())
+			return (low & 0xffff0000L) == 0xa9fe0000L;
+		return (high >>> 54) == (0xfe80L >>> 6);
+	}
+
+	/** Returns true for ::1 and 127.0.0.0/8. */
+	public boolean isLoopback() {
+		if (isIPv4())
+			return (low & 0xff000000L) == 0x7f000000L;
+		return high == 0 && low == 1;
+	}
+
+	/** Returns true for IPv6 multicast (ff00::/8) and IPv4 multicast (224.0.0.0/4) addresses. */
+	public boolean isMulticast() {
+		if (isIPv4())
+			return (low & 0xf0000000L) == 0xe0000000L;
+		return (high >>> 56) == 0xff;
+	}
+
+	/** Returns true for 6to4 addresses (2002::/16). */
+	public boolean is6to4() {
+		return (high >>> 48) == 0x2002;
+	}
+
+	/** Returns true for unique local IPv6 addresses (fc00::/7). */
+	public boolean isUniqueLocal() {
+		return (high >>> 57) == (0xfc00L >>> 9);
+	}
+
+	/** Returns true if the interface identifier contains the "fffe" that
+	 * the modified EUI-64 scheme inserts in the middle of the 48 bits MAC.
+	 */
+	public boolean isMacDerived() {
+		return !isIPv4() && ((low >>> 24) & 0xffff) == 0xfffe;
+	}
+
+	/** Returns true if this is an IPv6 address, is not link-local (which may
+	 * be MAC-derived, but is not privacy sensitive), and has been derived
+	 * from a MAC address using the EUI scheme.
+	 */
+	public boolean isIPv6GlobalMacDerivedAddress() {
+		return isMacDerived() && !isLinkLocal();
+	}
+
+	/** Returns bit i (0 being the most significant) of the 128 bits. */
+	public int bit(int i) {
+		return (int) (i < 64 ? (high >>> (63 - i)) & 1 : (low >>> (127 - i)) & 1);
+	}
+
+	/** Returns the number of leading bits this address has in common with
+	 * another one, independently of the prefix lengths.
+	 */
+	public int commonPrefixLength(PackedAddress other) {
+		if (high != other.high)
+			return Long.numberOfLeadingZeros(high ^ other.high);
+		return 64 + Long.numberOfLeadingZeros(low ^ other.low);
+	}
+
+	/** Returns true if the given address (or prefix) lies within this prefix. */
+	public boolean contains(PackedAddress other) {
+		return other.prefixLength >= prefixLength && commonPrefixLength(other) >= prefixLength;
+	}
+
+	/** Returns this prefix with all bits after the prefix length cleared. */
+	public PackedAddress getNetwork() {
+		return withPrefixLength(prefixLength);
+	}
+
+	/** Returns the network of the given length that contains this address,
+	 * with all bits after the prefix length cleared.
+	 */
+	public PackedAddress withPrefixLength(int length) {
+		long highMask = length >= 64 ? -1L : (length == 0 ? 0 : -1L << (64 - length));
+		long lowMask = length <= 64 ? 0 : (length == 128 ? -1L : -1L << (128 - length));
+		if ((high & highMask) == high && (low & lowMask) == low && length == prefixLength)
+			return this;
+		return new PackedAddress(high & highMask, low & lowMask, length);
+	}
+
+	/** Returns the 4 (IPv4) or 16 (IPv6) address bytes in network order. */
+	public byte[] toBytes() {
+		if (isIPv4())
+			return new byte[] { (byte) (low >>> 24), (byte) (low >>> 16), (byte) (low >>> 8), (byte) low };
+		byte[] addr = new byte[16];
+		for (int i=0; i<8; i++) {
+			addr[i] = (byte) (high >>> (56 - 8*i));
+			addr[8+i] = (byte) (low >>> (56 - 8*i));
+		}
+		return addr;
+	}
+
+	/** Converts to an Inet4Address or Inet6Address (without prefix length). */
+	public InetAddress toInetAddress() {
+		try {
+			return InetAddress.getByAddress(toBytes());
+		} catch (UnknownHostException e) {
+			// can not happen with 4 or 16 bytes
+			return null;
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof PackedAddress))
+			return false;
+		PackedAddress other = (PackedAddress) o;
+		return high == other.high && low == other.low && prefixLength == other.prefixLength;
+	}
+
+	@Override
+	public int hashCode() {
+		long h = high * 31 + low;
+		return (int) (h ^ (h >>> 32)) * 31 + prefixLength;
+	}
+
+	/** Orders by address (unsigned), then by prefix length. */
+	public int compareTo(PackedAddress other) {
+		if (high != other.high)
+			return (high ^ Long.MIN_VALUE) < (other.high ^ Long.MIN_VALUE) ? -1 : 1;
+		if (low != other.low)
+			return (low ^ Long.MIN_VALUE) < (other.low ^ Long.MIN_VALUE) ? -1 : 1;
+		return prefixLength - other.prefixLength;
+	}
+
+	/** Returns the address in the form "ip" prints, with "/length" unless it is a single address. */
+	@Override
+	public String toString() {
+		boolean isIPv4 = isIPv4();
+		String addr = isIPv4 ? ((low >>> 24) & 0xff) + "." + ((low >>> 16) & 0xff) + "." + ((low >>> 8) & 0xff) + "." + (low & 0xff) :
+			IPv6AddressesHelper.formatIPv6Address(toBytes());
+		return prefixLength == 128 ? addr : addr + "/" + getFamilyPrefixLength();
+	}
+}
@@ -0,0 +1,223 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** This class maps prefixes (PackedAddress with prefix length) to values in
+ * a path-compressed binary trie: each node stores a complete prefix and
+ * only branches where stored prefixes differ, so that the depth is bounded
+ * by the number of distinct branching points (and at most 129) instead of
+ * always being the prefix length. IPv4 and IPv6 prefixes can be mixed, as
+ * IPv4 is mapped into ::ffff:0:0/96.
+ *
+ * Besides exact lookups, it answers longest-prefix queries (which stored
+ * prefix is the most specific one containing an address) and set
+ * membership (whether any stored prefix contains an address), both in
+ * O(prefix length) independently of the number of stored prefixes.
+ *
+ * Instances are not thread-safe.
+ *
+ * @author Rene Mayrhofer
+ */
+public class PrefixTrie<V> {
+	private static class Node<V> {
+		/** The prefix of this node, with all bits after its length cleared. */
+		PackedAddress prefix;
+		/** The value, null for nodes that only branch. */
+		V value;
+		Node<V> parent;
+		/** Children for bit 0 and 1 after the prefix. */
+		Node<V> zero, one;
+
+		Node(PackedAddress prefix, V value) {
+			this.prefix = prefix;
+			this.value = value;
+		}
+
+		Node<V> child(int bit) {
+			return bit == 0 ? zero : one;
+		}
+
+		void setChild(int bit, Node<V> child) {
+			if (bit == 0)
+				zero = child;
+			else
+				one = child;
+			if (child != null)
+				child.parent = this;
+		}
+	}
+
+	private Node<V> root = null;
+	private int size = 0;
+
+	/** Returns the number of stored prefixes. */
+	public int size() {
+		return size;
+	}
+
+	/** Stores a value for a prefix, replacing the previous value if any.
+	 * Host bits after the prefix length are ignored.
+	 *
+	 * @return the previous value or null.
+	 */
+	public V put(PackedAddress prefix, V value) {
+		if (value == null)
+			throw new IllegalArgumentException("Values must not be null");
+		prefix = prefix.getNetwork();
+		Node<V> parent = null, cur = root;
+		while (cur != null) {
+			int common = Math.min(Math.min(prefix.prefixLength, cur.prefix.prefixLength),
+					prefix.commonPrefixLength(cur.prefix));
+			if (common < cur.prefix.prefixLength) {
+				// the new prefix diverges from or is shorter than this node: insert above it
+				Node<V> node;
+				if (common == prefix.prefixLength) {
+					node = new Node<V>(prefix, value);
+					replace(cur, node);
+					node.setChild(cur.prefix.bit(common), cur);
+				}
+				else {
+					node = new Node<V>(prefix.withPrefixLength(common), null);
+					replace(cur, node);
+					node.setChild(cur.prefix.bit(common), cur);
+					node.setChild(prefix.bit(common), new Node<V>(prefix, value));
+				}
+				size++;
+				return null;
+			}
+			if (prefix.prefixLength == cur.prefix.prefixLength) {
+				V old = cur.value;
+				cur.value = value;
+				if (old == null)
+					size++;
+				return old;
+			}
+			parent = cur;
+			cur = cur.child(prefix.bit(cur.prefix.prefixLength));
+		}
+		Node<V> node = new Node<V>(prefix, value);
+		if (parent == null)
+			root = node;
+		else
+			parent.setChild(prefix.bit(parent.prefix.prefixLength), node);
+		size++;
+		return null;
+	}
+
+	/** Returns the value stored for exactly this prefix, or null. */
+	public V get(PackedAddress prefix) {
+		Node<V> node = findNode(prefix.getNetwork());
+		return node != null ? node.value : null;
+	}
+
+	/** Removes the value stored for exactly this prefix.
+	 *
+	 * @return the removed value or null if there was none.
+	 */
+	public V remove(PackedAddress prefix) {
+		Node<V> node = findNode(prefix.getNetwork());
+		if (node == null || node.value == null)
+			return null;
+		V old = node.value;
+		node.value = null;
+		size--;
+		compact(node);
+		return old;
+	}
+
+	/** Returns the value of the longest stored prefix that contains the
+	 * address (or prefix), or null if none does.
+	 */
+	public V getLongestMatch(PackedAddress address) {
+		Node<V> node = findLongestMatch(address);
+		return node != null ? node.value : null;
+	}
+
+	/** Returns the longest stored prefix that contains the address, or null if none does. */
+	public PackedAddress getLongestMatchingPrefix(PackedAddress address) {
+		Node<V> node = findLongestMatch(address);
+		return node != null ? node.prefix : null;
+	}
+
+	/** Returns true if any stored prefix contains the address (or prefix). */
+	public boolean containsMatch(PackedAddress address) {
+		return findLongestMatch(address) != null;
+	}
+
+	/** Returns all values in the order of their prefixes. */
+	public List<V> values() {
+		List<V> ret = new ArrayList<V>(size);
+		collect(root, ret);
+		return ret;
+	}
+
+	/** Removes all prefixes. */
+	public void clear() {
+		root = null;
+		size = 0;
+	}
+
+	private void collect(Node<V> node, List<V> target) {
+		if (node == null)
+			return;
+		if (node.value != null)
+			target.add(node.value);
+		collect(node.zero, target);
+		collect(node.one, target);
+	}
+
+	private Node<V> findNode(PackedAddress prefix) {
+		Node<V> cur = root;
+		while (cur != null && cur.prefix.prefixLength <= prefix.prefixLength && cur.prefix.contains(prefix)) {
+			if (cur.prefix.prefixLength == prefix.prefixLength)
+				return cur;
+			cur = cur.child(prefix.bit(cur.prefix.prefixLength));
+		}
+		return null;
+	}
+
+	private Node<V> findLongestMatch(PackedAddress address) {
+		Node<V> cur = root, best = null;
+		while (cur != null && cur.prefix.contains(address)) {
+			if (cur.value != null)
+				best = cur;
+			if (cur.prefix.prefixLength == 128 || cur.prefix.prefixLength >= address.prefixLength)
+				break;
+			cur = cur.child(address.bit(cur.prefix.prefixLength));
+		}
+		return best;
+	}
+
+	/** Puts replacement at the position of node in the tree. */
+	private void replace(Node<V> node, Node<V> replacement) {
+		Node<V> parent = node.parent;
+		if (parent == null) {
+			root = replacement;
+			if (replacement != null)
+				replacement.parent = null;
+		}
+		else
+			parent.setChild(parent.zero == node ? 0 : 1, replacement);
+	}
+
+	/** Removes branching nodes without value that are no longer needed, starting at node. */
+	private void compact(Node<V> node) {
+		while (node != null && node.value == null && (node.zero == null || node.one == null)) {
+			Node<V> parent = node.parent;
+			replace(node, node.zero != null ? node.zero : node.one);
+			node = parent;
+		}
+	}
+}
@@ -0,0 +1,308 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** This class enforces deadlines on running processes. When a deadline
+ * expires before the watchdog has been cancelled, it terminates the process
+ * together with all its descendants (e.g. su -> sh -> ip), closes the given
+ * streams, and interrupts the thread waiting for the process so that neither
+ * a blocking read nor Process.waitFor() can hang forever.
+ *
+ * Usage pattern:
+ * <pre>
+ * ProcessWatchdog watchdog = ProcessWatchdog.start(proc, timeout, ...);
+ * try { ... read output and wait for proc ... }
+ * finally { watchdog.cancel(); }
+ * if (watchdog.hasFired()) throw new CommandTimeoutException(...);
+ * </pre>
+ *
+ * @author Rene Mayrhofer
+ */
+public class ProcessWatchdog implements Runnable {
+	/** Our logger for this class. */
+	private final static Logger logger = Logger.getLogger(Constants.LOG_TAG);
+
+	/** The kernel process table. */
+	private final static String PROC_DIRECTORY = "/proc/";
+
+	/** Time budget for killing descendants (in milliseconds), e.g. in case su
+	 * hangs on a superuser prompt.
+	 */
+	private final static long KILL_TIMEOUT = 5*1000;
+
+	/** The single shared thread enforcing all deadlines, created on first use. */
+	private static ScheduledExecutorService timer = null;
+	/** The threads killing descendants, so that this can not block the timer thread. */
+	private static ExecutorService killer = null;
+
+	private String command;
+	private Process proc;
+	private boolean requiresSU;
+	private Closeable[] streams;
+	private Thread waitingThread;
+	private ScheduledFuture<?> future = null;
+	private boolean fired = false;
+	private boolean cancelled = false;
+
+	private ProcessWatchdog(String command, Process proc, boolean requiresSU, Closeable[] streams) {
+		this.command = command;
+		this.proc = proc;
+		this.requiresSU = requiresSU;
+		this.streams = streams;
+		this.waitingThread = Thread.currentThread();
+	}
+
+	private static synchronized ScheduledExecutorService getTimer() {
+		if (timer == null)
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "IPv6Config-Watchdog");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return timer;
+	}
+
+	private static synchronized ExecutorService getKiller() {
+		if (killer == null)
+			killer = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "IPv6Config-Killer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return killer;
+	}
+
+	/** Starts watching a process. The calling thread is the one that will be
+	 * interrupted when the deadline expires.
+	 *
+	 * @param command The command, only used for logging.
+	 * @param proc The process to terminate.
+	 * @param timeout The time budget in milliseconds. If <= 0, the returned
+	 *                watchdog never fires.
+	 * @param requiresSU If true, the process tree is owned by root and may
+	 *                   need superuser privileges to be terminated.
+	 * @param streams Streams to close when the deadline expires, e.g. the
+	 *                process output streams or readers wrapping them.
+	 */
+	public static ProcessWatchdog start(String command, Process proc, long timeout, boolean requiresSU,
+			Closeable... streams) {
+		ProcessWatchdog watchdog = new ProcessWatchdog(command, proc, requiresSU, streams);
+		if (timeout > 0)
+			watchdog.future = getTimer().schedule(watchdog, timeout, TimeUnit.MILLISECONDS);
+		return watchdog;
+	}
+
+	/** Stops watching the process. After this method returns, the watchdog
+	 * will not fire anymore. If it has already fired, the interrupted status
+	 * of the calling thread is cleared.
+	 */
+	public void cancel() {
+		synchronized (this) {
+			cancelled = true;
+			if (future != null)
+				future.cancel(false);
+			if (!fired)
+				return;
+		}
+		// clear the interrupt we caused ourselves
+		Thread.interrupted();
+	}
+
+	/** Returns true if the deadline has expired and the process has been terminated. */
+	public synchronized boolean hasFired() {
+		return fired;
+	}
+
+	public void run() {
+		synchronized (this) {
+			if (cancelled)
+				return;
+			fired = true;
+		}
+		logger.warning("Command " + command + " exceeded its deadline, terminating it");
+		destroyTree(proc, requiresSU);
+		for (Closeable s : streams) {
+			try {
+				if (s != null)
+					s.close();
+			} catch (IOException e) {
+				// we only want to wake up readers, so don't care
+			}
+		}
+		synchronized (this) {
+			if (!cancelled)
+				waitingThread.interrupt();
+		}
+	}
+
+	/** Terminates a process and all of its descendants. This is a best-effort
+	 * operation: descendants are found via the /proc process table, killed
+	 * with "kill -9" and, if that is not allowed because they belong to root,
+	 * with superuser privileges when requiresSU is set.
+	 * 
+	 * The process itself is destroyed right away, while its descendants are
+	 * killed on a separate thread, each kill command within KILL_TIMEOUT, 
+	 * so that a hanging su can not delay other deadlines.
+	 */
+	public static void destroyTree(Process proc, final boolean requiresSU) {
+		final int pid = getPid(proc);
+		final LinkedList<Integer> descendants = pid > 0 ? getDescendants(pid) : new LinkedList<Integer>();
+
+		proc.destroy();
+		if (descendants.isEmpty())
+			return;
+
+		getKiller().execute(new Runnable() {
+			public void run() {
+				killDescendants(pid, descendants, requiresSU);
+			}
+		});
+	}
+
+	private static void killDescendants(int pid, LinkedList<Integer> descendants, boolean requiresSU) {
+		StringBuffer killCmd = new StringBuffer("kill -9");
+		for (Integer p : descendants)
+			killCmd.append(" " + p);
+		logger.fine("Killing descendants of process " + pid + ": " + descendants);
+		try {
+			Process killer = Runtime.getRuntime().exec(killCmd.toString());
+			if (waitForKiller(killCmd.toString(), killer) != 0 && requiresSU) {
+				// not allowed to kill them, so try again as root with a fresh su (the shared session might be the one hanging)
+				killer = Runtime.getRuntime().exec("su");
+				killer.getOutputStream().write((killCmd + "\n").getBytes());
+				killer.getOutputStream().close();
+				if (waitForKiller("su", killer) != 0)
+					logger.warning("Unable to kill descendants " + descendants + " of process " + pid + " as root");
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to kill descendants " + descendants + " of process " + pid, e);
+		} catch (InterruptedException e) {
+			logger.warning("Interrupted while killing descendants " + descendants + " of process " + pid);
+		}
+	}
+
+	/** Waits for a kill command at most KILL_TIMEOUT, returns its exit code or -1 if it did not finish in time. */
+	private static int waitForKiller(String command, Process killer) throws InterruptedException {
+		// kill commands are terminated without su, so this can not hang in turn
+		ProcessWatchdog watchdog = start(command, killer, KILL_TIMEOUT, false);
+		try {
+			return killer.waitFor();
+		} catch (InterruptedException e) {
+			if (!watchdog.hasFired())
+				throw e;
+			return -1;
+		} finally {
+			watchdog.cancel();
+		}
+	}
+
+	/** Returns the process id of a Process object or -1 if it can not be determined. */
+	private static int getPid(Process proc) {
+		try {
+			// Java 9 and newer
+			Method pidMethod = Process.class.getMethod("pid");
+			return ((Long) pidMethod.invoke(proc)).intValue();
+		} catch (Exception e) {
+			// not available, so try the field used by older VMs and Android
+		}
+		try {
+			Field pidField = proc.getClass().getDeclaredField("pid");
+			pidField.setAccessible(true);
+			return pidField.getInt(proc);
+		} catch (Exception e) {
+			logger.fine("Unable to determine pid of process " + proc + ": " + e);
+			return -1;
+		}
+	}
+
+	/** Returns all (transitive) child processes of the given process, parents before children. */
+	private static LinkedList<Integer> getDescendants(int pid) {
+		HashMap<Integer, LinkedList<Integer>> children = new HashMap<Integer, LinkedList<Integer>>();
+		String[] entries = new File(PROC_DIRECTORY).list();
+		if (entries == null)
+			return new LinkedList<Integer>();
+
+		for (String entry : entries) {
+			if (entry.length() == 0 || !Character.isDigit(entry.charAt(0)))
+				continue;
+			int ppid = getParentPid(entry);
+			if (ppid <= 0)
+				continue;
+			LinkedList<Integer> list = children.get(ppid);
+			if (list == null) {
+				list = new LinkedList<Integer>();
+				children.put(ppid, list);
+			}
+			list.add(Integer.valueOf(entry));
+		}
+
+		LinkedList<Integer> result = new LinkedList<Integer>();
+		LinkedList<Integer> toVisit = new LinkedList<Integer>();
+		toVisit.add(pid);
+		while (!toVisit.isEmpty()) {
+			LinkedList<Integer> list = children.get(toVisit.removeFirst());
+			if (list != null) {
+				result.addAll(list);
+				toVisit.addAll(list);
+			}
+		}
+		return result;
+	}
+
+	/** Reads the parent pid from /proc/[pid]/stat, which has the format
+	 * "pid (comm) state ppid ...". The command name may itself contain
+	 * spaces and parentheses, so search for the last closing one.
+	 */
+	private static int getParentPid(String pid) {
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(PROC_DIRECTORY + pid + "/stat"));
+			String line = in.readLine();
+			if (line == null)
+				return -1;
+			String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+			return Integer.parseInt(fields[1]);
+		} catch (Exception e) {
+			// the process might have terminated in the meantime
+			return -1;
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+		}
+	}
+}
@@ -0,0 +1,318 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import to.doc.android.ipv6config.Command.CommandResult;
+
+/** This backend for Command does not start any process, but serves
+ * recorded output for known command lines and simulates their latencies.
+ * It allows to exercise and benchmark everything above Command (e.g.
+ * LinuxIPCommandHelper) on machines without root access or an "ip" binary.
+ *
+ * Results are deterministic: each command line always produces the same
+ * output, exit code, and delay. Unknown command lines produce the default
+ * recording (successful without output unless changed). All executed
+ * command lines are logged and can be retrieved with getExecutedCommands.
+ *
+ * @author Rene Mayrhofer
+ */
+public class RecordedCommandExecutor implements CommandExecutor {
+	/** Our logger for this class. */
+	private final static Logger logger = Logger.getLogger(Constants.LOG_TAG);
+
+	/** Prefix that Command adds to commands requiring superuser privileges. */
+	private final static String SU_PREFIX = "su ";
+
+	/** Exit code reported by processes that have been destroyed. */
+	private final static int DESTROYED_EXIT_CODE = 137;
+
+	/** This class holds the recorded result of a single command line. */
+	public static class Recording {
+		public String stdout;
+		public String stderr;
+		public int exitCode;
+		/** The time the command takes to run (in milliseconds), after it has been started. */
+		public long latency;
+
+		public Recording(String stdout, String stderr, int exitCode, long latency) {
+			this.stdout = stdout;
+			this.stderr = stderr;
+			this.exitCode = exitCode;
+			this.latency = latency;
+		}
+	}
+
+	/** A process that produces its recorded output when its latency has elapsed. */
+	private static class RecordedProcess extends Process {
+		private Recording recording;
+		private long readyAt;
+		private boolean destroyed = false;
+		private InputStream stdout;
+		private InputStream stderr;
+
+		RecordedProcess(Recording recording) {
+			this.recording = recording;
+			this.readyAt = System.currentTimeMillis() + recording.latency;
+			stdout = new RecordedStream(recording.stdout);
+			stderr = new RecordedStream(recording.stderr);
+		}
+
+		/** Waits until the output is ready, returns false if the process has
+		 * been destroyed before. If stream is not null, also stops waiting 
+		 * when it is closed.
+		 */
+		private synchronized boolean waitUntilReady(RecordedStream stream) throws InterruptedException {
+			long now;
+			while (!destroyed && (stream == null || !stream.closed) && (now = System.currentTimeMillis()) < readyAt)
+				wait(readyAt - now);
+			return !destroyed;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			// standard input is simply discarded
+			return new OutputStream() {
+				@Override
+				public void write(int b) {}
+			};
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return stdout;
+		}
+
+		@Override
+		public InputStream getErrorStream() {
+			return stderr;
+		}
+
+		@Override
+		public int waitFor() throws InterruptedException {
+			waitUntilReady(null);
+			return exitValue();
+		}
+
+		@Override
+		public synchronized int exitValue() {
+			if (destroyed)
+				return DESTROYED_EXIT_CODE;
+			if (System.currentTimeMillis() < readyAt)
+				throw new IllegalThreadStateException("process hasn't exited");
+			return recording.exitCode;
+		}
+
+		@Override
+		public synchronized void destroy() {
+			destroyed = true;
+			notifyAll();
+		}
+
+		/** A stream that blocks until the process output is ready, and ends
+		 * when the process is destroyed or the stream is closed.
+		 */
+		private class RecordedStream extends InputStream {
+			private ByteArrayInputStream data;
+			private volatile boolean closed = false;
+
+			RecordedStream(String content) {
+				data = new ByteArrayInputStream(content != null ? content.getBytes() : new byte[0]);
+			}
+
+			private boolean ready() throws IOException {
+				try {
+					if (!waitUntilReady(this))
+						return false;
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while reading recorded output");
+				}
+				if (closed)
+					throw new IOException("Stream closed");
+				return true;
+			}
+
+			@Override
+			public int read() throws IOException {
+				return ready() ? data.read() : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return ready() ? data.read(b, off, len) : -1;
+			}
+
+			@Override
+			public int available() throws IOException {
+				return closed || System.currentTimeMillis() < readyAt ? 0 : data.available();
+			}
+
+			@Override
+			public void close() {
+				synchronized (RecordedProcess.this) {
+					closed = true;
+					// wake up a reader blocked on this stream
+					RecordedProcess.this.notifyAll();
+				}
+			}
+		}
+	}
+
+	private HashMap<String, Recording> recordings = new HashMap<String, Recording>();
+	private Recording defaultRecording = new Recording("", "", 0, 0);
+	private long spawnLatency;
+	private long sessionLatency;
+	private boolean sessionStarted = false;
+	private LinkedList<String> executedCommands = new LinkedList<String>();
+
+	/** Creates a new backend without any recordings.
+	 *
+	 * @param spawnLatency The simulated time to start a process (in milliseconds).
+	 * @param sessionLatency The simulated time to start the superuser
+	 *                       session (in milliseconds), paid by the first
+	 *                       root command after creation or close().
+	 */
+	public RecordedCommandExecutor(long spawnLatency, long sessionLatency) {
+		this.spawnLatency = spawnLatency;
+		this.sessionLatency = sessionLatency;
+	}
+
+	/** Records the result for a command line. For commands started with
+	 * superuser privileges, the command line without "su" is looked up.
+	 */
+	public synchronized void record(String commandLine, Recording recording) {
+		recordings.put(normalize(commandLine), recording);
+	}
+
+	/** Records the (successful) output and latency for a command line. */
+	public void record(String commandLine, String stdout, long latency) {
+		record(commandLine, new Recording(stdout, "", 0, latency));
+	}
+
+	/** Sets the result for all command lines without a recording. */
+	public synchronized void setDefaultRecording(Recording recording) {
+		defaultRecording = recording;
+	}
+
+	/** Returns all command lines executed so far, in order of execution. */
+	public synchronized List<String> getExecutedCommands() {
+		return new LinkedList<String>(executedCommands);
+	}
+
+	/** Forgets about all executed command lines. */
+	public synchronized void clearExecutedCommands() {
+		executedCommands.clear();
+	}
+
+	/** Collapses all whitespace, so that command lines only differing in
+	 * blanks (as often produced by concatenating options) are the same.
+	 */
+	private static String normalize(String commandLine) {
+		return commandLine.trim().replaceAll("\\s+", " ");
+	}
+
+	/** Logs the command line and returns its recording. */
+	private synchronized Recording lookup(String commandLine) {
+		commandLine = normalize(commandLine);
+		executedCommands.add(commandLine);
+		Recording rec = recordings.get(commandLine);
+		if (rec == null && commandLine.startsWith(SU_PREFIX))
+			rec = recordings.get(commandLine.substring(SU_PREFIX.length()));
+		if (rec == null) {
+			logger.fine("No recording for command '" + commandLine + "', using default");
+			rec = defaultRecording;
+		}
+		return rec;
+	}
+
+	private static void sleep(long millis) throws IOException {
+		if (millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted during simulated latency");
+		}
+	}
+
+	public Process exec(String combinedCommand) throws IOException {
+		Recording rec = lookup(combinedCommand);
+		sleep(spawnLatency);
+		return new RecordedProcess(rec);
+	}
+
+	public Process exec(String[] splitCommand) throws IOException {
+		StringBuffer commandLine = new StringBuffer();
+		for (String s : splitCommand) {
+			if (commandLine.length() > 0)
+				commandLine.append(' ');
+			commandLine.append(s);
+		}
+		return exec(commandLine.toString());
+	}
+
+	/** Simulates a root shell session: the commands are executed one after
+	 * another with their recorded latencies, and the whole batch fails with
+	 * a timeout as soon as their sum exceeds the time budget.
+	 */
+	public CommandResult[] executeRootCommands(String[] commands, boolean stopOnFirstFailure, long timeout)
+			throws IOException, CommandTimeoutException {
+		long start = System.currentTimeMillis();
+		synchronized (this) {
+			if (!sessionStarted) {
+				sleep(sessionLatency);
+				sessionStarted = true;
+			}
+		}
+
+		CommandResult[] results = new CommandResult[commands.length];
+		boolean failed = false;
+		for (int i=0; i<commands.length; i++) {
+			results[i] = new CommandResult();
+			results[i].command = commands[i];
+			if (failed && stopOnFirstFailure) {
+				results[i].executed = false;
+				results[i].exitCode = -1;
+				continue;
+			}
+
+			CommandMetrics.Sample sample = CommandMetrics.start(commands[i], true);
+			Recording rec = lookup(commands[i]);
+			if (timeout > 0 && System.currentTimeMillis() + rec.latency - start > timeout) {
+				sleep(start + timeout - System.currentTimeMillis());
+				sample.finishTimeout();
+				close();
+				throw new CommandTimeoutException(commands[i], timeout);
+			}
+			sleep(rec.latency);
+			results[i].exitCode = rec.exitCode;
+			results[i].stdout = rec.stdout;
+			results[i].stderr = rec.stderr;
+			sample.addBytes(rec.stdout.length());
+			sample.finish(rec.exitCode);
+			failed = rec.exitCode != 0;
+		}
+		return results;
+	}
+
+	public synchronized void close() {
+		sessionStarted = false;
+	}
+}
@@ -0,0 +1,388 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import to.doc.android.ipv6config.Command.CommandResult;
+
+/** This class implements a long-lived (root) shell session. Instead of
+ * spawning a new "su" process for every single command, the shell is
+ * started once and commands are sent to its standard input. Each command is
+ * followed by an end-of-output marker on both stdout and stderr, which is
+ * unique to this session and carries the exit code of the command. This
+ * allows to return stdout, stderr, and the exit status of each command
+ * separately while paying the (expensive) su startup only once.
+ *
+ * If the shell process dies (e.g. because a command called "exit" or the su
+ * binary was killed), it is transparently restarted with the next command.
+ *
+ * @author Rene Mayrhofer
+ */
+public class RootShell {
+	/** Our logger for this class. */
+	private final static Logger logger = Logger.getLogger(Constants.LOG_TAG);
+
+	/** Buffer size used for BufferReader and BufferWriter. */
+	private final static int IOBufferSize = 4192;
+
+	/** All end-of-output markers start with this string. */
+	private final static String MARKER_PREFIX = "__IPV6CONFIG_EOC_";
+
+	/** This is used as a sentinel in the stderr queue to signal that the shell has terminated. */
+	private final static String STDERR_EOF = new String("EOF");
+
+	/** Interval in which to check if the shell is still alive while waiting for the stderr marker (in milliseconds). */
+	private final static int STDERR_POLL_INTERVAL = 500;
+
+	/** Name of the shell variable used to skip the remaining commands of a batch after a failure. */
+	private final static String ABORT_VARIABLE = "__ipv6config_abort";
+	/** Name of the shell variable used to remember the exit code of the last command. */
+	private final static String EXIT_CODE_VARIABLE = "__ipv6config_rc";
+	/** Reported instead of an exit code for commands of a batch that were skipped. */
+	private final static String SKIPPED = "skipped";
+
+	/** Template under which starting the shell is recorded in CommandMetrics. */
+	private final static String SESSION_START_TEMPLATE = "(session start)";
+
+	/** The command (and parameters) used to start the shell, e.g. "su". */
+	private String[] shellCommand;
+
+	/** The currently running shell or null if not started. */
+	private Process proc = null;
+	private BufferedWriter stdin = null;
+	private BufferedReader stdout = null;
+	/** The stderr output of each command, in order of execution, as collected by the stderr reader. */
+	private LinkedBlockingQueue<String> stderrChunks = null;
+
+	/** Random part of the markers, re-generated whenever the shell is (re-)started. */
+	private String sessionId;
+	/** Increased with each command to create unique markers within a session. */
+	private long commandCounter = 0;
+
+	/** Creates a new shell session object, but does not yet start the shell.
+	 *
+	 * @param shellCommand The command to start the shell, e.g. { "su" } for
+	 *                     a root shell or { "sh" } for an unprivileged one.
+	 */
+	public RootShell(String[] shellCommand) {
+		this.shellCommand = shellCommand;
+	}
+
+	/** This thread collects the standard error output of the shell and splits
+	 * it into chunks according to the end-of-output markers. It only ever
+	 * exists once per shell process, not per command.
+	 */
+	private static class StderrReader extends Thread {
+		private BufferedReader in;
+		private String marker;
+		private LinkedBlockingQueue<String> chunks;
+
+		public StderrReader(BufferedReader in, String marker, LinkedBlockingQueue<String> chunks) {
+			super("IPv6Config-RootShell-stderr");
+			setDaemon(true);
+			this.in = in;
+			this.marker = marker;
+			this.chunks = chunks;
+		}
+
+		public void run() {
+			StringBuffer cur = new StringBuffer();
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					int markerPos = line.indexOf(marker);
+					if (markerPos >= 0) {
+						// output without a trailing newline ends directly before the marker
+						cur.append(line.substring(0, markerPos));
+						chunks.put(cur.toString());
+						cur.setLength(0);
+					}
+					else {
+						cur.append(line);
+						cur.append("\n");
+					}
+				}
+			} catch (IOException e) {
+				logger.finer("Root shell stderr closed: " + e);
+			} catch (InterruptedException e) {
+				logger.finer("Root shell stderr reader interrupted");
+			}
+
+			try {
+				in.close();
+			} catch (IOException e) {
+				// don't care, we're finished anyways
+			}
+			chunks.offer(STDERR_EOF);
+		}
+	}
+
+	/** Returns true if the shell process has been started and is still running. */
+	public synchronized boolean isAlive() {
+		if (proc == null)
+			return false;
+		try {
+			int exit = proc.exitValue();
+			logger.fine("Root shell has terminated with exit code " + exit);
+			return false;
+		} catch (IllegalThreadStateException e) {
+			// this is the expected case: the process has not yet terminated
+			return true;
+		}
+	}
+
+	/** Starts the shell process if it is not (or no longer) running. */
+	private void ensureStarted() throws IOException {
+		if (isAlive())
+			return;
+		if (proc != null) {
+			logger.warning("Root shell died, restarting it");
+			close();
+		}
+
+		sessionId = Long.toHexString(new Random().nextLong() & Long.MAX_VALUE);
+		commandCounter = 0;
+
+		logger.fine("Starting new root shell session " + sessionId);
+		CommandMetrics.Sample sample = CommandMetrics.start(SESSION_START_TEMPLATE, true);
+		try {
+			proc = Runtime.getRuntime().exec(shellCommand);
+		} catch (IOException e) {
+			sample.finishFailure();
+			throw e;
+		}
+		sample.markSpawned();
+		sample.finish(0);
+		stdin = new BufferedWriter(new OutputStreamWriter(proc.getOutputStream()), IOBufferSize);
+		stdout = new BufferedReader(new InputStreamReader(proc.getInputStream()), IOBufferSize);
+		stderrChunks = new LinkedBlockingQueue<String>();
+		new StderrReader(new BufferedReader(new InputStreamReader(proc.getErrorStream()), IOBufferSize),
+				MARKER_PREFIX + sessionId, stderrChunks).start();
+	}
+
+	/** Terminates the shell process (if running). The next command will start a new one. */
+	public synchronized void close() {
+		if (proc == null)
+			return;
+
+		logger.fine("Closing root shell session " + sessionId);
+		try {
+			// closing stdin should make the shell terminate on its own
+			stdin.close();
+		} catch (IOException e) {
+			// ignore, we will destroy it anyways
+		}
+		try {
+			stdout.close();
+		} catch (IOException e) {
+			// ignore, we will destroy it anyways
+		}
+		proc.destroy();
+		proc = null;
+		stdin = null;
+		stdout = null;
+		stderrChunks = null;
+	}
+
+	/** Frames a single command with the end-of-output markers. The command is
+	 * enclosed in a group so that a trailing redirection applies to all of
+	 * it, and its standard input is redirected from /dev/null so that it can
+	 * not read our subsequent commands.
+	 * 
+	 * @param stopOnFailure If true, the command is only executed if no 
+	 *                      previous command of the same batch failed, and
+	 *                      a failure of this one will skip all following.
+	 */
+	private static String frameCommand(String command, String marker, boolean stopOnFailure) {
+		if (StringHelper.isBlank(command))
+			command = ":";
+		StringBuffer script = new StringBuffer();
+		if (stopOnFailure)
+			script.append("if [ \"$" + ABORT_VARIABLE + "\" != 1 ]; then\n");
+		script.append("{ " + command + "\n} </dev/null\n");
+		script.append(EXIT_CODE_VARIABLE + "=$?\n");
+		if (stopOnFailure) {
+			script.append("else " + EXIT_CODE_VARIABLE + "=" + SKIPPED + "; fi\n");
+			script.append("[ \"$" + EXIT_CODE_VARIABLE + "\" != 0 ] && " + ABORT_VARIABLE + "=1\n");
+		}
+		script.append("echo \"" + marker + " $" + EXIT_CODE_VARIABLE + "\"\n");
+		script.append("echo \"" + marker + "\" >&2\n");
+		return script.toString();
+	}
+
+	/** Executes a single command in the shell session and waits for it to finish.
+	 *
+	 * @param command The command line to execute, interpreted by the shell.
+	 * @return The standard output, standard error output, and exit code of the command.
+	 * @throws IOException If the shell could not be started or died while
+	 *                     executing the command.
+	 */
+	public CommandResult execute(String command) throws IOException {
+		try {
+			return execute(new String[] { command }, false, 0)[0];
+		} catch (CommandTimeoutException e) {
+			// can not happen without a timeout
+			throw new IOException(e.toString());
+		}
+	}
+
+	/** Executes a batch of commands in the shell session and waits for all of
+	 * them to finish. All commands are sent to the shell at once, so the 
+	 * whole batch only costs a single round trip to the shell process.
+	 *
+	 * @param commands The command lines to execute in this order, interpreted by the shell.
+	 * @param stopOnFirstFailure If true, then all commands following the 
+	 *                           first one with an exit code != 0 are skipped.
+	 *                           Their results are marked as not executed.
+	 * @param timeout The time budget for the whole batch in milliseconds. 
+	 *                When exceeded, the shell with all its child processes 
+	 *                is terminated (and restarted with the next command). If
+	 *                <= 0, no deadline is enforced.
+	 * @return The standard output, standard error output, and exit code of
+	 *         each command, in the same order as the commands were passed.
+	 * @throws IOException If the shell could not be started or died while
+	 *                     executing the commands.
+	 * @throws CommandTimeoutException If the batch did not finish in time.
+	 */
+	public synchronized CommandResult[] execute(String[] commands, boolean stopOnFirstFailure, long timeout) 
+			throws IOException, CommandTimeoutException {
+		if (commands.length == 0)
+			return new CommandResult[0];
+
+		String[] markers = null;
+		boolean retried = false;
+		while (markers == null) {
+			ensureStarted();
+			String[] candidates = new String[commands.length];
+			StringBuffer script = new StringBuffer();
+			if (stopOnFirstFailure)
+				script.append(ABORT_VARIABLE + "=0\n");
+			for (int i=0; i<commands.length; i++) {
+				candidates[i] = MARKER_PREFIX + sessionId + "_" + (commandCounter++);
+				script.append(frameCommand(commands[i], candidates[i], stopOnFirstFailure));
+			}
+			try {
+				stdin.write(script.toString());
+				stdin.flush();
+				markers = candidates;
+			} catch (IOException e) {
+				// the shell died before receiving the commands, so it is safe to try again once
+				close();
+				if (retried)
+					throw e;
+				logger.log(Level.WARNING, "Unable to send commands to root shell, restarting it", e);
+				retried = true;
+			}
+		}
+
+		CommandResult[] results = new CommandResult[commands.length];
+		ProcessWatchdog watchdog = ProcessWatchdog.start(commands[0], proc, timeout, true, 
+				proc.getInputStream(), proc.getErrorStream());
+		// the commands are executed one after another, so each one is timed from the end of the previous one 
+		CommandMetrics.Sample sample = null;
+		try {
+			for (int i=0; i<commands.length; i++) {
+				sample = CommandMetrics.start(commands[i], true);
+				results[i] = readResult(commands[i], markers[i], sample);
+				if (results[i].executed)
+					sample.finish(results[i].exitCode);
+				sample = null;
+				logger.finer("RootShell.execute: " + commands[i] + 
+						(results[i].executed ? " Exit Value: " + results[i].exitCode : " skipped"));
+			}
+		} catch (IOException e) {
+			// reading fails when the watchdog terminates the shell, which is reported below
+			if (!watchdog.hasFired()) {
+				sample.finishFailure();
+				throw e;
+			}
+		} finally {
+			watchdog.cancel();
+		}
+		if (watchdog.hasFired()) {
+			if (sample != null)
+				sample.finishTimeout();
+			close();
+			throw new CommandTimeoutException(commands.length == 1 ? commands[0] : 
+				commands.length + " commands starting with " + commands[0], timeout);
+		}
+		return results;
+	}
+
+	/** Reads the output of a single command up to its end-of-output markers. */
+	private CommandResult readResult(String command, String marker, CommandMetrics.Sample sample) throws IOException {
+		CommandResult result = new CommandResult();
+		result.command = command;
+		try {
+			// first read stdout up to the marker, which also carries the exit code
+			StringBuffer output = new StringBuffer();
+			String line;
+			while (true) {
+				line = stdout.readLine();
+				if (line == null)
+					throw new IOException("Root shell terminated while executing '" + command + "'");
+				int markerPos = line.indexOf(marker);
+				if (markerPos != 0)
+					sample.markFirstByte();
+				if (markerPos >= 0) {
+					output.append(line.substring(0, markerPos));
+					String exitCode = line.substring(markerPos + marker.length()).trim();
+					if (exitCode.equals(SKIPPED)) {
+						result.executed = false;
+						result.exitCode = -1;
+					}
+					else {
+						result.executed = true;
+						result.exitCode = Integer.parseInt(exitCode);
+					}
+					break;
+				}
+				output.append(line);
+				output.append("\n");
+			}
+			result.stdout = output.toString();
+			sample.addBytes(result.stdout.length());
+
+			// and then collect the matching chunk from stderr
+			String err = null;
+			while (err == null) {
+				err = stderrChunks.poll(STDERR_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (err == STDERR_EOF)
+					throw new IOException("Root shell terminated while executing '" + command + "'");
+				if (err == null && !isAlive())
+					throw new IOException("Root shell terminated while executing '" + command + "'");
+			}
+			result.stderr = err;
+		} catch (NumberFormatException e) {
+			close();
+			throw new IOException("Unable to parse exit code of '" + command + "' from root shell: " + e);
+		} catch (InterruptedException e) {
+			// we can't know what state the shell is in now, so better start a new one next time
+			close();
+			throw new IOException("Interrupted while waiting for '" + command + "' in root shell");
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		return result;
+	}
+}
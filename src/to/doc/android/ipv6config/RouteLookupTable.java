@@ -0,0 +1,177 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.logging.Logger;
+
+import to.doc.android.ipv6config.LinuxIPCommandHelper.RouteDetail;
+
+/** This class answers which route (and therefore which egress interface
+ * and gateway) the kernel would use for a destination, without asking the
+ * kernel or a remote server. Routes are kept in one PrefixTrie per family
+ * by their target prefix, so that lookups are longest-prefix matches in
+ * O(prefix length) independently of the number of routes. The families
+ * need separate tries, as an IPv6 prefix such as ::/0 would otherwise
+ * also contain the IPv4-mapped addresses.
+ * Among routes with the same prefix, the one with the lowest metric wins,
+ * and among those the one added first, as in the kernel's main table.
+ *
+ * Routes can be added and removed incrementally without rebuilding the
+ * table. Instances are not thread-safe.
+ *
+ * @author Rene Mayrhofer
+ */
+public class RouteLookupTable {
+	/** Our logger for this class. */
+	private final static Logger logger = Logger.getLogger(Constants.LOG_TAG);
+
+	private final static PackedAddress IPV4_DEFAULT = new PackedAddress(0, 0xffffL << 32, PackedAddress.IPV4_MAPPED_PREFIX_LENGTH);
+	private final static PackedAddress IPV6_DEFAULT = new PackedAddress(0, 0, 0);
+
+	/** The routes with the same target prefix, ordered by metric. */
+	private static class Bucket {
+		RouteDetail[] routes = new RouteDetail[1];
+		int size = 0;
+	}
+
+	private final PrefixTrie<Bucket> ipv4Trie = new PrefixTrie<Bucket>();
+	private final PrefixTrie<Bucket> ipv6Trie = new PrefixTrie<Bucket>();
+	private int size = 0;
+
+	/** Creates an empty table. */
+	public RouteLookupTable() {
+	}
+
+	/** Creates a table with the given routes (e.g. from getRouteOutput or a NetworkSnapshot). */
+	public RouteLookupTable(List<RouteDetail> ipv4Routes, List<RouteDetail> ipv6Routes) {
+		if (ipv4Routes != null)
+			for (RouteDetail route : ipv4Routes)
+				add(route, false);
+		if (ipv6Routes != null)
+			for (RouteDetail route : ipv6Routes)
+				add(route, true);
+	}
+
+	/** Returns the number of routes of both families in the table. */
+	public int size() {
+		return size;
+	}
+
+	/** Returns the target of a route as prefix, or null if it can not be parsed.
+	 *
+	 * @param ipv6 The family of the route, which is needed for "default".
+	 */
+	public static PackedAddress getTargetPrefix(RouteDetail route, boolean ipv6) {
+		if (route.target == null)
+			return null;
+		if (route.target.equals(LinuxIPCommandHelper.ROUTE_TARGET_DEFAULT))
+			return ipv6 ? IPV6_DEFAULT : IPV4_DEFAULT;
+		return PackedAddress.parse(route.target);
+	}
+
+	/** Adds a route after all routes with the same target and metric.
+	 *
+	 * @return false if the route target could not be parsed.
+	 */
+	public boolean add(RouteDetail route, boolean ipv6) {
+		PackedAddress prefix = getTargetPrefix(route, ipv6);
+		if (prefix == null) {
+			logger.warning("Ignoring route with invalid target '" + route.target + "'");
+			return false;
+		}
+		PrefixTrie<Bucket> trie = ipv6 ? ipv6Trie : ipv4Trie;
+		Bucket bucket = trie.get(prefix);
+		if (bucket == null) {
+			bucket = new Bucket();
+			trie.put(prefix, bucket);
+		}
+		if (bucket.size == bucket.routes.length) {
+			RouteDetail[] tmp = new RouteDetail[bucket.size * 2];
+			System.arraycopy(bucket.routes, 0, tmp, 0, bucket.size);
+			bucket.routes = tmp;
+		}
+		int pos = bucket.size;
+		while (pos > 0 && unsignedMetric(bucket.routes[pos-1]) > unsignedMetric(route)) {
+			bucket.routes[pos] = bucket.routes[pos-1];
+			pos--;
+		}
+		bucket.routes[pos] = route;
+		bucket.size++;
+		size++;
+		return true;
+	}
+
+	/** Removes a route, either the same object or one with the same target,
+	 * gateway, interface, and metric.
+	 *
+	 * @return true if the route was found.
+	 */
+	public boolean remove(RouteDetail route, boolean ipv6) {
+		PackedAddress prefix = getTargetPrefix(route, ipv6);
+		PrefixTrie<Bucket> trie = ipv6 ? ipv6Trie : ipv4Trie;
+		Bucket bucket = prefix != null ? trie.get(prefix) : null;
+		if (bucket == null)
+			return false;
+		int pos = -1;
+		for (int i=0; i<bucket.size && pos < 0; i++)
+			if (bucket.routes[i] == route)
+				pos = i;
+		for (int i=0; i<bucket.size && pos < 0; i++)
+			if (isSameRoute(bucket.routes[i], route))
+				pos = i;
+		if (pos < 0)
+			return false;
+		System.arraycopy(bucket.routes, pos+1, bucket.routes, pos, bucket.size - pos - 1);
+		bucket.routes[--bucket.size] = null;
+		if (bucket.size == 0)
+			trie.remove(prefix);
+		size--;
+		return true;
+	}
+
+	/** Returns the route the kernel would use for the destination, or null
+	 * if no route of the destination's family matches.
+	 */
+	public RouteDetail lookup(PackedAddress destination) {
+		Bucket bucket = (destination.isIPv4() ? ipv4Trie : ipv6Trie).getLongestMatch(destination);
+		return bucket != null ? bucket.routes[0] : null;
+	}
+
+	/** Returns the route the kernel would use for the destination, or null
+	 * if no route matches.
+	 */
+	public RouteDetail lookup(InetAddress destination) {
+		byte[] addr = destination.getAddress();
+		return lookup(PackedAddress.fromBytes(addr, addr.length * 8));
+	}
+
+	/** Returns all routes with exactly the given target prefix, ordered by metric. */
+	public RouteDetail[] getRoutes(PackedAddress prefix) {
+		Bucket bucket = (prefix.isIPv4() ? ipv4Trie : ipv6Trie).get(prefix);
+		RouteDetail[] ret = new RouteDetail[bucket != null ? bucket.size : 0];
+		if (bucket != null)
+			System.arraycopy(bucket.routes, 0, ret, 0, bucket.size);
+		return ret;
+	}
+
+	private static long unsignedMetric(RouteDetail route) {
+		return route.metric & 0xffffffffL;
+	}
+
+	private static boolean isSameRoute(RouteDetail a, RouteDetail b) {
+		return a.metric == b.metric &&
+			(a.iface == null ? b.iface == null : a.iface.equals(b.iface)) &&
+			(a.gateway == null ? b.gateway == null : a.gateway.equals(b.gateway));
+	}
+}
@@ -0,0 +1,55 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.io.IOException;
+
+import to.doc.android.ipv6config.Command.CommandResult;
+
+/** This is the default backend for Command: it starts real processes with
+ * Runtime.exec and executes superuser commands in a shared root shell
+ * session, which is started on first use.
+ *
+ * @author Rene Mayrhofer
+ */
+public class RuntimeCommandExecutor implements CommandExecutor {
+	/** The command used to start the shared root shell session. */
+	private final static String[] ROOT_SHELL_COMMAND = { "su" };
+
+	/** The shared root shell session, started on first use. */
+	private RootShell rootShell = null;
+
+	public Process exec(String combinedCommand) throws IOException {
+		return Runtime.getRuntime().exec(combinedCommand);
+	}
+
+	public Process exec(String[] splitCommand) throws IOException {
+		return Runtime.getRuntime().exec(splitCommand);
+	}
+
+	/** Returns the shared root shell session, creating it if necessary. */
+	private synchronized RootShell getRootShell() {
+		if (rootShell == null)
+			rootShell = new RootShell(ROOT_SHELL_COMMAND);
+		return rootShell;
+	}
+
+	public CommandResult[] executeRootCommands(String[] commands, boolean stopOnFirstFailure, long timeout)
+			throws IOException, CommandTimeoutException {
+		return getRootShell().execute(commands, stopOnFirstFailure, timeout);
+	}
+
+	public synchronized void close() {
+		if (rootShell != null)
+			rootShell.close();
+	}
+}
@@ -0,0 +1,221 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+import to.doc.android.ipv6config.LinuxIPCommandHelper.InetAddressWithNetmask;
+import to.doc.android.ipv6config.LinuxIPCommandHelper.InterfaceDetail;
+import to.doc.android.ipv6config.LinuxIPCommandHelper.RouteDetail;
+
+/** This class predicts which local source address the kernel will use for
+ * a connection to a destination, by applying the default source address
+ * selection rules of RFC 6724 (section 5) to the addresses and routes of a
+ * NetworkSnapshot. The egress interface is taken from a RouteLookupTable,
+ * so a prediction takes microseconds and needs neither DNS nor a
+ * connection to a remote server.
+ *
+ * Rule 4 (home addresses) and rule 5.5 (next-hop advertised prefixes) are
+ * not applied, as Mobile IPv6 is not used and router advertisements are
+ * not visible to user space.
+ *
+ * @author Rene Mayrhofer
+ */
+public class SourceAddressSelector {
+	/** Our logger for this class. */
+	private final static Logger logger = Logger.getLogger(Constants.LOG_TAG);
+
+	/** Scopes as in RFC 4291 and RFC 6724 section 3.1. */
+	public final static int SCOPE_INTERFACE_LOCAL = 0x1;
+	public final static int SCOPE_LINK_LOCAL = 0x2;
+	public final static int SCOPE_SITE_LOCAL = 0x5;
+	public final static int SCOPE_GLOBAL = 0xe;
+
+	/** The default policy table of RFC 6724 section 2.1: prefix, precedence, label. */
+	private final static String[][] DEFAULT_POLICY_TABLE = {
+		{ "::1/128", "50", "0" },
+		{ "::/0", "40", "1" },
+		{ "::ffff:0:0/96", "35", "4" },
+		{ "2002::/16", "30", "2" },
+		{ "2001::/32", "5", "5" },
+		{ "fc00::/7", "3", "13" },
+		{ "::/96", "1", "3" },
+		{ "fec0::/10", "1", "11" },
+		{ "3ffe::/16", "1", "12" },
+	};
+	/** The policy table as trie from prefixes to { precedence, label }. */
+	private final static PrefixTrie<int[]> policyTable = new PrefixTrie<int[]>();
+	static {
+		for (String[] entry : DEFAULT_POLICY_TABLE)
+			policyTable.put(PackedAddress.parse(entry[0]),
+					new int[] { Integer.parseInt(entry[1]), Integer.parseInt(entry[2]) });
+	}
+
+	/** A possible source address with everything the rules need. */
+	private static class Candidate {
+		InetAddressWithNetmask address;
+		PackedAddress packed;
+		String iface;
+		/** True if the kernel prefers temporary addresses on the interface. */
+		boolean preferTemporary;
+		int scope;
+		int label;
+	}
+
+	private final RouteLookupTable routes;
+	private final Candidate[] candidates;
+
+	/** Prepares the candidate addresses of all interfaces in the snapshot.
+	 * Whether temporary (privacy) addresses are preferred over public ones
+	 * (rule 7) is taken from the current use_tempaddr option of each
+	 * interface, as the kernel does.
+	 */
+	public SourceAddressSelector(NetworkSnapshot snapshot) {
+		this(snapshot, null);
+	}
+
+	/** Prepares the candidate addresses of all interfaces in the snapshot.
+	 * Addresses for which duplicate address detection is still running or
+	 * failed are not used by the kernel and therefore no candidates.
+	 *
+	 * @param preferTemporary If true, temporary (privacy) addresses are
+	 *        preferred over public ones (rule 7) on all interfaces, as the
+	 *        kernel does with use_tempaddr set to 2. If null, the current
+	 *        use_tempaddr option of each interface is used.
+	 */
+	public SourceAddressSelector(NetworkSnapshot snapshot, Boolean preferTemporary) {
+		this.routes = snapshot.getRouteLookupTable();
+		ArrayList<Candidate> list = new ArrayList<Candidate>();
+		for (InterfaceDetail iface : snapshot.getInterfaces()) {
+			if (!iface.isUp)
+				continue;
+			boolean ifacePrefersTemporary = preferTemporary != null ? preferTemporary.booleanValue() :
+				LinuxIPCommandHelper.isTemporaryAddressPreferred(iface.name);
+			for (InetAddressWithNetmask addr : iface.addresses) {
+				PackedAddress packed = addr.getPackedAddress();
+				if (packed == null || addr.markedTentative || addr.markedDadFailed)
+					continue;
+				Candidate candidate = new Candidate();
+				candidate.address = addr;
+				candidate.packed = packed;
+				candidate.iface = iface.name;
+				candidate.preferTemporary = ifacePrefersTemporary;
+				candidate.scope = getScope(packed);
+				candidate.label = getLabel(packed);
+				list.add(candidate);
+			}
+		}
+		candidates = list.toArray(new Candidate[list.size()]);
+	}
+
+	/** Returns the scope of an address (RFC 6724 section 3.1), with IPv4
+	 * loopback and auto-configuration addresses being link-local and all
+	 * other IPv4 addresses (including private ones) global.
+	 */
+	public static int getScope(PackedAddress addr) {
+		if (addr.isMulticast() && !addr.isIPv4())
+			return (int) ((addr.high >>> 48) & 0xf);
+		if (addr.isLinkLocal() || addr.isLoopback())
+			return SCOPE_LINK_LOCAL;
+		if (!addr.isIPv4() && (addr.high >>> 54) == (0xfec0L >>> 6))
+			return SCOPE_SITE_LOCAL;
+		return SCOPE_GLOBAL;
+	}
+
+	/** Returns the precedence of an address from the default policy table. */
+	public static int getPrecedence(PackedAddress addr) {
+		return policyTable.getLongestMatch(addr)[0];
+	}
+
+	/** Returns the label of an address from the default policy table. */
+	public static int getLabel(PackedAddress addr) {
+		return policyTable.getLongestMatch(addr)[1];
+	}
+
+	/** Returns the source address the kernel would use for a connection to
+	 * the destination, or null if there is no route of the destination's
+	 * family or no usable address.
+	 */
+	public InetAddressWithNetmask selectSourceAddress(InetAddress destination) {
+		byte[] addr = destination.getAddress();
+		return selectSourceAddress(PackedAddress.fromBytes(addr, addr.length * 8));
+	}
+
+	/** Like selectSourceAddress(InetAddress), for a packed destination. */
+	public InetAddressWithNetmask selectSourceAddress(PackedAddress destination) {
+		boolean destinationIPv4 = destination.isIPv4();
+		RouteDetail route = routes.lookup(destination);
+		// a route of the other family can not carry the connection
+		PackedAddress target = route != null ? RouteLookupTable.getTargetPrefix(route, !destinationIPv4) : null;
+		if (target == null || target.isIPv4() != destinationIPv4) {
+			logger.fine("No route to " + destination + ", unable to predict source address");
+			return null;
+		}
+		int destinationScope = getScope(destination);
+		int destinationLabel = getLabel(destination);
+
+		Candidate best = null;
+		for (Candidate candidate : candidates) {
+			if (candidate.packed.isIPv4() != destinationIPv4)
+				continue;
+			// addresses with smaller scope than the destination's can only be used on the outgoing interface
+			if (candidate.scope < destinationScope && !candidate.iface.equals(route.iface))
+				continue;
+			if (best == null || isPreferred(candidate, best, destination, destinationScope, destinationLabel, route.iface))
+				best = candidate;
+		}
+		return best != null ? best.address : null;
+	}
+
+	/** Applies the rules of RFC 6724 section 5 and returns true if a is
+	 * preferred over b as source address.
+	 */
+	private boolean isPreferred(Candidate a, Candidate b, PackedAddress destination,
+			int destinationScope, int destinationLabel, String outgoingIface) {
+		// rule 1: prefer same address
+		boolean aSame = a.packed.high == destination.high && a.packed.low == destination.low;
+		boolean bSame = b.packed.high == destination.high && b.packed.low == destination.low;
+		if (aSame != bSame)
+			return aSame;
+		// rule 2: prefer appropriate scope
+		if (a.scope < b.scope)
+			return a.scope >= destinationScope;
+		if (b.scope < a.scope)
+			return b.scope < destinationScope;
+		// rule 3: avoid deprecated addresses
+		if (a.address.markedDeprecated != b.address.markedDeprecated)
+			return !a.address.markedDeprecated;
+		// rule 5: prefer outgoing interface
+		boolean aOutgoing = a.iface.equals(outgoingIface), bOutgoing = b.iface.equals(outgoingIface);
+		if (aOutgoing != bOutgoing)
+			return aOutgoing;
+		// rule 6: prefer matching label
+		if ((a.label == destinationLabel) != (b.label == destinationLabel))
+			return a.label == destinationLabel;
+		// rule 7: prefer temporary addresses (or public ones, if so configured on their interface)
+		boolean aPreferred = a.address.markedTemporary == a.preferTemporary;
+		boolean bPreferred = b.address.markedTemporary == b.preferTemporary;
+		if (aPreferred != bPreferred)
+			return aPreferred;
+		// rule 8: use longest matching prefix, within the prefix of the source address
+		if (!destination.isIPv4()) {
+			int aCommon = Math.min(a.packed.commonPrefixLength(destination), a.packed.prefixLength);
+			int bCommon = Math.min(b.packed.commonPrefixLength(destination), b.packed.prefixLength);
+			if (aCommon != bCommon)
+				return aCommon > bCommon;
+		}
+		// otherwise keep the one found first, as the kernel does
+		return false;
+	}
+}
@@ -0,0 +1,172 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/** This class drains an output stream of a process line by line. It can
+ * either be run directly in the calling thread (for one of the streams) or
+ * be submitted to a small shared executor (for the other one) so that both
+ * stdout and stderr of a process are read concurrently. Otherwise, a process
+ * that fills the pipe buffer of the stream we are not currently reading
+ * would block forever.
+ *
+ * The captured output is bounded: everything beyond maxChars is still read
+ * (so that the process can continue), but discarded.
+ *
+ * @author Rene Mayrhofer
+ */
+public class StreamPump implements Runnable {
+	/** Our logger for this class. */
+	private final static Logger logger = Logger.getLogger(Constants.LOG_TAG);
+
+	/** Buffer size used for BufferReader and BufferWriter. */
+	private final static int IOBufferSize = 4192;
+
+	/** Default limit of captured characters per stream. */
+	public final static int DEFAULT_MAX_CHARS = 256 * 1024;
+
+	/** Callback interface to receive process output line by line while it is being read. */
+	public interface LineListener {
+		/** Called for each line of output, without the line terminator.
+		 * @param line The line just read.
+		 * @param fromStderr true if the line was read from the standard error
+		 *                   stream, false for standard output.
+		 */
+		public void onLine(String line, boolean fromStderr);
+	}
+
+	/** The shared executor for pumping streams in the background. Threads
+	 * are re-used between commands and terminate when idle, so this does not
+	 * cost a new thread per command.
+	 */
+	private static ExecutorService executor = null;
+
+	private InputStream in;
+	private StringBuffer target;
+	private boolean appendNewlines;
+	private int maxChars;
+	private LineListener listener;
+	private boolean isStderr;
+	private CommandMetrics.Sample metrics = null;
+
+	private boolean truncated = false;
+	private IOException error = null;
+	private CountDownLatch finished = new CountDownLatch(1);
+
+	/** Creates a new pump, but does not start reading yet.
+	 *
+	 * @param in The stream to read from. It will be closed when reaching its end.
+	 * @param target If not null, read lines are appended here.
+	 * @param appendNewlines If true, "\n" will be appended to target after each line.
+	 * @param maxChars Maximum number of characters to append to target.
+	 * @param listener If not null, this listener is called for every line read.
+	 * @param isStderr Passed on to the listener to tell the streams apart.
+	 */
+	public StreamPump(InputStream in, StringBuffer target, boolean appendNewlines, int maxChars,
+			LineListener listener, boolean isStderr) {
+		this.in = in;
+		this.target = target;
+		this.appendNewlines = appendNewlines;
+		this.maxChars = maxChars;
+		this.listener = listener;
+		this.isStderr = isStderr;
+	}
+
+	/** Sets the sample to record the time to the first output and the number
+	 * of bytes read in. Must be called before the pump is started.
+	 */
+	public StreamPump setMetrics(CommandMetrics.Sample metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/** Returns the shared executor, creating it if necessary. It may also be
+	 * used for other short-lived tasks around command output.
+	 */
+	static synchronized ExecutorService getExecutor() {
+		if (executor == null)
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "IPv6Config-StreamPump");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return executor;
+	}
+
+	/** Starts reading the stream on the shared executor and returns immediately. */
+	public StreamPump startInBackground() {
+		getExecutor().execute(this);
+		return this;
+	}
+
+	public void run() {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in), IOBufferSize);
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (metrics != null) {
+					metrics.markFirstByte();
+					metrics.addBytes(line.length() + 1);
+				}
+				if (target != null && !truncated) {
+					int needed = line.length() + (appendNewlines ? 1 : 0);
+					if (target.length() + needed <= maxChars) {
+						target.append(line);
+						if (appendNewlines)
+							target.append("\n");
+					}
+					else {
+						logger.fine("Output exceeds " + maxChars + " characters, discarding the remainder");
+						truncated = true;
+					}
+				}
+				if (listener != null)
+					listener.onLine(line, isStderr);
+			}
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// don't care, we're finished anyways
+			}
+			finished.countDown();
+		}
+	}
+
+	/** Waits until the stream has been read completely.
+	 *
+	 * @throws IOException If reading the stream failed.
+	 */
+	public void waitFor() throws IOException, InterruptedException {
+		finished.await();
+		if (error != null)
+			throw error;
+	}
+
+	/** Returns true if some output had to be discarded because it exceeded maxChars. */
+	public boolean isTruncated() {
+		return truncated;
+	}
+}
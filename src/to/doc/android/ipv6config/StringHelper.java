@@ -202,6 +202,91 @@ public class StringHelper {
 		String value = "0x" + Integer.toHexString(i);
 		return value;
 	}
+
+	/**
+	 * Returns the value of a single hexadecimal digit (upper or lower case)
+	 * or -1 if the character is no hexadecimal digit
+	 */
+	public static int hexDigitToInt(char c) {
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		if (c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		return -1;
+	}
+
+	/**
+	 * Parses the hexadecimal number (without "0x" prefix) between start 
+	 * (inclusive) and end (exclusive) without creating any objects
+	 * @return the value or -1 if there is a non-hexadecimal character or the range is empty
+	 */
+	public static int parseHex(CharSequence str, int start, int end) {
+		if (start >= end)
+			return -1;
+		int value = 0;
+		for (int i=start; i<end; i++) {
+			int digit = hexDigitToInt(str.charAt(i));
+			if (digit < 0)
+				return -1;
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Like parseHex, but for unsigned values of up to 15 digits, e.g. 32 bit
+	 * kernel flags that would be negative as int 
+	 * @return the value or -1 if there is a non-hexadecimal character or the range is empty or too long
+	 */
+	public static long parseHexLong(CharSequence str, int start, int end) {
+		if (start >= end || end - start > 15)
+			return -1;
+		long value = 0;
+		for (int i=start; i<end; i++) {
+			int digit = hexDigitToInt(str.charAt(i));
+			if (digit < 0)
+				return -1;
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Like parseHexLong, but for non-negative decimal values of up to 18 digits
+	 * @return the value or -1 if there is a non-decimal character or the range is empty or too long
+	 */
+	public static long parseDecimalLong(CharSequence str, int start, int end) {
+		if (start >= end || end - start > 18)
+			return -1;
+		long value = 0;
+		for (int i=start; i<end; i++) {
+			char c = str.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Parses target.length bytes from consecutive pairs of hexadecimal 
+	 * digits starting at the given position (e.g. "fe80..." into 0xfe, 0x80, ...)
+	 * @return true if successful, false if the string is too short or contains non-hexadecimal characters
+	 */
+	public static boolean parseHexBytes(CharSequence str, int start, byte[] target) {
+		if (start + 2*target.length > str.length())
+			return false;
+		for (int i=0; i<target.length; i++) {
+			int high = hexDigitToInt(str.charAt(start + 2*i));
+			int low = hexDigitToInt(str.charAt(start + 2*i + 1));
+			if (high < 0 || low < 0)
+				return false;
+			target[i] = (byte) ((high << 4) | low);
+		}
+		return true;
+	}
 	
 /*	public static void debuglogWithStackTrace(Logger logger, String msg, Exception e) {
 		  String stackTrace = "";
@@ -0,0 +1,188 @@
+/*****************************************************************************
+ *  Project: Android IPv6Config
+ *  Description: Android application to change IPv6 kernel configuration
+ *  Author: René Mayrhofer
+ *  Copyright: René Mayrhofer, 2011-2014
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3
+ * as published by the Free Software Foundation.
+ *****************************************************************************/
+
+package to.doc.android.ipv6config;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+/** This class keeps the values of kernel options below a sysctl tree (such
+ * as /proc/sys/net/ipv6/conf/) and only changes those that differ from the
+ * requested values.
+ *
+ * Values are read directly from procfs, which does not need superuser
+ * privileges. A value read (or written) within the last TTL milliseconds
+ * is trusted as is; older values are revalidated by reading the file again
+ * before deciding about a write, as the kernel or other applications may
+ * have changed them in the meantime (e.g. when an interface is re-created
+ * with the values from "default"). All values that differ are then written
+ * in a single batch in the root shell, so that no superuser command at all
+ * is executed when nothing has to be changed.
+ *
+ * @author Rene Mayrhofer
+ */
+public class SysctlCache {
+	/** Our logger for this class. */
+	private final static Logger logger = Logger.getLogger(Constants.LOG_TAG);
+
+	/** Default time for which read or written values are trusted (in milliseconds). */
+	public final static long DEFAULT_TTL = 2*1000;
+
+	/** A known value of a kernel option. */
+	private static class Entry {
+		String value;
+		long validatedAt;
+	}
+
+	private final String tree;
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private long ttl;
+
+	/** Creates a new cache for kernel options below the given tree.
+	 *
+	 * @param tree The directory of the options, ending with "/".
+	 * @param ttl The time in milliseconds for which values are trusted
+	 *            without reading them again, always read if <= 0.
+	 */
+	public SysctlCache(String tree, long ttl) {
+		this.tree = tree;
+		this.ttl = ttl;
+	}
+
+	/** Sets the time for which values are trusted without reading them again. */
+	public synchronized void setTTL(long ttl) {
+		this.ttl = ttl;
+	}
+
+	/** Drops all known values, e.g. after they have been changed by other means. */
+	public synchronized void invalidate() {
+		entries.clear();
+	}
+
+	/** Returns the current value of an option, or null if it can not be read.
+	 *
+	 * @param key The path of the option below the tree, e.g. "eth0/use_tempaddr".
+	 */
+	public synchronized String get(String key) {
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(key);
+		if (entry != null && now - entry.validatedAt <= ttl)
+			return entry.value;
+
+		String value = readValue(tree + key);
+		if (value == null) {
+			entries.remove(key);
+			return null;
+		}
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(key, entry);
+		}
+		else if (!value.equals(entry.value))
+			logger.fine("Kernel option " + tree + key + " changed from " + entry.value + " to " + value);
+		entry.value = value;
+		entry.validatedAt = now;
+		return value;
+	}
+
+	/** Sets the options to the given values, writing only those that differ
+	 * from their current value, all of them in one root shell batch.
+	 *
+	 * @param keys The paths of the options below the tree.
+	 * @param values The values to set, in the same order.
+	 * @param timeout The time budget for the batch in milliseconds.
+	 * @return for each option, true if it already had or could be set to the
+	 *         value, false if writing it failed.
+	 * @throws IOException If the root shell could not be used.
+	 * @throws CommandTimeoutException If the batch did not finish in time.
+	 */
+	public synchronized boolean[] set(String[] keys, String[] values, long timeout)
+			throws IOException, CommandTimeoutException {
+		boolean[] ret = new boolean[keys.length];
+		ArrayList<Integer> changed = new ArrayList<Integer>();
+		for (int i=0; i<keys.length; i++) {
+			if (values[i].equals(get(keys[i])))
+				ret[i] = true;
+			else
+				changed.add(i);
+		}
+		if (changed.size() == 0) {
+			logger.finer("All " + keys.length + " kernel options below " + tree + " already set, nothing to write");
+			return ret;
+		}
+
+		String[] cmds = new String[changed.size()];
+		for (int i=0; i<cmds.length; i++) {
+			int index = changed.get(i);
+			cmds[i] = "echo " + values[index] + " > " + tree + keys[index];
+		}
+		Command.CommandResult[] results;
+		try {
+			results = Command.executeRootCommands(cmds, false, timeout);
+		} catch (IOException e) {
+			forget(keys, changed);
+			throw e;
+		} catch (CommandTimeoutException e) {
+			forget(keys, changed);
+			throw e;
+		}
+
+		long now = System.currentTimeMillis();
+		for (int i=0; i<results.length; i++) {
+			int index = changed.get(i);
+			if (results[i].exitCode == 0) {
+				Entry entry = entries.get(keys[index]);
+				if (entry == null) {
+					entry = new Entry();
+					entries.put(keys[index], entry);
+				}
+				entry.value = values[index];
+				entry.validatedAt = now;
+				ret[index] = true;
+			}
+			else {
+				logger.warning("Unable to set kernel option " + tree + keys[index] + " to " + values[index]);
+				entries.remove(keys[index]);
+			}
+		}
+		logger.finer("Wrote " + cmds.length + " of " + keys.length + " kernel options below " + tree);
+		return ret;
+	}
+
+	/** Drops the values of the given options, as their state is unknown after a failed write. */
+	private void forget(String[] keys, ArrayList<Integer> indices) {
+		for (int index : indices)
+			entries.remove(keys[index]);
+	}
+
+	/** Returns the first line of a procfs file, or null if it can not be read. */
+	private static String readValue(String fileName) {
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(fileName));
+			String line = in.readLine();
+			return line != null ? line.trim() : null;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException e) {
+					// don't care, we're finished anyways
+				}
+		}
+	}
+}